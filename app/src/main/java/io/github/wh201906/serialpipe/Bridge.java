@@ -0,0 +1,531 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+
+// Forwards data between the connections of two ends. Each connection is read by its own thread into the queue of its end,
+// and written by another thread from the queue of the other end, so the two directions never wait for each other.
+// The ends are started and stopped separately, e.g. the network side keeps running while the serial port is reconnected.
+// In event loop mode, one thread takes turns at all four jobs instead, which saves wake-ups on low-rate links
+// at the cost of latency: every read() must return within a short timeout, which bounds the delay of the other jobs.
+// Plain Java, so the hot path can be run and measured outside of Android.
+public class Bridge
+{
+    // how long a forwarding thread waits on its queue before checking whether the connection is still open
+    public static final long QUEUE_WAIT_NANOS = 100_000_000L;
+    // how long the writer waits for new data while the connection holds some back, see Connection.flush()
+    private static final long FLUSH_WAIT_NANOS = 10_000_000L;
+    // event loop mode: the most reads or writes in a row before the next job gets its turn
+    private static final int LOOP_BURST = 64;
+    // how long start(), createQueues() and setEventLoop() wait for the threads of a stopped end,
+    // they exit within QUEUE_WAIT_NANOS or the read timeout of the connection, those calls fail if it takes longer
+    public static final long EXIT_WAIT_MILLIS = 500;
+
+    public enum QueueType
+    {
+        // ByteRingPacketQueue, bounded by bytes
+        BYTE_RING,
+        // PooledPacketQueue, bounded by packets
+        POOLED
+    }
+
+    public interface ErrorListener
+    {
+        // Called from the forwarding thread, which stops forwarding that end afterwards, the connection is left as it is
+        void onError(End end, Exception e);
+    }
+
+    private final End mA;
+    private final End mB;
+    private ThreadFactory mThreadFactory = Thread::new;
+    private ErrorListener mErrorListener = null;
+    private boolean mIsEventLoop = false;
+    private final Object mLoopLock = new Object();
+    private Thread mLoopThread = null;
+
+    public Bridge(End a, End b)
+    {
+        mA = a;
+        mB = b;
+        a.createQueue();
+        b.createQueue();
+    }
+
+    // Starts forwarding through an opened connection: what it reads goes to the queue of this end,
+    // and the queue of the other end is written to it by the writer of this end
+    // It stops when the connection is closed, see stop()
+    // Waits for the threads of the previous start() of the end first, e.g. when the same connection is reopened right away,
+    // since they could still be reading or writing with the new ones otherwise
+    // Returns false if they are still running after EXIT_WAIT_MILLIS, nothing is started then
+    public boolean start(End end, Connection connection)
+    {
+        int generation = ++end.mGeneration;
+        if (!awaitExit(end)) return false;
+        End other = getOther(end);
+        PacketQueue sendQueue = other.mQueue;
+        PacketWriter writer = end.mWriter;
+        Reader reader = new Reader(end, connection);
+        writer.setMetrics(other.mMetrics);
+        end.mConnection = connection;
+
+        if (mIsEventLoop)
+        {
+            synchronized (mLoopLock)
+            {
+                end.mLoopJob = new LoopJob(reader, writer, sendQueue, generation);
+                if (mLoopThread == null) mLoopThread = startThread(mA.mName + "+" + mB.mName + "-loop", this::runEventLoop);
+                end.mReaderThread = mLoopThread;
+                end.mWriterThread = null;
+            }
+            return true;
+        }
+
+        end.mReaderThread = startThread(end.mName + "-reader", () ->
+        {
+            try
+            {
+                while (connection.isOpened() && end.mGeneration == generation)
+                    reader.step(QUEUE_WAIT_NANOS);
+            } catch (Exception e)
+            {
+                onError(end, e);
+            } finally
+            {
+                reader.close();
+            }
+        });
+        end.mWriterThread = startThread(end.mName + "-writer", () ->
+        {
+            int heldBytes = 0;
+            while (connection.isOpened() && end.mGeneration == generation)
+            {
+                try
+                {
+                    writer.forward(sendQueue, connection, heldBytes > 0 ? FLUSH_WAIT_NANOS : QUEUE_WAIT_NANOS);
+                    heldBytes = connection.flush();
+                } catch (Exception e)
+                {
+                    onError(end, e);
+                    break;
+                }
+            }
+            writer.clear(sendQueue);
+        });
+        return true;
+    }
+
+    // Closes the connection of the end, its threads exit within QUEUE_WAIT_NANOS or the read timeout of the connection
+    public void stop(End end)
+    {
+        Connection connection = end.mConnection;
+        if (connection != null) connection.close();
+    }
+
+    // Waits for the threads of a stopped end, returns false on timeout
+    // In event loop mode, the thread only exits when both ends are stopped
+    public boolean join(End end, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread thread : new Thread[]{end.mReaderThread, end.mWriterThread})
+        {
+            if (thread == null) continue;
+            thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+            if (thread.isAlive()) return false;
+        }
+        return true;
+    }
+
+    // Applies the queue settings of both ends, the queued data is dropped
+    // Waits for the threads of stopped ends, returns false if the connection of an end is open or they don't exit in time
+    public boolean createQueues()
+    {
+        if (mA.isConnectionOpened() || mB.isConnectionOpened()) return false;
+        if (!awaitExit(mA) || !awaitExit(mB)) return false;
+        mA.createQueue();
+        mB.createQueue();
+        return true;
+    }
+
+    public End getA() {return mA;}
+
+    public End getB() {return mB;}
+
+    public End getOther(End end) {return end == mA ? mB : mA;}
+
+    public void setThreadFactory(ThreadFactory threadFactory) {this.mThreadFactory = threadFactory;}
+
+    public void setErrorListener(ErrorListener listener) {this.mErrorListener = listener;}
+
+    public boolean isEventLoop() {return mIsEventLoop;}
+
+    // Waits for the threads of stopped ends, returns false if the connection of an end is open or they don't exit in time
+    public boolean setEventLoop(boolean enabled)
+    {
+        if (mA.isConnectionOpened() || mB.isConnectionOpened()) return false;
+        if (!awaitExit(mA) || !awaitExit(mB)) return false;
+        mIsEventLoop = enabled;
+        return true;
+    }
+
+    private Thread startThread(String name, Runnable runnable)
+    {
+        Thread thread = mThreadFactory.newThread(runnable);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
+    // Waits up to EXIT_WAIT_MILLIS for the threads of the end to exit, they do once its connection is closed or its generation changes
+    // Returns false if they are still running
+    private boolean awaitExit(End end)
+    {
+        try
+        {
+            if (!mIsEventLoop) return join(end, EXIT_WAIT_MILLIS);
+            long deadline = System.currentTimeMillis() + EXIT_WAIT_MILLIS;
+            synchronized (mLoopLock)
+            {
+                while (end.mLoopJob != null && mLoopThread != null)
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) return false;
+                    mLoopLock.wait(remaining);
+                }
+            }
+            return true;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void onError(End end, Exception e)
+    {
+        ErrorListener listener = mErrorListener;
+        if (listener != null) listener.onError(end, e);
+    }
+
+    // Takes turns at reading and writing both ends without waiting on the queues, the reads are what blocks
+    private void runEventLoop()
+    {
+        while (true)
+        {
+            boolean isRunning = runLoopJob(mA);
+            isRunning |= runLoopJob(mB);
+            if (isRunning) continue;
+            synchronized (mLoopLock)
+            {
+                // start() might have added a job meanwhile
+                if (mA.mLoopJob == null && mB.mLoopJob == null)
+                {
+                    mLoopThread = null;
+                    mLoopLock.notifyAll();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Returns false if the end is stopped
+    private boolean runLoopJob(End end)
+    {
+        LoopJob job = end.mLoopJob;
+        if (job == null) return false;
+        Connection connection = job.mReader.mConnection;
+        try
+        {
+            if (connection.isOpened() && job.mGeneration == end.mGeneration)
+            {
+                // keep going while there is data, an idle read costs up to the read timeout
+                for (int i = 0; i < LOOP_BURST && job.mReader.step(0); i++) ;
+                for (int i = 0; i < LOOP_BURST && job.mWriter.forward(job.mSendQueue, connection, 0) > 0; i++) ;
+                connection.flush();
+                if (connection.isOpened() && job.mGeneration == end.mGeneration) return true;
+            }
+        } catch (Exception e)
+        {
+            onError(end, e);
+        }
+        job.mReader.close();
+        job.mWriter.clear(job.mSendQueue);
+        synchronized (mLoopLock)
+        {
+            if (end.mLoopJob == job) end.mLoopJob = null;
+            // start() might be waiting for it
+            mLoopLock.notifyAll();
+        }
+        return false;
+    }
+
+    // The jobs of a started end in event loop mode
+    private static class LoopJob
+    {
+        private final Reader mReader;
+        private final PacketWriter mWriter;
+        private final PacketQueue mSendQueue;
+        private final int mGeneration;
+
+        LoopJob(Reader reader, PacketWriter writer, PacketQueue sendQueue, int generation)
+        {
+            mReader = reader;
+            mWriter = writer;
+            mSendQueue = sendQueue;
+            mGeneration = generation;
+        }
+    }
+
+    // Reads from a connection into a queue, one read per step(), so it can have a thread of its own or share one
+    private static class Reader
+    {
+        private final End mEnd;
+        private final Connection mConnection;
+        private final PacketQueue mQueue;
+        private final TrafficMetrics mMetrics;
+        private final OverflowPolicy mPolicy;
+        // DROP_OLDEST only
+        private final EvictablePacketQueue mEvictableQueue;
+        // the serial port can be paused, the network is left to BLOCK and TCP's own flow control
+        private final FlowControllable mFlowControlPort;
+
+        private PacketBuffer mBuf = null;
+        // mBuf holds data which didn't fit into a queue bounded by packet count
+        private boolean mIsPending = false;
+        // DROP_NEWEST: what is read while the queue is full goes here
+        private PacketBuffer mDropBuffer = null;
+        // FLOW_CONTROL: waiting for the queue to drain
+        private boolean mIsSenderPaused = false;
+
+        Reader(End end, Connection connection)
+        {
+            mEnd = end;
+            mConnection = connection;
+            mQueue = end.mQueue;
+            mMetrics = end.mMetrics;
+            mPolicy = end.mOverflowPolicy;
+            mEvictableQueue = mQueue instanceof EvictablePacketQueue ? (EvictablePacketQueue) mQueue : null;
+            mFlowControlPort = mPolicy == OverflowPolicy.FLOW_CONTROL && connection instanceof FlowControllable ? (FlowControllable) connection : null;
+        }
+
+        // Reads once, waiting up to waitNanos for room in the queue first
+        // Returns false if nothing was read
+        boolean step(long waitNanos) throws IOException
+        {
+            if (mIsSenderPaused)
+            {
+                // Don't toggle the line for every packet, let the writer side catch up first
+                long stallStart = System.nanoTime();
+                boolean drained = mQueue.awaitDrained(waitNanos);
+                mMetrics.onReaderStall(System.nanoTime() - stallStart);
+                if (!drained) return false;
+                mIsSenderPaused = false;
+                mFlowControlPort.resumeSender();
+            }
+            if (mIsPending && !publishPending(waitNanos)) return false;
+
+            if (mBuf == null) mBuf = mQueue.acquire(0);
+            if (mBuf == null)
+            {
+                // the queue is full, the writer side can't keep up
+                if (mPolicy == OverflowPolicy.DROP_NEWEST)
+                {
+                    if (mDropBuffer == null) mDropBuffer = new PacketBuffer(mQueue.getBufferSize());
+                    int dropLen = mDropBuffer.readFrom(mConnection);
+                    if (dropLen == 0) return false;
+                    capture(mDropBuffer);
+                    mMetrics.onReceived(dropLen);
+                    mMetrics.onDropped(dropLen);
+                    return true;
+                }
+                if (mFlowControlPort != null)
+                {
+                    pauseSender();
+                    return false;
+                }
+                long stallStart = System.nanoTime();
+                mBuf = mQueue.acquire(waitNanos);
+                mMetrics.onReaderStall(System.nanoTime() - stallStart);
+                if (mBuf == null) return false;
+            }
+            int receiveLen = mBuf.readFrom(mConnection);
+            if (receiveLen == 0) return false;
+            capture(mBuf);
+            mMetrics.onReceived(receiveLen);
+            if (mQueue.publish(mBuf, 0))
+            {
+                mBuf = null;
+                mMetrics.onQueueDepth(mQueue.size());
+                return true;
+            }
+
+            // only a queue bounded by packet count gets here, the byte ring reserves the room in acquire()
+            switch (mPolicy)
+            {
+                case DROP_NEWEST:
+                    // the buffer is filled again by the next read
+                    mMetrics.onDropped(receiveLen);
+                    break;
+                case DROP_OLDEST:
+                    if (mEvictableQueue != null)
+                    {
+                        PacketBuffer evicted = mEvictableQueue.publishEvicting(mBuf);
+                        if (evicted != null) mMetrics.onDropped(evicted.getLength());
+                        mBuf = evicted;
+                        break;
+                    }
+                    // the policy was changed without Bridge.createQueues(), wait like BLOCK
+                case FLOW_CONTROL:
+                case BLOCK:
+                default:
+                    mIsPending = true;
+                    if (mFlowControlPort != null) pauseSender();
+                    else publishPending(waitNanos);
+                    break;
+            }
+            return true;
+        }
+
+        private void capture(PacketBuffer packet)
+        {
+            TrafficCapture.Channel capture = mEnd.mCapture;
+            if (capture != null) capture.record(packet);
+        }
+
+        private void pauseSender() throws IOException
+        {
+            mFlowControlPort.pauseSender();
+            mIsSenderPaused = true;
+        }
+
+        private boolean publishPending(long waitNanos)
+        {
+            long stallStart = System.nanoTime();
+            boolean published = mQueue.publish(mBuf, waitNanos);
+            mMetrics.onReaderStall(System.nanoTime() - stallStart);
+            if (!published) return false;
+            mBuf = null;
+            mIsPending = false;
+            return true;
+        }
+
+        // Call it when the connection is closed
+        void close()
+        {
+            if (mIsPending) mMetrics.onDropped(mBuf.getLength());
+            mQueue.discard(mBuf);
+            mBuf = null;
+            mIsPending = false;
+        }
+    }
+
+    // One connection of the bridge, the queue of what it reads, and how the other end's data is written to it
+    // The queue settings take effect on Bridge.createQueues()
+    public static class End
+    {
+        private final String mName;
+        private QueueType mQueueType = QueueType.BYTE_RING;
+        private int mQueueCapacityBytes = 256 * 1024;
+        private int mQueueCapacityPackets = 512;
+        // the largest read
+        private int mBufferSize = 4096;
+        private boolean mIsQueueDirect = false;
+        private WaitStrategy.Type mWaitStrategyType = WaitStrategy.Type.SPIN_PARK;
+        // what the reader does when the other end can't keep up
+        private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+        // every packet is written as it is
+        private PacketWriter mWriter = new WriteCoalescer(0, 0);
+        private final TrafficMetrics mMetrics = new TrafficMetrics();
+
+        private PacketQueue mQueue = null;
+        private volatile Connection mConnection = null;
+        // event loop mode only
+        private volatile LoopJob mLoopJob = null;
+        // everything read from the connection, including what is dropped
+        private volatile TrafficCapture.Channel mCapture = null;
+        // the threads of older start() calls exit once this changes
+        private volatile int mGeneration = 0;
+        private volatile Thread mReaderThread = null;
+        private volatile Thread mWriterThread = null;
+
+        // name: the prefix of the thread names
+        public End(String name) {mName = name;}
+
+        private void createQueue()
+        {
+            // the byte ring can't evict packets from the producer side
+            if (mOverflowPolicy == OverflowPolicy.DROP_OLDEST)
+                mQueue = new PooledPacketQueue.Evictable(mQueueCapacityPackets, mBufferSize, mWaitStrategyType);
+            else if (mQueueType == QueueType.POOLED)
+                mQueue = new PooledPacketQueue(mQueueCapacityPackets, mBufferSize, mWaitStrategyType);
+            else
+                mQueue = new ByteRingPacketQueue(mQueueCapacityBytes, mBufferSize, mIsQueueDirect, mWaitStrategyType);
+        }
+
+        // true until the threads have exited, which is a little after the connection is closed
+        public boolean isRunning()
+        {
+            // event loop mode has no writer thread
+            if (mLoopJob != null) return true;
+            Thread reader = mReaderThread;
+            Thread writer = mWriterThread;
+            return writer != null && (reader.isAlive() || writer.isAlive());
+        }
+
+        private boolean isConnectionOpened()
+        {
+            Connection connection = mConnection;
+            return connection != null && connection.isOpened();
+        }
+
+        public String getName() {return mName;}
+
+        public Connection getConnection() {return mConnection;}
+
+        // What this end has read and not yet written to the other end
+        public PacketQueue getQueue() {return mQueue;}
+
+        // Reads of this end and writes to the other end
+        public TrafficMetrics getMetrics() {return mMetrics;}
+
+        public QueueType getQueueType() {return mQueueType;}
+
+        // DROP_OLDEST always uses QueueType.POOLED
+        public void setQueueType(QueueType queueType) {this.mQueueType = queueType;}
+
+        public int getQueueCapacityBytes() {return mQueueCapacityBytes;}
+
+        public void setQueueCapacityBytes(int capacityBytes) {this.mQueueCapacityBytes = capacityBytes;}
+
+        public int getQueueCapacityPackets() {return mQueueCapacityPackets;}
+
+        public void setQueueCapacityPackets(int capacityPackets) {this.mQueueCapacityPackets = capacityPackets;}
+
+        public int getBufferSize() {return mBufferSize;}
+
+        public void setBufferSize(int bufferSize) {this.mBufferSize = bufferSize;}
+
+        public boolean isQueueDirect() {return mIsQueueDirect;}
+
+        // Byte ring only, so a NIO connection can read into it without a copy
+        public void setQueueDirect(boolean direct) {this.mIsQueueDirect = direct;}
+
+        public WaitStrategy.Type getWaitStrategyType() {return mWaitStrategyType;}
+
+        public void setWaitStrategyType(WaitStrategy.Type type) {this.mWaitStrategyType = type;}
+
+        public OverflowPolicy getOverflowPolicy() {return mOverflowPolicy;}
+
+        // Takes effect on the next Bridge.start(), and on Bridge.createQueues() for the queue type
+        public void setOverflowPolicy(OverflowPolicy policy) {this.mOverflowPolicy = policy;}
+
+        public PacketWriter getWriter() {return mWriter;}
+
+        // Batching (WriteCoalescer) or framing (Packetizer), takes effect on the next Bridge.start()
+        public void setWriter(PacketWriter writer) {this.mWriter = writer;}
+
+        public TrafficCapture.Channel getCapture() {return mCapture;}
+
+        // Can be changed while running, null to stop capturing
+        public void setCapture(TrafficCapture.Channel capture) {this.mCapture = capture;}
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.wh201906.serialpipe;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A contiguous byte ring shared by one producer and one consumer, bounded by bytes instead of packets.
+// Every packet is stored as a 4-byte length header followed by its data, aligned to 4 bytes,
+// so small packets are packed densely and the memory use is fixed.
+// The producer reserves room for a whole buffer in acquire() and reads into the ring directly,
+// publish() only takes up what was actually read.
+// A packet never wraps around the end: when the rest doesn't fit, a wrap marker sends the consumer back to the start.
+// Not evictable: the producer would have to move the consumer's position, which needs a lock, see PooledPacketQueue.Evictable.
+public class ByteRingPacketQueue implements PacketQueue
+{
+    private static final int HEADER_SIZE = 4;
+    private static final int WRAP_MARKER = -1;
+
+    // absolute getInt()/putInt() only, the views have their own positions
+    private final ByteBuffer mRing;
+    private final int mCapacity;
+    private final int mMaxPacketSize;
+    private final WaitStrategy mNotEmpty;
+    private final WaitStrategy mNotFull;
+    private final WaitStrategy.ReadyCondition mHasData;
+    private final WaitStrategy.ReadyCondition mHasSpace;
+    private final WaitStrategy.ReadyCondition mIsDrained;
+
+    // Positions only grow, the offset in the ring is position % capacity
+    // Written by the producer, the end of the published packets
+    private final AtomicLong mTail = new AtomicLong();
+    // Written by the consumer, the end of the released packets
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mPublishedPackets = new AtomicLong();
+    private final AtomicLong mReleasedPackets = new AtomicLong();
+
+    // producer only
+    private final PacketBuffer mProducerView;
+    private long mProducerTail = 0;
+    private long mCachedHead = 0;
+    // the room acquire() waits for
+    private long mRequiredTail = 0;
+    // bytes skipped at the end of the ring by the acquired packet, 0 if it didn't wrap
+    private int mSkip = 0;
+
+    // consumer only
+    private final PacketBuffer mConsumerView;
+    private long mConsumerHead = 0;
+    private long mCachedTail = 0;
+    private long mTakenEnd = 0;
+
+    // capacityBytes: raised to hold at least two packets of maxPacketSize
+    // direct: allocate the ring off-heap, so NIO channels can read into it without a copy
+    public ByteRingPacketQueue(int capacityBytes, int maxPacketSize, boolean direct, WaitStrategy.Type waitStrategyType)
+    {
+        mMaxPacketSize = maxPacketSize;
+        // the worst case of acquire() is skipping almost a whole packet at the end, then a whole packet
+        mCapacity = Math.max(align(capacityBytes), 2 * align(HEADER_SIZE + maxPacketSize));
+        mRing = direct ? ByteBuffer.allocateDirect(mCapacity) : ByteBuffer.allocate(mCapacity);
+        mProducerView = new PacketBuffer(mRing);
+        mConsumerView = new PacketBuffer(mRing);
+        mNotEmpty = waitStrategyType.create();
+        mNotFull = waitStrategyType.create();
+        mHasData = () -> mTail.get() != mConsumerHead;
+        mHasSpace = () -> mRequiredTail - mHead.get() <= mCapacity;
+        mIsDrained = () -> mProducerTail - mHead.get() <= mCapacity / 2;
+    }
+
+    @Override
+    public PacketBuffer acquire(long timeoutNanos) {return acquire(mMaxPacketSize, timeoutNanos);}
+
+    // Reserves room for length bytes only, for a producer which knows the size of the packet before filling it,
+    // so a large maxPacketSize doesn't make small packets wait for room they won't use
+    public PacketBuffer acquire(int length, long timeoutNanos)
+    {
+        length = Math.min(Math.max(length, 0), mMaxPacketSize);
+        int offset = (int) (mProducerTail % mCapacity);
+        int toEnd = mCapacity - offset;
+        int packetRoom = align(HEADER_SIZE + length);
+        mSkip = toEnd >= packetRoom ? 0 : toEnd;
+        mRequiredTail = mProducerTail + mSkip + packetRoom;
+        if (mRequiredTail - mCachedHead > mCapacity)
+        {
+            mCachedHead = mHead.get();
+            if (mRequiredTail - mCachedHead > mCapacity)
+            {
+                if (timeoutNanos <= 0 || !mNotFull.await(mHasSpace, timeoutNanos)) return null;
+                mCachedHead = mHead.get();
+            }
+        }
+        int packetOffset = mSkip == 0 ? offset : 0;
+        mProducerView.reset(packetOffset + HEADER_SIZE, length);
+        return mProducerView;
+    }
+
+    // Never waits, the room was reserved by acquire()
+    @Override
+    public boolean publish(PacketBuffer buf, long timeoutNanos)
+    {
+        int length = buf.getLength();
+        int offset = buf.getOffset() - HEADER_SIZE;
+        // the header of the packet and the wrap marker are written before the tail moves, so the consumer sees them
+        if (mSkip != 0) mRing.putInt((int) (mProducerTail % mCapacity), WRAP_MARKER);
+        mRing.putInt(offset, length);
+        mProducerTail += mSkip + align(HEADER_SIZE + length);
+        mPublishedPackets.lazySet(mPublishedPackets.get() + 1);
+        mTail.lazySet(mProducerTail);
+        mNotEmpty.signal();
+        return true;
+    }
+
+    // Nothing to give back, the reservation is simply not published
+    @Override
+    public void discard(PacketBuffer buf) {}
+
+    @Override
+    public boolean awaitDrained(long timeoutNanos)
+    {
+        return mIsDrained.isReady() || mNotFull.await(mIsDrained, timeoutNanos);
+    }
+
+    @Override
+    public PacketBuffer take(long timeoutNanos)
+    {
+        if (mConsumerHead == mCachedTail)
+        {
+            mCachedTail = mTail.get();
+            if (mConsumerHead == mCachedTail)
+            {
+                if (timeoutNanos <= 0 || !mNotEmpty.await(mHasData, timeoutNanos)) return null;
+                mCachedTail = mTail.get();
+            }
+        }
+        int offset = (int) (mConsumerHead % mCapacity);
+        int length = mRing.getInt(offset);
+        if (length == WRAP_MARKER)
+        {
+            mConsumerHead += mCapacity - offset;
+            offset = 0;
+            length = mRing.getInt(0);
+        }
+        mTakenEnd = mConsumerHead + align(HEADER_SIZE + length);
+        mConsumerView.reset(offset + HEADER_SIZE, length);
+        mConsumerView.setLength(length);
+        return mConsumerView;
+    }
+
+    @Override
+    public void release(PacketBuffer buf)
+    {
+        if (buf == null) return;
+        mConsumerHead = mTakenEnd;
+        mReleasedPackets.lazySet(mReleasedPackets.get() + 1);
+        mHead.lazySet(mConsumerHead);
+        mNotFull.signal();
+    }
+
+    @Override
+    public int size() {return (int) (mPublishedPackets.get() - mReleasedPackets.get());}
+
+    @Override
+    public int getBufferSize() {return mMaxPacketSize;}
+
+    public int getCapacityBytes() {return mCapacity;}
+
+    // Bytes taken by queued packets, including headers and padding
+    public int getUsedBytes() {return (int) (mTail.get() - mHead.get());}
+
+    public boolean isDirect() {return mRing.isDirect();}
+
+    private static int align(int size) {return (size + 3) & ~3;}
+}
@@ -0,0 +1,476 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Compresses every write into one frame with an LZ4-style block format, the peer must use it too.
+// The matches can reach back into the previous writes (up to WINDOW bytes), so short repetitive datagrams,
+// e.g. log lines, compress well too. Frames which don't get smaller are stored as they are.
+// Both sides must see the same frames in the same order. A keyframe starts over without the previous writes,
+// after a lost or reordered frame the receiver skips the frames until the next one.
+// Over a lossy link, send one every keyframeInterval frames, over a reliable one, 0 only sends the first one.
+// The frames carry their length, so they can be read from a stream too, e.g. TCP or ReliableUdpConnection.
+// Both sides start over when the inner connection gets a new peer, see Connection.getPeerGeneration(), so one peer only.
+// Frame, big-endian: type and keyframe flag (1), sequence (1), original length (2), encoded length (2), encoded data
+// Block: sequences of a token (literal length << 4 | match length - 4), longer lengths continued in bytes of 255,
+// the literals, and the match offset (2, little-endian), the last one has literals only.
+// Nothing is allocated per frame.
+public class CompressedConnection extends ConnectionDecorator
+{
+    // the longest write, longer ones are cut
+    public static final int MAX_INPUT = 65535;
+    private static final int WINDOW = 65535;
+    private static final byte TYPE_LZ = 0x20;
+    private static final byte TYPE_STORED = 0x30;
+    private static final byte TYPE_MASK = 0x70;
+    private static final byte FLAG_KEY = 0x01;
+    private static final int HEADER_SIZE = 6;
+    private static final int MAX_ENCODED = MAX_INPUT + MAX_INPUT / 255 + 16;
+    private static final int MAX_FRAME = HEADER_SIZE + MAX_ENCODED;
+    private static final int MIN_MATCH = 4;
+    // the last bytes are always literals, as in LZ4, so the matcher never reads past the end
+    private static final int LAST_LITERALS = 5;
+    private static final int MIN_COMPRESS_LENGTH = 13;
+    private static final int HASH_LOG = 12;
+    // after this many bytes without a match, the matcher skips ahead faster
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int mKeyframeInterval;
+
+    // encoder, writer thread only
+    private final Window mEncodeWindow = new Window();
+    // stream positions of the last 4-byte sequences of each hash
+    private final int[] mHashTable = new int[1 << HASH_LOG];
+    private final byte[] mFrame = new byte[MAX_FRAME];
+    private int mSendSeq = 0;
+    private int mFramesSinceKey = 0;
+    private boolean mIsKeyNeeded = true;
+    private int mWritePeerGeneration = 0;
+    private byte[] mWriteCopy = null;
+
+    // decoder, reader thread only
+    private final Window mDecodeWindow = new Window();
+    // frames read, which might end with part of one from a stream
+    private final byte[] mInput = new byte[2 * MAX_FRAME];
+    private int mInputStart = 0;
+    private int mInputEnd = 0;
+    // the decoded frame not returned yet, in mDecodeWindow
+    private int mOutputStart = 0;
+    private int mOutputEnd = 0;
+    private int mReceiveSeq = 0;
+    private boolean mIsSynced = false;
+    private int mReadPeerGeneration = 0;
+    private byte[] mReadCopy = null;
+
+    private volatile long mInputBytes = 0;
+    private volatile long mEncodedBytes = 0;
+    private volatile long mCompressNanos = 0;
+    private volatile long mDecodedBytes = 0;
+    private volatile long mDecompressNanos = 0;
+    private volatile long mSkippedFrames = 0;
+
+    // keyframeInterval: 0 for the first frame only, see above
+    public CompressedConnection(Connection connection, int keyframeInterval)
+    {
+        super(connection);
+        mKeyframeInterval = Math.max(keyframeInterval, 0);
+    }
+
+    @Override
+    public boolean open()
+    {
+        mIsKeyNeeded = true;
+        mInputStart = mInputEnd = 0;
+        mOutputStart = mOutputEnd = 0;
+        mIsSynced = false;
+        return super.open();
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        int readLen = Math.min(buf.length - offset, maxLength);
+        while (mOutputStart == mOutputEnd)
+        {
+            if (!decodeFrame())
+            {
+                // keep the part of a frame, and read the rest
+                if (mInputStart > 0)
+                {
+                    System.arraycopy(mInput, mInputStart, mInput, 0, mInputEnd - mInputStart);
+                    mInputEnd -= mInputStart;
+                    mInputStart = 0;
+                }
+                int length = mConnection.read(mInput, mInputEnd, mInput.length - mInputEnd);
+                if (length <= 0) return 0;
+                int generation = mConnection.getPeerGeneration();
+                if (generation != mReadPeerGeneration)
+                {
+                    // this read comes from a new peer, the part of a frame before it from the old one
+                    mReadPeerGeneration = generation;
+                    System.arraycopy(mInput, mInputEnd, mInput, 0, length);
+                    mInputEnd = 0;
+                    mIsSynced = false;
+                }
+                mInputEnd += length;
+            }
+        }
+        // a frame which doesn't fit is returned over several reads
+        int length = Math.min(mOutputEnd - mOutputStart, readLen);
+        System.arraycopy(mDecodeWindow.mBuffer, mOutputStart, buf, offset, length);
+        mOutputStart += length;
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (dst.hasArray())
+        {
+            int readLen = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.position() + readLen);
+            return readLen;
+        }
+        if (mReadCopy == null) mReadCopy = new byte[MAX_INPUT];
+        int readLen = read(mReadCopy, 0, Math.min(dst.remaining(), mReadCopy.length));
+        dst.put(mReadCopy, 0, readLen);
+        return readLen;
+    }
+
+    // Returns 0 without a peer, like UdpConnection
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        int writeLen = Math.min(Math.min(data.length - offset, length), MAX_INPUT);
+        if (writeLen <= 0 || !mConnection.isPeerConnected()) return 0;
+        int generation = mConnection.getPeerGeneration();
+        if (generation != mWritePeerGeneration)
+        {
+            // a new peer hasn't seen the previous frames
+            mWritePeerGeneration = generation;
+            mIsKeyNeeded = true;
+        }
+        long start = System.nanoTime();
+        boolean isKey = mIsKeyNeeded || (mKeyframeInterval > 0 && mFramesSinceKey >= mKeyframeInterval);
+        Window window = mEncodeWindow;
+        if (isKey) window.startOver();
+        int inputStart = window.append(data, offset, writeLen);
+        int encodedLength = compress(window, inputStart, inputStart + writeLen, mFrame, HEADER_SIZE);
+        byte type = TYPE_LZ;
+        if (encodedLength >= writeLen)
+        {
+            type = TYPE_STORED;
+            encodedLength = writeLen;
+            System.arraycopy(data, offset, mFrame, HEADER_SIZE, writeLen);
+        }
+        mFrame[0] = (byte) (type | (isKey ? FLAG_KEY : 0));
+        mFrame[1] = (byte) mSendSeq;
+        putShort(mFrame, 2, writeLen);
+        putShort(mFrame, 4, encodedLength);
+        mCompressNanos += System.nanoTime() - start;
+
+        mSendSeq++;
+        mFramesSinceKey = isKey ? 1 : mFramesSinceKey + 1;
+        mIsKeyNeeded = false;
+        if (mConnection.write(mFrame, 0, HEADER_SIZE + encodedLength) == 0)
+        {
+            // the peer has missed it, so the next one can't refer to it
+            mIsKeyNeeded = true;
+            return 0;
+        }
+        mInputBytes += writeLen;
+        mEncodedBytes += HEADER_SIZE + encodedLength;
+        return writeLen;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (src.hasArray())
+        {
+            int written = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.position() + written);
+            return written;
+        }
+        if (mWriteCopy == null) mWriteCopy = new byte[MAX_INPUT];
+        int length = Math.min(src.remaining(), mWriteCopy.length);
+        int position = src.position();
+        src.get(mWriteCopy, 0, length);
+        int written = write(mWriteCopy, 0, length);
+        src.position(position + written);
+        return written;
+    }
+
+    // Encodes window[start, end) into dst, returns the encoded length, or a length >= end - start if it doesn't get smaller
+    private int compress(Window window, int start, int end, byte[] dst, int dstOffset)
+    {
+        byte[] src = window.mBuffer;
+        int length = end - start;
+        // worse than storing once the literals alone are about as long
+        int dstLimit = dstOffset + length;
+        int op = dstOffset;
+        int anchor = start;
+        if (length >= MIN_COMPRESS_LENGTH)
+        {
+            int matchLimit = end - LAST_LITERALS;
+            int ip = start;
+            int searchMatchCount = 1 << SKIP_TRIGGER;
+            while (ip < matchLimit - MIN_MATCH)
+            {
+                int sequence = getIntLE(src, ip);
+                int hash = hash(sequence);
+                int candidate = window.toIndex(mHashTable[hash]);
+                mHashTable[hash] = window.toPosition(ip);
+                if (candidate < window.mHistoryStart || candidate >= ip || ip - candidate > WINDOW || getIntLE(src, candidate) != sequence)
+                {
+                    ip += searchMatchCount++ >> SKIP_TRIGGER;
+                    continue;
+                }
+                searchMatchCount = 1 << SKIP_TRIGGER;
+                // extend backwards into the literals, and forwards
+                while (ip > anchor && candidate > window.mHistoryStart && src[ip - 1] == src[candidate - 1])
+                {
+                    ip--;
+                    candidate--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[candidate + matchLength] == src[ip + matchLength]) matchLength++;
+
+                int literalLength = ip - anchor;
+                if (op + 1 + literalLength + literalLength / 255 + 2 + matchLength / 255 + 1 > dstLimit) return length;
+                op = writeSequence(dst, op, src, anchor, literalLength, ip - candidate, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        int literalLength = end - anchor;
+        if (op + 1 + literalLength + literalLength / 255 + 1 > dstLimit) return length;
+        op = writeSequence(dst, op, src, anchor, literalLength, 0, 0);
+        return op - dstOffset;
+    }
+
+    // matchLength 0: literals only, for the last sequence
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literalLength, int offset, int matchLength)
+    {
+        int tokenOffset = op++;
+        int token = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15) op = writeLength(dst, op, literalLength - 15);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        if (matchLength > 0)
+        {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15) op = writeLength(dst, op, extra - 15);
+        }
+        dst[tokenOffset] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length)
+    {
+        for (; length >= 255; length -= 255) dst[op++] = (byte) 255;
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    // Decodes the next complete frame in mInput into mOutputStart/End, returns false if there is none
+    private boolean decodeFrame()
+    {
+        int available = mInputEnd - mInputStart;
+        if (available < HEADER_SIZE) return false;
+        int frameStart = mInputStart;
+        byte type = (byte) (mInput[frameStart] & TYPE_MASK);
+        boolean isKey = (mInput[frameStart] & FLAG_KEY) != 0;
+        int seq = mInput[frameStart + 1] & 0xFF;
+        int originalLength = getShort(mInput, frameStart + 2);
+        int encodedLength = getShort(mInput, frameStart + 4);
+        if ((type != TYPE_LZ && type != TYPE_STORED) || encodedLength > MAX_ENCODED || (type == TYPE_STORED && encodedLength != originalLength))
+        {
+            // garbage, e.g. from a peer without compression, nothing after it can be trusted
+            mInputStart = mInputEnd = 0;
+            mIsSynced = false;
+            mSkippedFrames++;
+            return true;
+        }
+        if (available < HEADER_SIZE + encodedLength) return false;
+        mInputStart += HEADER_SIZE + encodedLength;
+
+        long start = System.nanoTime();
+        Window window = mDecodeWindow;
+        if (isKey)
+        {
+            window.startOver();
+            mIsSynced = true;
+        }
+        else if (seq != mReceiveSeq)
+        {
+            mIsSynced = false;
+        }
+        mReceiveSeq = (seq + 1) & 0xFF;
+        // a stored frame is complete by itself
+        if (!mIsSynced && type != TYPE_STORED)
+        {
+            mSkippedFrames++;
+            return true;
+        }
+        int outputStart = window.reserve(originalLength);
+        int outputEnd = type == TYPE_STORED ? copyStored(window, outputStart, frameStart + HEADER_SIZE, originalLength)
+                : decompress(window, outputStart, originalLength, frameStart + HEADER_SIZE, encodedLength);
+        if (outputEnd < 0)
+        {
+            mIsSynced = false;
+            mSkippedFrames++;
+            return true;
+        }
+        window.mEnd = outputEnd;
+        mOutputStart = outputStart;
+        mOutputEnd = outputEnd;
+        mDecompressNanos += System.nanoTime() - start;
+        mDecodedBytes += originalLength;
+        return true;
+    }
+
+    private int copyStored(Window window, int outputStart, int inputOffset, int length)
+    {
+        System.arraycopy(mInput, inputOffset, window.mBuffer, outputStart, length);
+        return outputStart + length;
+    }
+
+    // Returns the end of the output in the window, -1 if the frame is broken
+    private int decompress(Window window, int op, int originalLength, int ip, int encodedLength)
+    {
+        byte[] src = mInput;
+        byte[] dst = window.mBuffer;
+        int outputEnd = op + originalLength;
+        int inputEnd = ip + encodedLength;
+        while (ip < inputEnd)
+        {
+            int token = src[ip++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15)
+            {
+                int b;
+                do
+                {
+                    if (ip >= inputEnd) return -1;
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > inputEnd - ip || literalLength > outputEnd - op) return -1;
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == inputEnd) break;
+
+            if (inputEnd - ip < 2) return -1;
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int matchLength = (token & 0x0F) + MIN_MATCH;
+            if ((token & 0x0F) == 15)
+            {
+                int b;
+                do
+                {
+                    if (ip >= inputEnd) return -1;
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            int match = op - offset;
+            if (offset == 0 || match < window.mHistoryStart || matchLength > outputEnd - op) return -1;
+            // the match can overlap the output, e.g. a run of one byte
+            if (offset >= matchLength)
+            {
+                System.arraycopy(dst, match, dst, op, matchLength);
+                op += matchLength;
+            }
+            else
+            {
+                for (int end = op + matchLength; op < end; ) dst[op++] = dst[match++];
+            }
+        }
+        return op == outputEnd ? op : -1;
+    }
+
+    private static int hash(int sequence) {return (sequence * -1640531535) >>> (32 - HASH_LOG);}
+
+    // Original bytes per byte sent, headers included, 0 before the first write
+    public double getCompressionRatio()
+    {
+        long encoded = mEncodedBytes;
+        return encoded == 0 ? 0 : (double) mInputBytes / encoded;
+    }
+
+    // Time spent per MB of original data, measured around the codec only
+    public long getCompressNanosPerMegabyte() {return mInputBytes == 0 ? 0 : (long) (mCompressNanos * 1e6 / mInputBytes);}
+
+    public long getDecompressNanosPerMegabyte() {return mDecodedBytes == 0 ? 0 : (long) (mDecompressNanos * 1e6 / mDecodedBytes);}
+
+    public long getInputBytes() {return mInputBytes;}
+
+    public long getEncodedBytes() {return mEncodedBytes;}
+
+    // Frames lost with the one before them, until the next keyframe, or broken
+    public long getSkippedFrames() {return mSkippedFrames;}
+
+    public int getKeyframeInterval() {return mKeyframeInterval;}
+
+    private static void putShort(byte[] buf, int offset, int value)
+    {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    private static int getShort(byte[] buf, int offset) {return (buf[offset] & 0xFF) << 8 | (buf[offset + 1] & 0xFF);}
+
+    private static int getIntLE(byte[] buf, int offset)
+    {
+        return (buf[offset] & 0xFF) | (buf[offset + 1] & 0xFF) << 8 | (buf[offset + 2] & 0xFF) << 16 | (buf[offset + 3] & 0xFF) << 24;
+    }
+
+    // The last WINDOW bytes of the stream and the frame being coded, in one buffer, which slides once it is full
+    private static class Window
+    {
+        final byte[] mBuffer = new byte[WINDOW + MAX_INPUT];
+        // stream position of mBuffer[0]
+        int mBase = 0;
+        int mEnd = 0;
+        // matches can't reach before this, e.g. across a keyframe
+        int mHistoryStart = 0;
+
+        void startOver() {mHistoryStart = mEnd;}
+
+        // Makes room for length bytes at mEnd and returns where they go, the caller moves mEnd
+        int reserve(int length)
+        {
+            if (mEnd + length > mBuffer.length)
+            {
+                int keep = Math.min(WINDOW, mEnd - mHistoryStart);
+                int shift = mEnd - keep;
+                System.arraycopy(mBuffer, shift, mBuffer, 0, keep);
+                mBase += shift;
+                mEnd = keep;
+                mHistoryStart = 0;
+            }
+            return mEnd;
+        }
+
+        // Returns where the data starts
+        int append(byte[] data, int offset, int length)
+        {
+            int start = reserve(length);
+            System.arraycopy(data, offset, mBuffer, start, length);
+            mEnd = start + length;
+            return start;
+        }
+
+        // Positions in the stream wrap around, only their differences matter
+        int toPosition(int index) {return mBase + index;}
+
+        int toIndex(int position) {return position - mBase;}
+    }
+}
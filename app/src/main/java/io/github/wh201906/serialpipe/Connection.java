@@ -1,6 +1,7 @@
 package io.github.wh201906.serialpipe;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface Connection
 {
@@ -12,10 +13,81 @@ public interface Connection
 
     default int read(byte[] buf) throws IOException {return read(buf, buf.length);}
 
+    // Reads into buf, starting at offset
+    // The default implementation needs a temporary array if offset is not 0
+    default int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        if (offset == 0) return read(buf, maxLength);
+
+        byte[] tmp = new byte[Math.min(buf.length - offset, maxLength)];
+        int readLen = read(tmp, tmp.length);
+        if (readLen > 0) System.arraycopy(tmp, 0, buf, offset, readLen);
+        return readLen;
+    }
+
+    // Reads into dst, starting at its position, then advances the position
+    default int read(ByteBuffer dst) throws IOException
+    {
+        int readLen;
+        if (dst.hasArray())
+        {
+            readLen = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (readLen > 0) dst.position(dst.position() + readLen);
+        }
+        else
+        {
+            byte[] tmp = new byte[dst.remaining()];
+            readLen = read(tmp, tmp.length);
+            if (readLen > 0) dst.put(tmp, 0, readLen);
+        }
+        return readLen;
+    }
+
     int write(byte[] data, int length) throws IOException;
 
     default int write(byte[] data) throws IOException {return write(data, data.length);}
 
+    // Writes data[offset, offset + length)
+    // The default implementation needs a temporary array if offset is not 0
+    default int write(byte[] data, int offset, int length) throws IOException
+    {
+        if (offset == 0) return write(data, length);
+
+        int writeLen = Math.min(data.length - offset, length);
+        byte[] tmp = new byte[writeLen];
+        System.arraycopy(data, offset, tmp, 0, writeLen);
+        return write(tmp, writeLen);
+    }
+
+    // Writes the remaining bytes of src, then advances its position
+    default int write(ByteBuffer src) throws IOException
+    {
+        int writeLen;
+        if (src.hasArray())
+        {
+            writeLen = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        }
+        else
+        {
+            byte[] tmp = new byte[src.remaining()];
+            src.duplicate().get(tmp);
+            writeLen = write(tmp, tmp.length);
+        }
+        if (writeLen > 0) src.position(src.position() + writeLen);
+        return writeLen;
+    }
+
+    // false while writes have nowhere to go, e.g. a server before the first client, they are discarded then
+    default boolean isPeerConnected() {return true;}
+
+    // Writes what the connection held back, e.g. StoreAndForwardConnection, the writer thread calls it after every forward
+    // Returns the number of bytes still held back, 0 lets the writer thread wait for new data
+    default int flush() throws IOException {return 0;}
+
+    // Changes when the connection starts talking to a different peer, e.g. a new TCP client,
+    // so the decorators which keep state about the stream, e.g. CompressedConnection, can start over
+    default int getPeerGeneration() {return 0;}
+
     Exception getLastException();
 
     boolean isOpened();
@@ -0,0 +1,66 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Adds a feature on top of another connection, which is opened and closed with it.
+// Everything is passed through, subclasses override what they change.
+public abstract class ConnectionDecorator implements Connection
+{
+    protected final Connection mConnection;
+
+    protected ConnectionDecorator(Connection connection) {mConnection = connection;}
+
+    // The decorated connection
+    public Connection getConnection() {return mConnection;}
+
+    // The first connection of the given type, starting from this one and going inwards, or null
+    public static <T extends Connection> T unwrap(Connection connection, Class<T> type)
+    {
+        while (true)
+        {
+            if (type.isInstance(connection)) return type.cast(connection);
+            if (!(connection instanceof ConnectionDecorator)) return null;
+            connection = ((ConnectionDecorator) connection).mConnection;
+        }
+    }
+
+    @Override
+    public boolean open() {return mConnection.open();}
+
+    @Override
+    public void close() {mConnection.close();}
+
+    @Override
+    public int read(byte[] buf, int maxLength) throws IOException {return read(buf, 0, maxLength);}
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException {return mConnection.read(buf, offset, maxLength);}
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {return mConnection.read(dst);}
+
+    @Override
+    public int write(byte[] data, int length) throws IOException {return write(data, 0, length);}
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException {return mConnection.write(data, offset, length);}
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {return mConnection.write(src);}
+
+    @Override
+    public boolean isPeerConnected() {return mConnection.isPeerConnected();}
+
+    @Override
+    public int flush() throws IOException {return mConnection.flush();}
+
+    @Override
+    public int getPeerGeneration() {return mConnection.getPeerGeneration();}
+
+    @Override
+    public Exception getLastException() {return mConnection.getLastException();}
+
+    @Override
+    public boolean isOpened() {return mConnection.isOpened();}
+}
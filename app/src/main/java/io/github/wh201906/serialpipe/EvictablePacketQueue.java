@@ -0,0 +1,10 @@
+package io.github.wh201906.serialpipe;
+
+// A PacketQueue whose producer can make room itself by removing the oldest packet, for OverflowPolicy.DROP_OLDEST
+public interface EvictablePacketQueue extends PacketQueue
+{
+    // Producer side, publishes without waiting for the consumer, removing the oldest packet if the queue is full
+    // Returns the removed packet (cleared), which the producer fills next instead of acquiring one, or null
+    // If there is still no room, buf itself is returned, i.e. the new packet is dropped instead
+    PacketBuffer publishEvicting(PacketBuffer buf);
+}
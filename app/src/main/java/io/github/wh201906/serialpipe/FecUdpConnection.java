@@ -0,0 +1,345 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Forward error correction for datagrams, the peer must use it too.
+// After every group of N datagrams, a parity datagram holds the XOR of their lengths and payloads,
+// so the receiver rebuilds one lost datagram per group without a round trip, at 1/N more traffic.
+// A group which isn't full is closed by flush() after GROUP_TIMEOUT_NANOS, so the last datagrams of a burst are covered too.
+// Datagrams are returned as they arrive, a rebuilt one once the rest of its group and the parity are there.
+// Wire format, big-endian:
+// DATA: type (1), group (4), index in group (1), payload
+// PARITY: type (1), group (4), datagrams in group (1), XOR of the 2-byte length + payload of each, zero-padded
+// RAW: type (1), payload, for datagrams longer than maxPayload, which aren't protected
+// Decodes the datagrams of one sender, nothing is allocated per datagram.
+public class FecUdpConnection extends ConnectionDecorator
+{
+    public static final int MIN_GROUP_SIZE = 2;
+    public static final int MAX_GROUP_SIZE = 64;
+    private static final byte TYPE_DATA = 0x11;
+    private static final byte TYPE_PARITY = 0x12;
+    private static final byte TYPE_RAW = 0x13;
+    private static final int HEADER_SIZE = 6;
+    private static final int RAW_HEADER_SIZE = 1;
+    private static final int LENGTH_SIZE = 2;
+    private static final long GROUP_TIMEOUT_NANOS = 20_000_000L;
+    // groups being decoded at once, datagrams of older ones are returned without decoding
+    private static final int GROUP_SLOTS = 4;
+    private static final int MAX_DATAGRAM = 65536;
+
+    private final int mGroupSize;
+    private final int mMaxPayload;
+
+    // encoder, writer thread only
+    private final byte[] mSendFrame;
+    private final byte[] mParityFrame;
+    private int mSendGroup = 0;
+    private int mSendIndex = 0;
+    // bytes of the parity block in use
+    private int mParityLength = 0;
+    private long mGroupStartNanos = 0;
+    private int mWritePeerGeneration = 0;
+    private byte[] mWriteCopy = null;
+
+    // decoder, reader thread only
+    private final byte[] mFrameBuffer = new byte[MAX_DATAGRAM];
+    private final int[] mSlotGroup = new int[GROUP_SLOTS];
+    private final boolean[] mIsSlotUsed = new boolean[GROUP_SLOTS];
+    // bit i: datagram i arrived or was rebuilt
+    private final long[] mSlotMask = new long[GROUP_SLOTS];
+    private final int[] mSlotReceived = new int[GROUP_SLOTS];
+    private final int[] mSlotMaxIndex = new int[GROUP_SLOTS];
+    // the size of the group, 0 until the parity arrives
+    private final int[] mSlotCount = new int[GROUP_SLOTS];
+    private final boolean[] mIsSlotDone = new boolean[GROUP_SLOTS];
+    // XOR of the parity and what arrived, which is the lost datagram once only one is missing
+    private final byte[][] mSlotXor;
+    private final int[] mSlotXorLength = new int[GROUP_SLOTS];
+    private final byte[] mRecovered;
+    private int mRecoveredLength = -1;
+    private int mReadPeerGeneration = 0;
+    private byte[] mReadCopy = null;
+
+    private volatile long mRecoveredDatagrams = 0;
+    private volatile long mLostDatagrams = 0;
+
+    // groupSize: MIN_GROUP_SIZE to MAX_GROUP_SIZE, maxPayload: the longest protected datagram, same on both sides
+    public FecUdpConnection(Connection connection, int groupSize, int maxPayload)
+    {
+        super(connection);
+        mGroupSize = Math.min(Math.max(groupSize, MIN_GROUP_SIZE), MAX_GROUP_SIZE);
+        mMaxPayload = Math.min(maxPayload, MAX_DATAGRAM - HEADER_SIZE - LENGTH_SIZE);
+        mSendFrame = new byte[HEADER_SIZE + mMaxPayload];
+        mParityFrame = new byte[HEADER_SIZE + LENGTH_SIZE + mMaxPayload];
+        mSlotXor = new byte[GROUP_SLOTS][LENGTH_SIZE + mMaxPayload];
+        mRecovered = new byte[mMaxPayload];
+    }
+
+    @Override
+    public boolean open()
+    {
+        startNewGroup();
+        resetDecoder();
+        return super.open();
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        int readLen = Math.min(buf.length - offset, maxLength);
+        if (mRecoveredLength >= 0) return takeRecovered(buf, offset, readLen);
+        while (true)
+        {
+            int length = mConnection.read(mFrameBuffer, 0, mFrameBuffer.length);
+            if (length <= 0) return 0;
+            int generation = mConnection.getPeerGeneration();
+            if (generation != mReadPeerGeneration)
+            {
+                // the groups of a new peer have nothing to do with the old one's
+                mReadPeerGeneration = generation;
+                resetDecoder();
+            }
+            byte type = mFrameBuffer[0];
+            if (type == TYPE_RAW)
+            {
+                return copyPayload(RAW_HEADER_SIZE, length - RAW_HEADER_SIZE, buf, offset, readLen);
+            }
+            else if (type == TYPE_DATA && length >= HEADER_SIZE)
+            {
+                // a duplicate of a rebuilt one is skipped
+                if (onData(getInt(mFrameBuffer, 1), mFrameBuffer[5] & 0xFF, length - HEADER_SIZE))
+                    return copyPayload(HEADER_SIZE, length - HEADER_SIZE, buf, offset, readLen);
+            }
+            else if (type == TYPE_PARITY && length >= HEADER_SIZE)
+            {
+                onParity(getInt(mFrameBuffer, 1), mFrameBuffer[5] & 0xFF, length - HEADER_SIZE);
+                if (mRecoveredLength >= 0) return takeRecovered(buf, offset, readLen);
+            }
+            // anything else, e.g. from a peer without FEC, is ignored
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (dst.hasArray())
+        {
+            int readLen = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.position() + readLen);
+            return readLen;
+        }
+        if (mReadCopy == null) mReadCopy = new byte[MAX_DATAGRAM];
+        int readLen = read(mReadCopy, 0, Math.min(dst.remaining(), mReadCopy.length));
+        dst.put(mReadCopy, 0, readLen);
+        return readLen;
+    }
+
+    // Returns 0 without a peer, like UdpConnection
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        int writeLen = Math.min(data.length - offset, length);
+        if (writeLen < 0 || !mConnection.isPeerConnected()) return 0;
+        int generation = mConnection.getPeerGeneration();
+        if (generation != mWritePeerGeneration)
+        {
+            // the parity of the open group covers datagrams the new peer never got, so it would rebuild the old peer's data
+            mWritePeerGeneration = generation;
+            if (mSendIndex > 0) mSendGroup++;
+            startNewGroup();
+        }
+        if (writeLen > mMaxPayload)
+        {
+            if (mWriteCopy == null) mWriteCopy = new byte[MAX_DATAGRAM];
+            writeLen = Math.min(writeLen, MAX_DATAGRAM - RAW_HEADER_SIZE);
+            mWriteCopy[0] = TYPE_RAW;
+            System.arraycopy(data, offset, mWriteCopy, RAW_HEADER_SIZE, writeLen);
+            return mConnection.write(mWriteCopy, 0, RAW_HEADER_SIZE + writeLen) > 0 ? writeLen : 0;
+        }
+
+        if (mSendIndex == 0) mGroupStartNanos = System.nanoTime();
+        mSendFrame[0] = TYPE_DATA;
+        putInt(mSendFrame, 1, mSendGroup);
+        mSendFrame[5] = (byte) mSendIndex;
+        System.arraycopy(data, offset, mSendFrame, HEADER_SIZE, writeLen);
+        if (mConnection.write(mSendFrame, 0, HEADER_SIZE + writeLen) == 0) return 0;
+        mParityFrame[HEADER_SIZE] ^= (byte) (writeLen >>> 8);
+        mParityFrame[HEADER_SIZE + 1] ^= (byte) writeLen;
+        xor(data, offset, mParityFrame, HEADER_SIZE + LENGTH_SIZE, writeLen);
+        mParityLength = Math.max(mParityLength, LENGTH_SIZE + writeLen);
+        if (++mSendIndex == mGroupSize) sendParity();
+        return writeLen;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (src.hasArray())
+        {
+            int written = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.position() + written);
+            return written;
+        }
+        if (mWriteCopy == null) mWriteCopy = new byte[MAX_DATAGRAM];
+        // the front is left for the RAW header
+        int length = Math.min(src.remaining(), mWriteCopy.length - RAW_HEADER_SIZE);
+        int position = src.position();
+        src.get(mWriteCopy, RAW_HEADER_SIZE, length);
+        int written = write(mWriteCopy, RAW_HEADER_SIZE, length);
+        src.position(position + written);
+        return written;
+    }
+
+    // Closes a group which has waited too long, returns the size of its parity
+    @Override
+    public int flush() throws IOException
+    {
+        if (mSendIndex > 0 && System.nanoTime() - mGroupStartNanos >= GROUP_TIMEOUT_NANOS) sendParity();
+        return mParityLength + mConnection.flush();
+    }
+
+    private void sendParity() throws IOException
+    {
+        mParityFrame[0] = TYPE_PARITY;
+        putInt(mParityFrame, 1, mSendGroup);
+        mParityFrame[5] = (byte) mSendIndex;
+        mConnection.write(mParityFrame, 0, HEADER_SIZE + mParityLength);
+        mSendGroup++;
+        startNewGroup();
+    }
+
+    // Drops the open group, its parity is never sent
+    private void startNewGroup()
+    {
+        Arrays.fill(mParityFrame, HEADER_SIZE, HEADER_SIZE + mParityLength, (byte) 0);
+        mSendIndex = 0;
+        mParityLength = 0;
+    }
+
+    private void resetDecoder()
+    {
+        Arrays.fill(mIsSlotUsed, false);
+        mRecoveredLength = -1;
+    }
+
+    // Returns false if the datagram was rebuilt already
+    private boolean onData(int group, int index, int payloadLength)
+    {
+        int slot = getSlot(group);
+        if (slot < 0 || index >= MAX_GROUP_SIZE || payloadLength > mMaxPayload) return true;
+        if ((mSlotMask[slot] & (1L << index)) != 0) return false;
+        mSlotMask[slot] |= 1L << index;
+        mSlotReceived[slot]++;
+        mSlotMaxIndex[slot] = Math.max(mSlotMaxIndex[slot], index);
+        byte[] slotXor = mSlotXor[slot];
+        slotXor[0] ^= (byte) (payloadLength >>> 8);
+        slotXor[1] ^= (byte) payloadLength;
+        xor(mFrameBuffer, HEADER_SIZE, slotXor, LENGTH_SIZE, payloadLength);
+        mSlotXorLength[slot] = Math.max(mSlotXorLength[slot], LENGTH_SIZE + payloadLength);
+        tryRecover(slot);
+        return true;
+    }
+
+    private void onParity(int group, int count, int blockLength)
+    {
+        int slot = getSlot(group);
+        if (slot < 0 || mSlotCount[slot] != 0 || count == 0 || count > MAX_GROUP_SIZE || blockLength > LENGTH_SIZE + mMaxPayload) return;
+        mSlotCount[slot] = count;
+        xor(mFrameBuffer, HEADER_SIZE, mSlotXor[slot], 0, blockLength);
+        mSlotXorLength[slot] = Math.max(mSlotXorLength[slot], blockLength);
+        tryRecover(slot);
+    }
+
+    private void tryRecover(int slot)
+    {
+        int count = mSlotCount[slot];
+        if (mIsSlotDone[slot] || count == 0) return;
+        if (mSlotReceived[slot] >= count)
+        {
+            mIsSlotDone[slot] = true;
+            return;
+        }
+        if (mSlotReceived[slot] != count - 1) return;
+        byte[] slotXor = mSlotXor[slot];
+        int length = (slotXor[0] & 0xFF) << 8 | (slotXor[1] & 0xFF);
+        mIsSlotDone[slot] = true;
+        if (length > mMaxPayload) return;
+        int missing = Long.numberOfTrailingZeros(~mSlotMask[slot]);
+        mSlotMask[slot] |= 1L << missing;
+        System.arraycopy(slotXor, LENGTH_SIZE, mRecovered, 0, length);
+        mRecoveredLength = length;
+        mRecoveredDatagrams++;
+    }
+
+    // The slot of the group, reused from the oldest one, -1 if the group is older than every slot
+    private int getSlot(int group)
+    {
+        int slot = group & (GROUP_SLOTS - 1);
+        if (mIsSlotUsed[slot] && mSlotGroup[slot] == group) return slot;
+        if (mIsSlotUsed[slot])
+        {
+            if (group - mSlotGroup[slot] < 0) return -1;
+            if (!mIsSlotDone[slot])
+            {
+                // without the parity, the lost ones after the last arrived one can't be counted
+                int count = mSlotCount[slot] != 0 ? mSlotCount[slot] : mSlotMaxIndex[slot] + 1;
+                mLostDatagrams += Math.max(count - mSlotReceived[slot], 0);
+            }
+        }
+        mIsSlotUsed[slot] = true;
+        mSlotGroup[slot] = group;
+        mSlotMask[slot] = 0;
+        mSlotReceived[slot] = 0;
+        mSlotMaxIndex[slot] = 0;
+        mSlotCount[slot] = 0;
+        mIsSlotDone[slot] = false;
+        Arrays.fill(mSlotXor[slot], 0, mSlotXorLength[slot], (byte) 0);
+        mSlotXorLength[slot] = 0;
+        return slot;
+    }
+
+    private int takeRecovered(byte[] buf, int offset, int readLen)
+    {
+        int length = Math.min(mRecoveredLength, readLen);
+        System.arraycopy(mRecovered, 0, buf, offset, length);
+        mRecoveredLength = -1;
+        return length;
+    }
+
+    // Longer datagrams are truncated, as a DatagramSocket does
+    private int copyPayload(int from, int length, byte[] buf, int offset, int readLen)
+    {
+        int copyLen = Math.min(length, readLen);
+        System.arraycopy(mFrameBuffer, from, buf, offset, copyLen);
+        return copyLen;
+    }
+
+    private static void xor(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+            dst[dstOffset + i] ^= src[srcOffset + i];
+    }
+
+    public int getGroupSize() {return mGroupSize;}
+
+    // Lost datagrams which were rebuilt
+    public long getRecoveredDatagrams() {return mRecoveredDatagrams;}
+
+    // Lost datagrams which couldn't be rebuilt, at least this many
+    public long getLostDatagrams() {return mLostDatagrams;}
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buf, int offset)
+    {
+        return (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+    }
+}
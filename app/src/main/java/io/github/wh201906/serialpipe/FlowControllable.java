@@ -0,0 +1,11 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+
+// A connection which can ask the other end to stop sending, used by OverflowPolicy.FLOW_CONTROL
+public interface FlowControllable
+{
+    void pauseSender() throws IOException;
+
+    void resumeSender() throws IOException;
+}
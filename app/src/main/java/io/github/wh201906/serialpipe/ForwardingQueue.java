@@ -0,0 +1,96 @@
+package io.github.wh201906.serialpipe;
+
+import org.jctools.queues.MessagePassingQueue;
+import org.jctools.queues.SpmcArrayQueue;
+import org.jctools.queues.SpscArrayQueue;
+
+// SpscArrayQueue, or SpmcArrayQueue if it's evictable, with a WaitStrategy on each side,
+// so neither the producer nor the consumer has to spin
+public class ForwardingQueue<E>
+{
+    private final MessagePassingQueue<E> mQueue;
+    private final boolean mIsEvictable;
+    private final WaitStrategy mNotEmpty;
+    private final WaitStrategy mNotFull;
+
+    private final WaitStrategy.ReadyCondition mHasData;
+    private final WaitStrategy.ReadyCondition mHasSpace;
+
+    public ForwardingQueue(int capacity, WaitStrategy.Type waitStrategyType) {this(capacity, waitStrategyType, false);}
+
+    // evictable: the producer can remove the oldest element with evict(),
+    // which needs a multi-consumer queue (SpmcArrayQueue), slightly slower on the consumer side
+    public ForwardingQueue(int capacity, WaitStrategy.Type waitStrategyType, boolean evictable)
+    {
+        mQueue = evictable ? new SpmcArrayQueue<>(capacity) : new SpscArrayQueue<>(capacity);
+        mIsEvictable = evictable;
+        mNotEmpty = waitStrategyType.create();
+        mNotFull = waitStrategyType.create();
+        mHasData = () -> !mQueue.isEmpty();
+        mHasSpace = () -> mQueue.size() < mQueue.capacity();
+    }
+
+    // Producer side, returns false if the queue is still full after timeoutNanos
+    public boolean offer(E e, long timeoutNanos)
+    {
+        if (!mQueue.offer(e))
+        {
+            long deadline = System.nanoTime() + timeoutNanos;
+            do
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !mNotFull.await(mHasSpace, remaining)) return false;
+            } while (!mQueue.offer(e));
+        }
+        mNotEmpty.signal();
+        return true;
+    }
+
+    public boolean offer(E e) {return offer(e, 0);}
+
+    // Consumer side, returns null if the queue is still empty after timeoutNanos
+    public E poll(long timeoutNanos)
+    {
+        E e = mQueue.poll();
+        if (e == null)
+        {
+            long deadline = System.nanoTime() + timeoutNanos;
+            do
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !mNotEmpty.await(mHasData, remaining)) return null;
+            } while ((e = mQueue.poll()) == null);
+        }
+        mNotFull.signal();
+        return e;
+    }
+
+    public E poll() {return poll(0);}
+
+    // Producer side, removes the oldest element to make room, only for evictable queues
+    // Returns null if the consumer took everything in the meantime
+    public E evict()
+    {
+        if (!mIsEvictable) throw new IllegalStateException("Queue is not evictable");
+        return mQueue.poll();
+    }
+
+    // Producer side, waits until at most maxSize elements are left, returns false on timeout
+    public boolean awaitSize(int maxSize, long timeoutNanos)
+    {
+        return mQueue.size() <= maxSize || mNotFull.await(() -> mQueue.size() <= maxSize, timeoutNanos);
+    }
+
+    public int size() {return mQueue.size();}
+
+    public int capacity() {return mQueue.capacity();}
+
+    public void clear() {mQueue.clear();}
+
+    public boolean isEvictable() {return mIsEvictable;}
+
+    // How long the consumer took to run again after being signalled
+    public long getLastWakeUpLatencyNanos() {return mNotEmpty.getLastWakeUpLatencyNanos();}
+
+    public long getMaxWakeUpLatencyNanos() {return mNotEmpty.getMaxWakeUpLatencyNanos();}
+}
@@ -0,0 +1,44 @@
+package io.github.wh201906.serialpipe;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ThreadFactory;
+
+// Creates the forwarding threads of a Bridge with a Linux priority (Process.THREAD_PRIORITY_*).
+// Only the priority is set: Android has no public API to pin a thread to a core,
+// where an urgent thread runs is up to the scheduler of the device.
+public class ForwardingThreadFactory implements ThreadFactory
+{
+    private static final String TAG = "ForwardingThreadFactory";
+
+    private final int mPriority;
+
+    public ForwardingThreadFactory(int priority) {mPriority = priority;}
+
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+        return new Thread(() ->
+        {
+            setPriority(mPriority);
+            runnable.run();
+        });
+    }
+
+    // Lower is more urgent
+    public int getPriority() {return mPriority;}
+
+    private void setPriority(int priority)
+    {
+        try
+        {
+            Process.setThreadPriority(priority);
+        } catch (SecurityException | IllegalArgumentException e)
+        {
+            // some ROMs refuse the audio priorities to apps
+            Log.w(TAG, "Failed to set thread priority " + priority, e);
+            if (priority < Process.THREAD_PRIORITY_URGENT_DISPLAY) setPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        }
+    }
+}
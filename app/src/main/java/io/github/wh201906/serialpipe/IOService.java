@@ -22,44 +22,133 @@ import androidx.core.app.NotificationCompat;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
-import org.jctools.queues.SpscArrayQueue;
-
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class IOService extends Service
 {
     private static final String TAG = "IOService";
     private static final int BUFFER_SIZE = 4096;
+    // the packet limit of the pooled queue, which is only used for OverflowPolicy.DROP_OLDEST
     private static final int MESSAGE_NUM = 512;
+    private static final long METRICS_SAMPLE_INTERVAL_MILLIS = 1000;
+    // in event loop mode, every read returns after this long without data, so the other jobs of the thread get their turn
+    private static final int EVENT_LOOP_POLL_MILLIS = 20;
+    // the largest UDP datagram, serial reads are smaller
+    private static final int CAPTURE_SNAP_LENGTH = 65535;
+    // per port and direction, a burst larger than this is dropped from the capture, not from the traffic
+    private static final int CAPTURE_RING_BYTES = 1024 * 1024;
+    // serial data held while no client is connected, in memory, then in a file
+    private static final int STORE_FORWARD_MEMORY_BYTES = 1024 * 1024;
+    private static final int STORE_FORWARD_FILE_BYTES = 64 * 1024 * 1024;
+    // the longest datagram FEC protects is the packet size or this, whichever is larger
+    private static final int FEC_MIN_PAYLOAD = 1472;
+    // over plain UDP, a lost frame costs the ones after it until the next keyframe
+    private static final int COMPRESSION_KEYFRAME_INTERVAL = 32;
 
     private final IBinder binder = new LocalBinder();
     private Notification notification;
+    private NotificationCompat.Builder notificationBuilder;
+
+    private WaitStrategy.Type waitStrategyType = WaitStrategy.Type.SPIN_PARK;
+    // what the reader does when the other side can't keep up
+    private OverflowPolicy netOverflowPolicy = OverflowPolicy.BLOCK;
+    private OverflowPolicy serialOverflowPolicy = OverflowPolicy.BLOCK;
+    // the byte ring of each direction
+    private int queueCapacityBytes = 256 * 1024;
+    private boolean isNetQueueDirect = false;
+    // the forwarding threads
+    private ForwardingThreadFactory forwardingThreadFactory = new ForwardingThreadFactory(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+    // one thread per pipeline instead of four, for low-rate links
+    private boolean isEventLoop = false;
 
-    private SpscArrayQueue<byte[]> udpReceiveQueue = new SpscArrayQueue<>(MESSAGE_NUM);
-    private byte[] udpReceiveBuf = new byte[BUFFER_SIZE];
-    private Connection udpConnection = new UdpConnection();
+    private NetworkTransport netTransport = NetworkTransport.UDP;
+    private int netInboundPort = 0;
+    // TCP client mode: the n-th serial port connects to remotePort + n
+    private String tcpRemoteHost = null;
+    private int tcpRemotePort = 0;
+    private boolean tcpNoDelay = true;
+    // 0: system default
+    private int tcpSendBufferSize = 0;
+    private int tcpReceiveBufferSize = 0;
+    // serial data is split into datagrams by size, idle gap (in character times) or delimiter
+    private int udpPacketMaxBytes = 1472;
+    private float udpPacketIdleGapChars = 0;
+    private int udpPacketDelimiter = Packetizer.NO_DELIMITER;
+    // like socat's fork: every client gets the serial data
+    private boolean isUdpMultiPeerEnabled = true;
+    private long udpPeerIdleTimeoutMillis = 60_000;
+    // 0: system default
+    private int udpSendBufferSize = 0;
+    private int udpReceiveBufferSize = 0;
+    // UDP_NIO only: one packet per burst of datagrams instead of one per datagram
+    private boolean isUdpBurstReceive = false;
+    // hold serial data until a client is connected, instead of dropping it
+    private boolean isStoreAndForwardEnabled = false;
+    // UDP only, sequence numbers and retransmission, the client must use it too
+    private boolean isReliableUdpEnabled = false;
+    // UDP only, a parity datagram after every group of this many, 0: off
+    private int fecGroupSize = 0;
+    // compress what goes to the network, the client must use it too
+    private boolean isCompressionEnabled = false;
 
-    private SpscArrayQueue<byte[]> serialReceiveQueue = new SpscArrayQueue<>(MESSAGE_NUM);
-    private byte[] serialReceiveBuf = new byte[BUFFER_SIZE];
     private UsbSerialDriver serialUsbDriver = null;
-    private Connection usbSerialConnection = new UsbSerialConnection();
+    private int serialBaudrate = 115200;
+    private int serialDataBits = UsbSerialPort.DATABITS_8;
+    private int serialStopBits = UsbSerialPort.STOPBITS_1;
+    private int serialParity = UsbSerialPort.PARITY_NONE;
+    private UsbSerialConnection.FlowControl serialFlowControl = UsbSerialConnection.FlowControl.NONE;
+    // false: only bridge the first port of a multi-port adapter
+    private boolean isAllSerialPortsBridged = false;
+    // packets from UDP are merged into one serial write up to this size, 0 to disable
+    private int serialWriteBatchBytes = BUFFER_SIZE;
+    private int serialReadTimeoutMillis = 2000;
+    private int serialWriteTimeoutMillis = 2000;
+    // the largest serial read, higher baudrates need larger bulk transfers to keep up
+    private int serialReadBufferSize = BUFFER_SIZE;
+    private boolean isSerialReadSizeAdaptive = false;
+    // keep this many USB read requests queued instead of reading synchronously, 0 to disable
+    private int serialAsyncReadRequests = 0;
+    private long serialWriteBatchDelayNanos = 0;
+
+    // pipeline i bridges serial port i and UDP port (inbound port + i)
+    // Pipelines share nothing, so their threads never wait for each other
+    private final List<Pipeline> pipelines = new CopyOnWriteArrayList<>();
 
     private boolean ignoreSocketError = true;
     private boolean ignoreSerialError = true;
-    private boolean isTrafficLoggingEnabled = false;
+    // null if not capturing
+    private TrafficCapture trafficCapture = null;
 
     private final List<WeakReference<OnErrorListener>> onErrorListenerList = new ArrayList<>();
+    private final List<WeakReference<OnMetricsListener>> onMetricsListenerList = new ArrayList<>();
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    // the sampler runs on the UI thread while anything is connected
+    private final Runnable metricsSampler = () -> sampleMetrics();
+    private boolean isMetricsSampling = false;
+    private String metricsSummary = "";
+    // UI thread only, of the running capture
+    private long lastCaptureDroppedPackets = 0;
+    // reads /proc/net/udp for the kernel drops, which is too slow for the UI thread with many sockets
+    private final ExecutorService kernelDropSampler = Executors.newSingleThreadExecutor();
+    // USB control transfers for the serial line settings, kept off the UI thread
+    private final ExecutorService serialControlExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean isKernelDropSamplePending = false;
 
     @Override
     public void onCreate()
     {
         super.onCreate();
         notification = createNotification();
+        pipelines.add(new Pipeline(0));
     }
 
     @Override
@@ -75,184 +164,740 @@ public class IOService extends Service
     public boolean startUdpSocket()
     {
         ignoreSocketError = false;
-        ((UdpConnection) udpConnection).setIsServerMode(true);
-        ((UdpConnection) udpConnection).setAlwaysUpdateOutboundSocketAddress(true);
-        if (!udpConnection.open())
+        for (Pipeline pipeline : pipelines)
         {
-            udpConnection.getLastException().printStackTrace();
-            return false;
+            if (!pipeline.startUdpSocket())
+            {
+                stopUdpSocket();
+                return false;
+            }
         }
+        startMetricsSampling();
+        return true;
+    }
 
-        new Thread(() ->
+    public void stopUdpSocket()
+    {
+        // default: user triggered
+        stopUdpSocket(true);
+    }
+
+    public void stopUdpSocket(boolean userTriggered)
+    {
+        if (userTriggered) ignoreSocketError = true;
+        for (Pipeline pipeline : pipelines)
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
-            while (udpConnection.isOpened())
-            {
-                int receiveLen;
-                try
-                {
-                    receiveLen = udpConnection.read(udpReceiveBuf);
-                    if (receiveLen == 0) continue;
-                    byte[] buf = Arrays.copyOf(udpReceiveBuf, receiveLen);
-                    while (!udpReceiveQueue.offer(buf)) ;
-                } catch (Exception e)
-                {
-                    e.printStackTrace();
-                    // stopUdpSocket() should be called before calling onUdpError() of every listener
-                    // Because the listener calls syncIoServiceState() to get a proper UI state
-                    stopUdpSocket();
-                    if (!ignoreSocketError) uiHandler.post(() ->
-                    {
-                        for (WeakReference<OnErrorListener> listenerRef : onErrorListenerList)
-                        {
-                            OnErrorListener listener = listenerRef.get();
-                            if (listener != null) listener.onUdpError(e);
-                        }
-                    });
-                    break;
-                }
-            }
-        }).start();
+            pipeline.stopUdpSocket();
+        }
+    }
 
-        new Thread(() ->
+    // Records the traffic of every port into capture-<time>.pcap in the app's external files directory,
+    // can be toggled while forwarding. Returns false if the file can't be created
+    public boolean setTrafficCapture(boolean enabled)
+    {
+        if (enabled == (trafficCapture != null)) return true;
+        if (!enabled)
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
-            while (udpConnection.isOpened())
+            // detach first, so the writer sees no new packets while draining
+            TrafficCapture capture = trafficCapture;
+            trafficCapture = null;
+            for (Pipeline pipeline : pipelines)
             {
-                try
-                {
-                    byte[] data = null;
-                    while (data == null) data = serialReceiveQueue.poll();
-                    udpConnection.write(data);
-                } catch (Exception e)
-                {
-                    e.printStackTrace();
-                    // stopUdpSocket() should be called before calling onUdpError() of every listener
-                    // Because the listener calls syncIoServiceState() to get a proper UI state
-                    stopUdpSocket();
-                    if (!ignoreSocketError) uiHandler.post(() ->
-                    {
-                        for (WeakReference<OnErrorListener> listenerRef : onErrorListenerList)
-                        {
-                            OnErrorListener listener = listenerRef.get();
-                            if (listener != null) listener.onUdpError(e);
-                        }
-                    });
-                    break;
-                }
+                pipeline.attachCapture(null);
             }
-        }).start();
+            capture.stop();
+            return true;
+        }
 
+        File dir = getExternalFilesDir(null);
+        if (dir == null) dir = getFilesDir();
+        TrafficCapture capture = new TrafficCapture(new File(dir, "capture-" + System.currentTimeMillis() + ".pcap"), CAPTURE_SNAP_LENGTH, CAPTURE_RING_BYTES);
+        if (!capture.start())
+        {
+            Log.e(TAG, "Failed to start traffic capture", capture.getLastException());
+            return false;
+        }
+        trafficCapture = capture;
+        lastCaptureDroppedPackets = 0;
+        for (Pipeline pipeline : pipelines)
+        {
+            pipeline.attachCapture(capture);
+        }
         return true;
     }
 
-    public void stopUdpSocket()
+    // null if not capturing
+    public TrafficCapture getTrafficCapture() {return trafficCapture;}
+
+    // The queues are shared by both sides, so the strategy can only be changed when nothing is running
+    public boolean setWaitStrategy(WaitStrategy.Type type)
+    {
+        if (getIsSocketConnected() || getIsSerialConnected()) return false;
+        waitStrategyType = type;
+        boolean isApplied = true;
+        for (Pipeline pipeline : pipelines)
+        {
+            isApplied &= pipeline.createQueues();
+        }
+        return isApplied;
+    }
+
+    public WaitStrategy.Type getWaitStrategy() {return waitStrategyType;}
+
+    // netPolicy: for data read from the network, serialPolicy: for data read from the serial port
+    // DROP_OLDEST needs a different queue, so the policies can only be changed when nothing is running
+    public boolean setOverflowPolicy(OverflowPolicy netPolicy, OverflowPolicy serialPolicy)
+    {
+        if (getIsSocketConnected() || getIsSerialConnected()) return false;
+        netOverflowPolicy = netPolicy;
+        serialOverflowPolicy = serialPolicy;
+        boolean isApplied = true;
+        for (Pipeline pipeline : pipelines)
+        {
+            isApplied &= pipeline.createQueues();
+        }
+        return isApplied;
+    }
+
+    public OverflowPolicy getNetOverflowPolicy() {return netOverflowPolicy;}
+
+    // capacityBytes: the memory of each direction's queue
+    // netQueueDirect: allocate the queue of network data off-heap, the NIO UDP transport receives into it without a copy
+    public boolean setQueueMemory(int capacityBytes, boolean netQueueDirect)
+    {
+        if (getIsSocketConnected() || getIsSerialConnected()) return false;
+        queueCapacityBytes = capacityBytes;
+        isNetQueueDirect = netQueueDirect;
+        boolean isApplied = true;
+        for (Pipeline pipeline : pipelines)
+        {
+            isApplied &= pipeline.createQueues();
+        }
+        return isApplied;
+    }
+
+    public OverflowPolicy getSerialOverflowPolicy() {return serialOverflowPolicy;}
+
+    // priority: Process.THREAD_PRIORITY_*, lower is more urgent
+    // eventLoop: forward both directions of a pipeline with a single thread, which wakes up less often but adds up to
+    // EVENT_LOOP_POLL_MILLIS of latency, for low-rate links on battery
+    // The threads are created when a side is started, so this can only be changed when nothing is running
+    public boolean setForwardingThreads(int priority, boolean eventLoop)
+    {
+        if (getIsSocketConnected() || getIsSerialConnected()) return false;
+        forwardingThreadFactory = new ForwardingThreadFactory(priority);
+        isEventLoop = eventLoop;
+        boolean isApplied = true;
+        for (Pipeline pipeline : pipelines)
+        {
+            isApplied &= pipeline.configureThreads();
+        }
+        return isApplied;
+    }
+
+    public boolean isEventLoop() {return isEventLoop;}
+
+    // The n-th serial port uses inboundPort + n, also used by the TCP server
+    public void setInboundPort(int inboundPort) {netInboundPort = inboundPort;}
+
+    // Takes effect on the next startUdpSocket()
+    public void setUdpMultiPeer(boolean enabled, long peerIdleTimeoutMillis)
+    {
+        isUdpMultiPeerEnabled = enabled;
+        udpPeerIdleTimeoutMillis = peerIdleTimeoutMillis;
+    }
+
+    // Takes effect on the next startUdpSocket(), buffer size 0: system default
+    // burstReceive: UDP_NIO only, see NioUdpConnection
+    public void setUdpSocketOptions(int sendBufferSize, int receiveBufferSize, boolean burstReceive)
     {
-        ignoreSocketError = true;
-        udpConnection.close();
+        udpSendBufferSize = Math.max(sendBufferSize, 0);
+        udpReceiveBufferSize = Math.max(receiveBufferSize, 0);
+        isUdpBurstReceive = burstReceive;
     }
 
-    public void setTrafficLogging(boolean enabled) {isTrafficLoggingEnabled = enabled;}
+    // Takes effect on the next startUdpSocket()
+    // The held data is replayed at the byte rate of the serial line, and lost when the server is stopped
+    public void setStoreAndForward(boolean enabled) {isStoreAndForwardEnabled = enabled;}
+
+    // Takes effect on the next startUdpSocket(), see ReliableUdpConnection
+    // Turns the multi-peer mode off, the stream goes to one client only
+    public void setReliableUdp(boolean enabled) {isReliableUdpEnabled = enabled;}
+
+    // Takes effect on the next startUdpSocket(), see FecUdpConnection, the client must use the same group size
+    // groupSize: 0 for off, otherwise FecUdpConnection.MIN_GROUP_SIZE to MAX_GROUP_SIZE
+    // Turns the multi-peer mode off like setReliableUdp()
+    public void setFecGroupSize(int groupSize)
+    {
+        fecGroupSize = groupSize <= 0 ? 0 : Math.min(Math.max(groupSize, FecUdpConnection.MIN_GROUP_SIZE), FecUdpConnection.MAX_GROUP_SIZE);
+    }
 
-    public void setInboundPort(int inboundPort) {((UdpConnection) udpConnection).setInboundPort(inboundPort);}
+    // Takes effect on the next startUdpSocket(), see CompressedConnection
+    // Turns the multi-peer mode off like setReliableUdp()
+    public void setCompression(boolean enabled) {isCompressionEnabled = enabled;}
+
+    public boolean setNetworkTransport(NetworkTransport transport)
+    {
+        if (getIsSocketConnected()) return false;
+        netTransport = transport;
+        return true;
+    }
+
+    public NetworkTransport getNetworkTransport() {return netTransport;}
+
+    // Takes effect on the next startUdpSocket()
+    public void setTcpRemote(String host, int port)
+    {
+        tcpRemoteHost = host;
+        tcpRemotePort = port;
+    }
+
+    // Takes effect on the next startUdpSocket(), buffer size 0: system default
+    public void setTcpOptions(boolean noDelay, int sendBufferSize, int receiveBufferSize)
+    {
+        tcpNoDelay = noDelay;
+        tcpSendBufferSize = Math.max(sendBufferSize, 0);
+        tcpReceiveBufferSize = Math.max(receiveBufferSize, 0);
+    }
 
     public void setSerialUsbDriver(UsbSerialDriver driver) {serialUsbDriver = driver;}
 
-    public void setSerialBaudrate(int baudrate) {((UsbSerialConnection) usbSerialConnection).setBaudRate(baudrate);}
+    public void setSerialBaudrate(int baudrate) {serialBaudrate = baudrate;}
+
+    // Applied to the connected ports right away, no need to reconnect
+    // dataBits, stopBits, parity: UsbSerialPort.DATABITS_*, STOPBITS_*, PARITY_*
+    public void setSerialLineSettings(int dataBits, int stopBits, int parity, UsbSerialConnection.FlowControl flowControl)
+    {
+        serialDataBits = dataBits;
+        serialStopBits = stopBits;
+        serialParity = parity;
+        serialFlowControl = flowControl;
+        for (Pipeline pipeline : pipelines)
+        {
+            pipeline.applySerialLineSettings();
+        }
+    }
+
+    public int getSerialDataBits() {return serialDataBits;}
+
+    public int getSerialStopBits() {return serialStopBits;}
+
+    public int getSerialParity() {return serialParity;}
+
+    public UsbSerialConnection.FlowControl getSerialFlowControl() {return serialFlowControl;}
+
+    // Takes effect on the next connectToSerial()
+    public void setBridgeAllSerialPorts(boolean enabled) {isAllSerialPortsBridged = enabled;}
+
+    // Takes effect on the next startUdpSocket()
+    // delimiter: 0-255, or Packetizer.NO_DELIMITER
+    public void setUdpPacketizing(int maxBytes, float idleGapChars, int delimiter)
+    {
+        udpPacketMaxBytes = Math.max(maxBytes, 1);
+        udpPacketIdleGapChars = Math.max(idleGapChars, 0);
+        udpPacketDelimiter = delimiter;
+    }
+
+    // Takes effect on the next connectToSerial()
+    public void setSerialWriteBatching(int maxBytes, long maxDelayMicros)
+    {
+        serialWriteBatchBytes = Math.max(maxBytes, 0);
+        serialWriteBatchDelayNanos = Math.max(maxDelayMicros, 0) * 1000;
+    }
+
+    // Takes effect on the next connectToSerial()
+    // A read times out with no data, so a short read timeout also makes closing and error detection faster
+    public void setSerialTimeouts(int readMillis, int writeMillis)
+    {
+        serialReadTimeoutMillis = Math.max(readMillis, 1);
+        serialWriteTimeoutMillis = Math.max(writeMillis, 1);
+    }
+
+    // Takes effect on the next connectToSerial()
+    // requestCount: bulk-in requests kept queued, so no data waits for the next read at high baudrates, 0 to read synchronously
+    public void setSerialAsyncRead(int requestCount) {serialAsyncReadRequests = Math.max(requestCount, 0);}
 
-    public boolean getIsSocketConnected() {return udpConnection.isOpened();}
+    public int getSerialAsyncRead() {return serialAsyncReadRequests;}
 
-    public boolean getIsSerialConnected() {return usbSerialConnection.isOpened();}
+    // bufferSize: the largest serial read, adaptive: read about 10ms of line data at a time, in whole USB packets
+    // The queue is sized for the buffer, so it can only be changed when nothing is running
+    public boolean setSerialReadSizing(int bufferSize, boolean adaptive)
+    {
+        if (getIsSocketConnected() || getIsSerialConnected()) return false;
+        serialReadBufferSize = Math.max(bufferSize, 64);
+        isSerialReadSizeAdaptive = adaptive;
+        boolean isApplied = true;
+        for (Pipeline pipeline : pipelines)
+        {
+            isApplied &= pipeline.createQueues();
+        }
+        return isApplied;
+    }
+
+    public boolean getIsSocketConnected()
+    {
+        for (Pipeline pipeline : pipelines)
+        {
+            if (pipeline.netConnection.isOpened()) return true;
+        }
+        return false;
+    }
+
+    public boolean getIsSerialConnected()
+    {
+        for (Pipeline pipeline : pipelines)
+        {
+            if (pipeline.usbSerialConnection.isOpened()) return true;
+        }
+        return false;
+    }
 
     public boolean connectToSerial()
     {
         UsbManager manager = (UsbManager) getSystemService(Context.USB_SERVICE);
-        UsbDeviceConnection connection = manager.openDevice(serialUsbDriver.getDevice());
-        if (connection == null) return false;
+        List<UsbSerialPort> ports = serialUsbDriver.getPorts();
+        int portNum = isAllSerialPortsBridged ? ports.size() : 1;
+        prunePipelines(portNum);
         ignoreSerialError = false;
-        UsbSerialPort usbSerialPort = serialUsbDriver.getPorts().get(0);
-        ((UsbSerialConnection) usbSerialConnection).setUsbConnection(connection);
-        ((UsbSerialConnection) usbSerialConnection).setUsbPort(usbSerialPort);
-        if (!usbSerialConnection.open())
+        for (int i = 0; i < portNum; i++)
         {
-            usbSerialConnection.getLastException().printStackTrace();
-            return false;
+            // UsbSerialPort.close() also closes its UsbDeviceConnection, so every port needs its own
+            UsbDeviceConnection connection = manager.openDevice(serialUsbDriver.getDevice());
+            if (connection == null || !getPipeline(i).connectToSerial(connection, ports.get(i)))
+            {
+                disconnectFromSerial(true);
+                return false;
+            }
         }
-        new Thread(() ->
+        // new ports while the server is running
+        if (getIsSocketConnected())
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
-            while (usbSerialConnection.isOpened())
+            for (int i = 1; i < portNum; i++)
             {
-                int receiveLen;
-                try
-                {
-                    receiveLen = usbSerialConnection.read(serialReceiveBuf);
-                    if (receiveLen == 0) continue;
-                    byte[] buf = Arrays.copyOf(serialReceiveBuf, receiveLen);
-                    while (!serialReceiveQueue.offer(buf)) ;
-                } catch (Exception e)
-                {
-                    e.printStackTrace();
-                    // disconnectFromSerial() should be called before calling onSerialError() of every listener
-                    // Because the listener calls syncIoServiceState() to get a proper UI state
-                    disconnectFromSerial(false);
-                    if (!ignoreSerialError) uiHandler.post(() ->
+                Pipeline pipeline = pipelines.get(i);
+                if (!pipeline.netConnection.isOpened() && !pipeline.startUdpSocket())
+                    Log.w(TAG, "Failed to open network connection for serial port " + i);
+            }
+        }
+        startMetricsSampling();
+        return true;
+    }
+
+    private Pipeline getPipeline(int index)
+    {
+        while (pipelines.size() <= index) pipelines.add(new Pipeline(pipelines.size()));
+        return pipelines.get(index);
+    }
+
+    // Drops the pipelines of the ports that are no longer bridged, so their sockets are not opened again
+    private void prunePipelines(int count)
+    {
+        for (int i = pipelines.size() - 1; i >= Math.max(count, 1); i--)
+        {
+            Pipeline pipeline = pipelines.remove(i);
+            pipeline.stopUdpSocket();
+            pipeline.disconnectFromSerial();
+        }
+    }
+
+    // Only the failed pipeline is stopped, the other ports keep forwarding
+    private void onUdpError(Pipeline pipeline, Exception e)
+    {
+        e.printStackTrace();
+        // stopUdpSocket() should be called before calling onUdpError() of every listener
+        // Because the listener calls syncIoServiceState() to get a proper UI state
+        pipeline.stopUdpSocket();
+        if (!ignoreSocketError) uiHandler.post(() ->
+        {
+            for (WeakReference<OnErrorListener> listenerRef : onErrorListenerList)
+            {
+                OnErrorListener listener = listenerRef.get();
+                if (listener != null) listener.onUdpError(e);
+            }
+        });
+    }
+
+    private void onSerialError(Pipeline pipeline, Exception e)
+    {
+        e.printStackTrace();
+        // disconnectFromSerial() should be called before calling onSerialError() of every listener
+        // Because the listener calls syncIoServiceState() to get a proper UI state
+        pipeline.disconnectFromSerial();
+        if (!ignoreSerialError) uiHandler.post(() ->
+        {
+            for (WeakReference<OnErrorListener> listenerRef : onErrorListenerList)
+            {
+                OnErrorListener listener = listenerRef.get();
+                if (listener != null) listener.onSerialError(e);
+            }
+        });
+    }
+
+    // One serial port and its UDP socket, bridged with their own queues and forwarding threads
+    private class Pipeline
+    {
+        private final int index;
+        private final Bridge.End netEnd;
+        private final Bridge.End serialEnd;
+        private final Bridge bridge;
+        private volatile Connection netConnection = new UdpConnection();
+        private final UsbSerialConnection usbSerialConnection = new UsbSerialConnection();
+        private Packetizer udpPacketizer = null;
+        private final TrafficMetrics netToSerialMetrics;
+        private final TrafficMetrics serialToNetMetrics;
+        // from kernelDropSampler, -1 if unknown
+        private volatile long kernelDrops = -1;
+        // UI thread only
+        private TrafficMetrics.Snapshot lastNetToSerialSnapshot = null;
+        private TrafficMetrics.Snapshot lastSerialToNetSnapshot = null;
+
+        Pipeline(int index)
+        {
+            this.index = index;
+            netEnd = new Bridge.End("net" + index);
+            serialEnd = new Bridge.End("serial" + index);
+            configureEnds();
+            bridge = new Bridge(netEnd, serialEnd);
+            configureThreads();
+            bridge.setErrorListener((end, e) ->
+            {
+                if (end == netEnd) onUdpError(this, e);
+                else onSerialError(this, e);
+            });
+            netToSerialMetrics = netEnd.getMetrics();
+            serialToNetMetrics = serialEnd.getMetrics();
+            attachCapture(trafficCapture);
+        }
+
+        void attachCapture(TrafficCapture capture)
+        {
+            netEnd.setCapture(capture == null ? null : capture.addChannel(TrafficCapture.DIRECTION_FROM_NETWORK, index));
+            serialEnd.setCapture(capture == null ? null : capture.addChannel(TrafficCapture.DIRECTION_FROM_SERIAL, index));
+        }
+
+        // false if the threads of a stopped side are still exiting, see Bridge.EXIT_WAIT_MILLIS
+        boolean createQueues()
+        {
+            configureEnds();
+            return bridge.createQueues();
+        }
+
+        boolean configureThreads()
+        {
+            bridge.setThreadFactory(forwardingThreadFactory);
+            return bridge.setEventLoop(isEventLoop);
+        }
+
+        private void configureEnds()
+        {
+            configureEnd(netEnd, netOverflowPolicy, BUFFER_SIZE, isNetQueueDirect);
+            configureEnd(serialEnd, serialOverflowPolicy, serialReadBufferSize, false);
+        }
+
+        private void configureEnd(Bridge.End end, OverflowPolicy policy, int bufferSize, boolean direct)
+        {
+            end.setOverflowPolicy(policy);
+            end.setBufferSize(bufferSize);
+            end.setQueueDirect(direct);
+            end.setQueueCapacityBytes(queueCapacityBytes);
+            end.setQueueCapacityPackets(MESSAGE_NUM);
+            end.setWaitStrategyType(waitStrategyType);
+        }
+
+        boolean startUdpSocket()
+        {
+            Connection connection = createNetConnection();
+            if (isCompressionEnabled)
+            {
+                // TCP and reliable UDP lose nothing
+                boolean isLossy = (netTransport == NetworkTransport.UDP || netTransport == NetworkTransport.UDP_NIO) && !isReliableUdpEnabled;
+                connection = new CompressedConnection(connection, isLossy ? COMPRESSION_KEYFRAME_INTERVAL : 0);
+            }
+            if (isStoreAndForwardEnabled)
+            {
+                StoreAndForwardConnection storeAndForward = new StoreAndForwardConnection(connection, STORE_FORWARD_MEMORY_BYTES,
+                        new File(getCacheDir(), "store-forward-" + index + ".bin"), STORE_FORWARD_FILE_BYTES);
+                storeAndForward.setReplayBytesPerSecond(1_000_000_000L / Math.max(usbSerialConnection.getCharTimeNanos(), 1));
+                connection = storeAndForward;
+            }
+            netConnection = connection;
+            if (!connection.open())
+            {
+                // TCP client without a remote host fails without an exception
+                if (connection.getLastException() != null) connection.getLastException().printStackTrace();
+                return false;
+            }
+
+            Packetizer packetizer = new Packetizer(udpPacketMaxBytes, getUdpPacketIdleGapNanos(), udpPacketDelimiter);
+            udpPacketizer = packetizer;
+            netEnd.setWriter(packetizer);
+            if (!bridge.start(netEnd, connection))
+            {
+                Log.e(TAG, "The previous threads of " + netEnd.getName() + " are still running");
+                connection.close();
+                return false;
+            }
+
+            return true;
+        }
+
+        void stopUdpSocket() {netConnection.close();}
+
+        private Connection createNetConnection()
+        {
+            int inboundPort = netInboundPort + index;
+            switch (netTransport)
+            {
+                case TCP_SERVER:
+                case TCP_CLIENT:
+                    TcpConnection tcpConnection = new TcpConnection();
+                    tcpConnection.setIsServerMode(netTransport == NetworkTransport.TCP_SERVER);
+                    tcpConnection.setLocalPort(inboundPort);
+                    tcpConnection.setRemoteHost(tcpRemoteHost);
+                    tcpConnection.setRemotePort(tcpRemotePort + index);
+                    tcpConnection.setTcpNoDelay(tcpNoDelay);
+                    tcpConnection.setSendBufferSize(tcpSendBufferSize);
+                    tcpConnection.setReceiveBufferSize(tcpReceiveBufferSize);
+                    if (isEventLoop) tcpConnection.setReadTimeoutMillis(EVENT_LOOP_POLL_MILLIS);
+                    return tcpConnection;
+                case UDP_NIO:
+                case UDP:
+                default:
+                    UdpConnection udpConnection = netTransport == NetworkTransport.UDP_NIO ? new NioUdpConnection() : new UdpConnection();
+                    udpConnection.setInboundPort(inboundPort);
+                    udpConnection.setIsServerMode(true);
+                    udpConnection.setAlwaysUpdateOutboundSocketAddress(true);
+                    // the reliable, FEC and compression decoders keep the state of a single peer
+                    udpConnection.setMultiPeerEnabled(isUdpMultiPeerEnabled && !isReliableUdpEnabled && fecGroupSize == 0 && !isCompressionEnabled);
+                    udpConnection.setPeerIdleTimeoutMillis(udpPeerIdleTimeoutMillis);
+                    udpConnection.setSendBufferSize(udpSendBufferSize);
+                    udpConnection.setReceiveBufferSize(udpReceiveBufferSize);
+                    // burst reads merge datagrams, the reliable and FEC frames need their boundaries
+                    if (udpConnection instanceof NioUdpConnection) ((NioUdpConnection) udpConnection).setBurstReceive(isUdpBurstReceive && !isReliableUdpEnabled && fecGroupSize == 0);
+                    if (isEventLoop)
                     {
-                        for (WeakReference<OnErrorListener> listenerRef : onErrorListenerList)
+                        // a blocking channel ignores the socket timeout
+                        if (udpConnection instanceof NioUdpConnection)
                         {
-                            OnErrorListener listener = listenerRef.get();
-                            if (listener != null) listener.onSerialError(e);
+                            ((NioUdpConnection) udpConnection).setNonBlocking(true);
+                            ((NioUdpConnection) udpConnection).setSelectTimeoutMillis(EVENT_LOOP_POLL_MILLIS);
                         }
-                    });
-                    break;
-                }
+                        else
+                        {
+                            udpConnection.setReadTimeoutMillis(EVENT_LOOP_POLL_MILLIS);
+                        }
+                    }
+                    Connection connection = udpConnection;
+                    // the frames of ReliableUdpConnection are protected too
+                    if (fecGroupSize > 0) connection = new FecUdpConnection(connection, fecGroupSize, Math.max(udpPacketMaxBytes, FEC_MIN_PAYLOAD));
+                    return isReliableUdpEnabled ? new ReliableUdpConnection(connection) : connection;
             }
-        }).start();
+        }
 
-        new Thread(() ->
+        boolean connectToSerial(UsbDeviceConnection deviceConnection, UsbSerialPort port)
         {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
-            while (usbSerialConnection.isOpened())
+            UsbSerialConnection connection = usbSerialConnection;
+            connection.setBaudRate(serialBaudrate);
+            connection.setDataBits(serialDataBits);
+            connection.setStopBits(serialStopBits);
+            connection.setParity(serialParity);
+            connection.setReadTimeoutMillis(isEventLoop ? Math.min(serialReadTimeoutMillis, EVENT_LOOP_POLL_MILLIS) : serialReadTimeoutMillis);
+            connection.setWriteTimeoutMillis(serialWriteTimeoutMillis);
+            connection.setAdaptiveReadSize(isSerialReadSizeAdaptive);
+            // before Android 8, waiting for a request has no timeout
+            connection.setAsyncRead(serialAsyncReadRequests > 0 && (!isEventLoop || Build.VERSION.SDK_INT >= Build.VERSION_CODES.O));
+            if (serialAsyncReadRequests > 0) connection.setAsyncRequestCount(serialAsyncReadRequests);
+            connection.setUsbConnection(deviceConnection);
+            connection.setUsbPort(port);
+            connection.setFlowControl(serialFlowControl);
+            if (!connection.open())
+            {
+                connection.getLastException().printStackTrace();
+                return false;
+            }
+            // the character time depends on the serial settings
+            Packetizer packetizer = udpPacketizer;
+            if (packetizer != null) packetizer.setIdleGapNanos(getUdpPacketIdleGapNanos());
+
+            serialEnd.setWriter(new WriteCoalescer(serialWriteBatchBytes, serialWriteBatchDelayNanos));
+            if (!bridge.start(serialEnd, connection))
+            {
+                Log.e(TAG, "The previous threads of " + serialEnd.getName() + " are still running");
+                connection.close();
+                return false;
+            }
+
+            return true;
+        }
+
+        void disconnectFromSerial() {usbSerialConnection.close();}
+
+        void applySerialLineSettings()
+        {
+            UsbSerialConnection connection = usbSerialConnection;
+            connection.setLineParameters(serialDataBits, serialStopBits, serialParity);
+            connection.setFlowControl(serialFlowControl);
+            serialControlExecutor.execute(() ->
             {
                 try
                 {
-                    byte[] data = null;
-                    while (data == null) data = udpReceiveQueue.poll();
-                    usbSerialConnection.write(data);
-                } catch (Exception e)
+                    connection.applyLineSettings();
+                } catch (IOException e)
                 {
-                    e.printStackTrace();
-                    // disconnectFromSerial() should be called before calling onSerialError() of every listener
-                    // Because the listener calls syncIoServiceState() to get a proper UI state
-                    disconnectFromSerial(false);
-                    if (!ignoreSerialError) uiHandler.post(() ->
-                    {
-                        for (WeakReference<OnErrorListener> listenerRef : onErrorListenerList)
-                        {
-                            OnErrorListener listener = listenerRef.get();
-                            if (listener != null) listener.onSerialError(e);
-                        }
-                    });
-                    break;
+                    onSerialError(this, e);
                 }
-            }
-        }).start();
+            });
+            // the character time depends on the serial settings
+            Packetizer packetizer = udpPacketizer;
+            if (packetizer != null) packetizer.setIdleGapNanos(getUdpPacketIdleGapNanos());
+        }
 
-        return true;
+        private long getUdpPacketIdleGapNanos()
+        {
+            return (long) (udpPacketIdleGapChars * usbSerialConnection.getCharTimeNanos());
+        }
     }
 
-    private void logTraffic(String source, byte[] data)
+    private void startMetricsSampling()
     {
-        try
+        if (isMetricsSampling) return;
+        isMetricsSampling = true;
+        uiHandler.postDelayed(metricsSampler, METRICS_SAMPLE_INTERVAL_MILLIS);
+    }
+
+    private void sampleMetrics()
+    {
+        boolean isRunning = getIsSocketConnected() || getIsSerialConnected();
+        long netToSerialRate = 0;
+        long serialToNetRate = 0;
+        StringBuilder summary = new StringBuilder();
+        boolean hasUdpConnection = false;
+        for (Pipeline pipeline : pipelines)
+        {
+            TrafficMetrics.Snapshot netToSerial = pipeline.netToSerialMetrics.snapshot();
+            TrafficMetrics.Snapshot serialToNet = pipeline.serialToNetMetrics.snapshot();
+            if (pipeline.lastNetToSerialSnapshot != null && (pipeline.index == 0 || pipeline.usbSerialConnection.isOpened()))
+            {
+                netToSerialRate += netToSerial.getSendRate(pipeline.lastNetToSerialSnapshot);
+                serialToNetRate += serialToNet.getSendRate(pipeline.lastSerialToNetSnapshot);
+                if (pipelines.size() > 1) summary.append('#').append(pipeline.index).append('\n');
+                summary.append(formatMetrics(R.string.metrics_net_to_serial, netToSerial, pipeline.lastNetToSerialSnapshot)).append('\n');
+                summary.append(formatMetrics(R.string.metrics_serial_to_net, serialToNet, pipeline.lastSerialToNetSnapshot)).append('\n');
+                if (pipeline.usbSerialConnection.isWriteStalled())
+                    summary.append(getString(R.string.metrics_serial_stalled, pipeline.usbSerialConnection.getWriteStallMillis())).append('\n');
+                Connection netConnection = pipeline.netConnection;
+                UdpConnection udpConnection = ConnectionDecorator.unwrap(netConnection, UdpConnection.class);
+                if (udpConnection != null && udpConnection.isOpened())
+                {
+                    hasUdpConnection = true;
+                    long kernelDrops = pipeline.kernelDrops;
+                    summary.append(getString(R.string.metrics_udp, formatBytes(udpConnection.getEffectiveReceiveBufferSize()),
+                            kernelDrops < 0 ? "-" : String.valueOf(kernelDrops), udpConnection.getNoPeerDrops())).append('\n');
+                }
+                ReliableUdpConnection reliableUdp = ConnectionDecorator.unwrap(netConnection, ReliableUdpConnection.class);
+                if (reliableUdp != null && reliableUdp.isOpened())
+                {
+                    summary.append(getString(R.string.metrics_reliable_udp, formatNanos(reliableUdp.getSmoothedRttNanos()),
+                            formatNanos(reliableUdp.getRtoNanos()), reliableUdp.getRetransmissions(), formatBytes(reliableUdp.getUnackedBytes()))).append('\n');
+                }
+                CompressedConnection compressed = ConnectionDecorator.unwrap(netConnection, CompressedConnection.class);
+                if (compressed != null && compressed.isOpened())
+                {
+                    summary.append(getString(R.string.metrics_compression, compressed.getCompressionRatio(),
+                            formatNanos(compressed.getCompressNanosPerMegabyte()), formatNanos(compressed.getDecompressNanosPerMegabyte()),
+                            compressed.getSkippedFrames())).append('\n');
+                }
+                FecUdpConnection fec = ConnectionDecorator.unwrap(netConnection, FecUdpConnection.class);
+                if (fec != null && fec.isOpened())
+                {
+                    summary.append(getString(R.string.metrics_fec, fec.getGroupSize(), fec.getRecoveredDatagrams(), fec.getLostDatagrams())).append('\n');
+                }
+                StoreAndForwardConnection storeAndForward = ConnectionDecorator.unwrap(netConnection, StoreAndForwardConnection.class);
+                if (storeAndForward != null && (storeAndForward.getHeldBytes() > 0 || storeAndForward.getDroppedBytes() > 0))
+                {
+                    summary.append(getString(R.string.metrics_store_forward, formatBytes(storeAndForward.getHeldBytes()),
+                            formatBytes(storeAndForward.getDroppedBytes()))).append('\n');
+                }
+            }
+            pipeline.lastNetToSerialSnapshot = netToSerial;
+            pipeline.lastSerialToNetSnapshot = serialToNet;
+        }
+        // shown on the next sample, skipped while the previous read is still going
+        if (hasUdpConnection && !isKernelDropSamplePending)
         {
-            Log.w(TAG, "From " + source + ": " + new String(data, "UTF-8"));
-        } catch (Exception e)
+            isKernelDropSamplePending = true;
+            kernelDropSampler.execute(this::sampleKernelDrops);
+        }
+        TrafficCapture capture = trafficCapture;
+        if (capture != null)
         {
-            e.printStackTrace();
+            long droppedPackets = capture.getDroppedPackets();
+            // on top, the total at the bottom is easy to miss
+            if (droppedPackets > lastCaptureDroppedPackets)
+                summary.insert(0, getString(R.string.metrics_capture_dropping, droppedPackets - lastCaptureDroppedPackets) + '\n');
+            lastCaptureDroppedPackets = droppedPackets;
+            summary.append(getString(R.string.metrics_capture, capture.getCapturedPackets(), formatBytes(capture.getFileBytes()), droppedPackets));
         }
+        metricsSummary = summary.toString().trim();
 
+        String notificationText = isRunning ? getString(R.string.notification_metrics, formatBytes(netToSerialRate), formatBytes(serialToNetRate)) : getString(R.string.app_name);
+        notification = notificationBuilder.setContentText(notificationText).build();
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(1, notification);
+
+        Iterator<WeakReference<OnMetricsListener>> iterator = onMetricsListenerList.iterator();
+        while (iterator.hasNext())
+        {
+            OnMetricsListener listener = iterator.next().get();
+            if (listener == null) iterator.remove();
+            else listener.onMetricsSampled(metricsSummary);
+        }
+
+        if (isRunning) uiHandler.postDelayed(metricsSampler, METRICS_SAMPLE_INTERVAL_MILLIS);
+        else isMetricsSampling = false;
+    }
+
+    // Runs on kernelDropSampler
+    private void sampleKernelDrops()
+    {
+        for (Pipeline pipeline : pipelines)
+        {
+            UdpConnection udpConnection = ConnectionDecorator.unwrap(pipeline.netConnection, UdpConnection.class);
+            pipeline.kernelDrops = udpConnection != null && udpConnection.isOpened() ? udpConnection.getKernelDrops() : -1;
+        }
+        isKernelDropSamplePending = false;
     }
 
+    private String formatMetrics(int directionResId, TrafficMetrics.Snapshot current, TrafficMetrics.Snapshot previous)
+    {
+        return getString(R.string.metrics_line, getString(directionResId), formatBytes(current.getSendRate(previous)),
+                formatNanos(current.getWriteLatencyPercentileNanos(99, previous)), current.getQueueHighWaterMark(),
+                Math.round(current.getReaderStallRatio(previous) * 100), current.getDroppedPackets());
+    }
+
+    private static String formatBytes(long bytes)
+    {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static String formatNanos(long nanos)
+    {
+        if (nanos < 1_000_000) return (nanos / 1000) + " \u00B5s";
+        return String.format(Locale.US, "%.1f ms", nanos / 1_000_000.0);
+    }
+
+    // Per pipeline and direction, updated every second while anything is connected
+    public String getMetricsSummary() {return metricsSummary;}
+
+    // The raw counters of pipeline i (serial port i)
+    public TrafficMetrics getNetToSerialMetrics(int pipelineIndex) {return pipelines.get(pipelineIndex).netToSerialMetrics;}
+
+    public TrafficMetrics getSerialToNetMetrics(int pipelineIndex) {return pipelines.get(pipelineIndex).serialToNetMetrics;}
+
+    public int getPipelineCount() {return pipelines.size();}
+
     public void disconnectFromSerial()
     {
         // default: user triggered
@@ -262,7 +907,10 @@ public class IOService extends Service
     public void disconnectFromSerial(boolean userTriggered)
     {
         if (userTriggered) ignoreSerialError = true;
-        usbSerialConnection.close();
+        for (Pipeline pipeline : pipelines)
+        {
+            pipeline.disconnectFromSerial();
+        }
     }
 
     public class LocalBinder extends Binder
@@ -278,7 +926,9 @@ public class IOService extends Service
         PendingIntent loadActivityPendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         intent.setAction(MainActivity.ACTION_EXIT);
         PendingIntent exitPendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, appName).setContentTitle(appName).setContentText(appName).setSmallIcon(R.mipmap.ic_launcher).setContentIntent(loadActivityPendingIntent).addAction(R.mipmap.ic_launcher, getString(R.string.notification_exit), exitPendingIntent);
+        // updated with the throughput every second, so it must not make a sound every time
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, appName).setContentTitle(appName).setContentText(appName).setSmallIcon(R.mipmap.ic_launcher).setContentIntent(loadActivityPendingIntent).addAction(R.mipmap.ic_launcher, getString(R.string.notification_exit), exitPendingIntent).setOnlyAlertOnce(true);
+        notificationBuilder = builder;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
         {
             NotificationChannel channel = new NotificationChannel(appName, appName, NotificationManager.IMPORTANCE_DEFAULT);
@@ -288,6 +938,16 @@ public class IOService extends Service
         return builder.build();
     }
 
+    public enum NetworkTransport
+    {
+        // DatagramSocket
+        UDP,
+        // DatagramChannel with direct buffers
+        UDP_NIO,
+        TCP_SERVER,
+        TCP_CLIENT
+    }
+
     public interface OnErrorListener
     {
         void onUdpError(Exception e);
@@ -295,6 +955,33 @@ public class IOService extends Service
         void onSerialError(Exception e);
     }
 
+    public interface OnMetricsListener
+    {
+        // Called on the UI thread
+        void onMetricsSampled(String summary);
+    }
+
+    public void addOnMetricsListener(OnMetricsListener listener)
+    {
+        if (listener == null) return;
+        for (WeakReference<OnMetricsListener> ref : onMetricsListenerList)
+        {
+            if (listener.equals(ref.get())) return;
+        }
+        onMetricsListenerList.add(new WeakReference<>(listener));
+    }
+
+    public void removeOnMetricsListener(OnMetricsListener listener)
+    {
+        // this will also remove null listener
+        Iterator<WeakReference<OnMetricsListener>> iterator = onMetricsListenerList.iterator();
+        while (iterator.hasNext())
+        {
+            OnMetricsListener existingElement = iterator.next().get();
+            if (existingElement == null || existingElement.equals(listener)) iterator.remove();
+        }
+    }
+
     public void addOnErrorListener(OnErrorListener listener)
     {
         if (listener == null) return;
@@ -330,6 +1017,10 @@ public class IOService extends Service
         stopUdpSocket();
         // No need to show errors when the service is destroyed
         disconnectFromSerial(true);
+        uiHandler.removeCallbacks(metricsSampler);
+        kernelDropSampler.shutdownNow();
+        serialControlExecutor.shutdownNow();
+        setTrafficCapture(false);
         super.onDestroy();
     }
 }
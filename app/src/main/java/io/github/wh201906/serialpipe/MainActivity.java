@@ -13,20 +13,30 @@ import android.hardware.usb.UsbManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
 
+import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.Locale;
 
-public class MainActivity extends AppCompatActivity implements IOService.OnErrorListener
+public class MainActivity extends AppCompatActivity implements IOService.OnErrorListener, IOService.OnMetricsListener
 {
     private static final String TAG = "MainActivity";
     private static final String ACTION_USB_PERMISSION = "io.github.wh201906.serialpipe.ACTION_USB_PERMISSION";
@@ -34,7 +44,43 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
     public static final String ACTION_EXIT = "io.github.wh201906.serialpipe.ACTION_EXIT";
 
     private static final String KEY_SERIAL_BAUDRATE = "io.github.wh201906.serialpipe.KEY_SERIAL_BAUDRATE";
+    private static final String KEY_NET_TRANSPORT = "io.github.wh201906.serialpipe.KEY_NET_TRANSPORT";
+    private static final String KEY_NET_REMOTE = "io.github.wh201906.serialpipe.KEY_NET_REMOTE";
+    private static final String KEY_NET_TCP_NO_DELAY = "io.github.wh201906.serialpipe.KEY_NET_TCP_NO_DELAY";
+    private static final String KEY_NET_SOCKET_BUFFER = "io.github.wh201906.serialpipe.KEY_NET_SOCKET_BUFFER";
+    private static final String KEY_NET_BURST_RECEIVE = "io.github.wh201906.serialpipe.KEY_NET_BURST_RECEIVE";
+    private static final String KEY_NET_STORE_FORWARD = "io.github.wh201906.serialpipe.KEY_NET_STORE_FORWARD";
+    private static final String KEY_NET_RELIABLE_UDP = "io.github.wh201906.serialpipe.KEY_NET_RELIABLE_UDP";
+    private static final String KEY_NET_FEC_GROUP = "io.github.wh201906.serialpipe.KEY_NET_FEC_GROUP";
+    private static final String KEY_NET_COMPRESSION = "io.github.wh201906.serialpipe.KEY_NET_COMPRESSION";
     private static final String KEY_NET_PORT_INBOUND = "io.github.wh201906.serialpipe.KEY_NET_PORT_INBOUND";
+    private static final String KEY_NET_PACKET_SIZE = "io.github.wh201906.serialpipe.KEY_NET_PACKET_SIZE";
+    private static final String KEY_NET_PACKET_IDLE_GAP = "io.github.wh201906.serialpipe.KEY_NET_PACKET_IDLE_GAP";
+    private static final String KEY_NET_PACKET_DELIMITER = "io.github.wh201906.serialpipe.KEY_NET_PACKET_DELIMITER";
+    private static final String KEY_SERIAL_WRITE_BATCH = "io.github.wh201906.serialpipe.KEY_SERIAL_WRITE_BATCH";
+    private static final String KEY_SERIAL_WRITE_BATCH_DELAY = "io.github.wh201906.serialpipe.KEY_SERIAL_WRITE_BATCH_DELAY";
+    private static final String KEY_SERIAL_READ_BUFFER = "io.github.wh201906.serialpipe.KEY_SERIAL_READ_BUFFER";
+    private static final String KEY_SERIAL_TIMEOUT = "io.github.wh201906.serialpipe.KEY_SERIAL_TIMEOUT";
+    private static final String KEY_SERIAL_ADAPTIVE_READ = "io.github.wh201906.serialpipe.KEY_SERIAL_ADAPTIVE_READ";
+    private static final String KEY_SERIAL_ASYNC_READ = "io.github.wh201906.serialpipe.KEY_SERIAL_ASYNC_READ";
+    private static final int ASYNC_READ_REQUESTS = 4;
+    private static final String KEY_SERIAL_DATA_BITS = "io.github.wh201906.serialpipe.KEY_SERIAL_DATA_BITS";
+    private static final String KEY_SERIAL_STOP_BITS = "io.github.wh201906.serialpipe.KEY_SERIAL_STOP_BITS";
+    private static final String KEY_SERIAL_PARITY = "io.github.wh201906.serialpipe.KEY_SERIAL_PARITY";
+    private static final String KEY_SERIAL_FLOW_CONTROL = "io.github.wh201906.serialpipe.KEY_SERIAL_FLOW_CONTROL";
+    // in the order of the stop bits spinner
+    private static final int[] STOP_BITS = {UsbSerialPort.STOPBITS_1, UsbSerialPort.STOPBITS_1_5, UsbSerialPort.STOPBITS_2};
+    private static final String KEY_NET_OVERFLOW = "io.github.wh201906.serialpipe.KEY_NET_OVERFLOW";
+    private static final String KEY_SERIAL_OVERFLOW = "io.github.wh201906.serialpipe.KEY_SERIAL_OVERFLOW";
+    private static final String KEY_SERIAL_ALL_PORTS = "io.github.wh201906.serialpipe.KEY_SERIAL_ALL_PORTS";
+    private static final String KEY_THREAD_MODE = "io.github.wh201906.serialpipe.KEY_THREAD_MODE";
+    private static final String KEY_THREAD_PRIORITY = "io.github.wh201906.serialpipe.KEY_THREAD_PRIORITY";
+    // in the order of the thread mode spinner
+    private static final int THREAD_MODE_SINGLE = 1;
+    // in the order of the thread priority spinner
+    private static final int[] THREAD_PRIORITIES = {Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_DISPLAY,
+            Process.THREAD_PRIORITY_URGENT_DISPLAY, Process.THREAD_PRIORITY_AUDIO, Process.THREAD_PRIORITY_URGENT_AUDIO};
+    private static final int DEFAULT_THREAD_PRIORITY_INDEX = 2;
 
     private IOService ioService = null;
     private boolean isIoServiceBound = false;
@@ -44,7 +90,36 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
     Button connectDisconnectSerialButton = null;
     Button startStopServerButton = null;
     EditText baudrateEdit = null;
+    Spinner transportSpinner = null;
     EditText inboundPortEdit = null;
+    EditText remoteEdit = null;
+    CheckBox tcpNoDelayCheckBox = null;
+    EditText socketBufferEdit = null;
+    CheckBox burstReceiveCheckBox = null;
+    CheckBox storeForwardCheckBox = null;
+    CheckBox reliableUdpCheckBox = null;
+    EditText fecGroupEdit = null;
+    CheckBox compressionCheckBox = null;
+    EditText packetSizeEdit = null;
+    EditText idleGapEdit = null;
+    EditText delimiterEdit = null;
+    Spinner netOverflowSpinner = null;
+    EditText writeBatchEdit = null;
+    EditText writeBatchDelayEdit = null;
+    EditText readBufferEdit = null;
+    EditText serialTimeoutEdit = null;
+    CheckBox adaptiveReadCheckBox = null;
+    CheckBox asyncReadCheckBox = null;
+    Spinner serialOverflowSpinner = null;
+    Spinner dataBitsSpinner = null;
+    Spinner stopBitsSpinner = null;
+    Spinner paritySpinner = null;
+    Spinner flowControlSpinner = null;
+    CheckBox allPortsCheckBox = null;
+    Spinner threadModeSpinner = null;
+    Spinner threadPrioritySpinner = null;
+    CheckBox captureTrafficCheckBox = null;
+    TextView metricsTextView = null;
 
     SharedPreferences activityPreferences = null;
 
@@ -78,8 +153,11 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
             IOService.LocalBinder binder = (IOService.LocalBinder) service;
             ioService = binder.getService();
             isIoServiceBound = true;
+            applySerialLineSettings();
             syncIoServiceState();
             ioService.addOnErrorListener(MainActivity.this);
+            ioService.addOnMetricsListener(MainActivity.this);
+            metricsTextView.setText(ioService.getMetricsSummary());
         }
 
         @Override
@@ -113,12 +191,83 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
         connectDisconnectSerialButton = findViewById(R.id.connectDisconnectSerialButton);
         Button aboutButton = findViewById(R.id.aboutButton);
         Button exitButton = findViewById(R.id.exitButton);
+        transportSpinner = findViewById(R.id.transportSpinner);
         inboundPortEdit = findViewById(R.id.portEditText);
-        CheckBox loggingTrafficCheckBox = findViewById(R.id.loggingTrafficCheckBox);
+        remoteEdit = findViewById(R.id.remoteEditText);
+        tcpNoDelayCheckBox = findViewById(R.id.tcpNoDelayCheckBox);
+        socketBufferEdit = findViewById(R.id.socketBufferEditText);
+        burstReceiveCheckBox = findViewById(R.id.burstReceiveCheckBox);
+        storeForwardCheckBox = findViewById(R.id.storeForwardCheckBox);
+        reliableUdpCheckBox = findViewById(R.id.reliableUdpCheckBox);
+        fecGroupEdit = findViewById(R.id.fecGroupEditText);
+        compressionCheckBox = findViewById(R.id.compressionCheckBox);
+        packetSizeEdit = findViewById(R.id.packetSizeEditText);
+        idleGapEdit = findViewById(R.id.idleGapEditText);
+        delimiterEdit = findViewById(R.id.delimiterEditText);
+        netOverflowSpinner = findViewById(R.id.netOverflowSpinner);
         baudrateEdit = findViewById(R.id.baudrateEditText);
-
+        dataBitsSpinner = findViewById(R.id.dataBitsSpinner);
+        stopBitsSpinner = findViewById(R.id.stopBitsSpinner);
+        paritySpinner = findViewById(R.id.paritySpinner);
+        flowControlSpinner = findViewById(R.id.flowControlSpinner);
+        writeBatchEdit = findViewById(R.id.writeBatchEditText);
+        writeBatchDelayEdit = findViewById(R.id.writeBatchDelayEditText);
+        readBufferEdit = findViewById(R.id.readBufferEditText);
+        serialTimeoutEdit = findViewById(R.id.serialTimeoutEditText);
+        adaptiveReadCheckBox = findViewById(R.id.adaptiveReadCheckBox);
+        asyncReadCheckBox = findViewById(R.id.asyncReadCheckBox);
+        serialOverflowSpinner = findViewById(R.id.serialOverflowSpinner);
+        allPortsCheckBox = findViewById(R.id.allPortsCheckBox);
+        threadModeSpinner = findViewById(R.id.threadModeSpinner);
+        threadPrioritySpinner = findViewById(R.id.threadPrioritySpinner);
+        captureTrafficCheckBox = findViewById(R.id.captureTrafficCheckBox);
+        metricsTextView = findViewById(R.id.metricsTextView);
+
+        transportSpinner.setSelection(activityPreferences.getInt(KEY_NET_TRANSPORT, IOService.NetworkTransport.UDP.ordinal()));
         inboundPortEdit.setText(String.valueOf(activityPreferences.getInt(KEY_NET_PORT_INBOUND, 18888)));
+        remoteEdit.setText(activityPreferences.getString(KEY_NET_REMOTE, ""));
+        tcpNoDelayCheckBox.setChecked(activityPreferences.getBoolean(KEY_NET_TCP_NO_DELAY, true));
+        // 0: system default
+        socketBufferEdit.setText(String.valueOf(activityPreferences.getInt(KEY_NET_SOCKET_BUFFER, 0)));
+        burstReceiveCheckBox.setChecked(activityPreferences.getBoolean(KEY_NET_BURST_RECEIVE, false));
+        storeForwardCheckBox.setChecked(activityPreferences.getBoolean(KEY_NET_STORE_FORWARD, false));
+        reliableUdpCheckBox.setChecked(activityPreferences.getBoolean(KEY_NET_RELIABLE_UDP, false));
+        fecGroupEdit.setText(String.valueOf(activityPreferences.getInt(KEY_NET_FEC_GROUP, 0)));
+        compressionCheckBox.setChecked(activityPreferences.getBoolean(KEY_NET_COMPRESSION, false));
+        packetSizeEdit.setText(String.valueOf(activityPreferences.getInt(KEY_NET_PACKET_SIZE, 1472)));
+        idleGapEdit.setText(String.valueOf(activityPreferences.getFloat(KEY_NET_PACKET_IDLE_GAP, 0)));
+        int delimiter = activityPreferences.getInt(KEY_NET_PACKET_DELIMITER, Packetizer.NO_DELIMITER);
+        delimiterEdit.setText(delimiter == Packetizer.NO_DELIMITER ? "" : String.format(Locale.US, "%02X", delimiter));
         baudrateEdit.setText(String.valueOf(activityPreferences.getInt(KEY_SERIAL_BAUDRATE, 115200)));
+        // the data bits spinner starts from 5
+        dataBitsSpinner.setSelection(activityPreferences.getInt(KEY_SERIAL_DATA_BITS, UsbSerialPort.DATABITS_8) - UsbSerialPort.DATABITS_5);
+        stopBitsSpinner.setSelection(activityPreferences.getInt(KEY_SERIAL_STOP_BITS, 0));
+        paritySpinner.setSelection(activityPreferences.getInt(KEY_SERIAL_PARITY, UsbSerialPort.PARITY_NONE));
+        flowControlSpinner.setSelection(activityPreferences.getInt(KEY_SERIAL_FLOW_CONTROL, UsbSerialConnection.FlowControl.NONE.ordinal()));
+        // these can be changed while connected
+        AdapterView.OnItemSelectedListener lineSettingsListener = new AdapterView.OnItemSelectedListener()
+        {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {applySerialLineSettings();}
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+        };
+        dataBitsSpinner.setOnItemSelectedListener(lineSettingsListener);
+        stopBitsSpinner.setOnItemSelectedListener(lineSettingsListener);
+        paritySpinner.setOnItemSelectedListener(lineSettingsListener);
+        flowControlSpinner.setOnItemSelectedListener(lineSettingsListener);
+        writeBatchEdit.setText(String.valueOf(activityPreferences.getInt(KEY_SERIAL_WRITE_BATCH, 4096)));
+        writeBatchDelayEdit.setText(String.valueOf(activityPreferences.getInt(KEY_SERIAL_WRITE_BATCH_DELAY, 0)));
+        allPortsCheckBox.setChecked(activityPreferences.getBoolean(KEY_SERIAL_ALL_PORTS, false));
+        readBufferEdit.setText(String.valueOf(activityPreferences.getInt(KEY_SERIAL_READ_BUFFER, 4096)));
+        serialTimeoutEdit.setText(String.valueOf(activityPreferences.getInt(KEY_SERIAL_TIMEOUT, 2000)));
+        adaptiveReadCheckBox.setChecked(activityPreferences.getBoolean(KEY_SERIAL_ADAPTIVE_READ, false));
+        asyncReadCheckBox.setChecked(activityPreferences.getBoolean(KEY_SERIAL_ASYNC_READ, false));
+        netOverflowSpinner.setSelection(activityPreferences.getInt(KEY_NET_OVERFLOW, OverflowPolicy.BLOCK.ordinal()));
+        serialOverflowSpinner.setSelection(activityPreferences.getInt(KEY_SERIAL_OVERFLOW, OverflowPolicy.BLOCK.ordinal()));
+        threadModeSpinner.setSelection(activityPreferences.getInt(KEY_THREAD_MODE, 0));
+        threadPrioritySpinner.setSelection(activityPreferences.getInt(KEY_THREAD_PRIORITY, DEFAULT_THREAD_PRIORITY_INDEX));
 
         startStopServerButton.setOnClickListener(v ->
         {
@@ -126,9 +275,46 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
 
             if (!ioService.getIsSocketConnected())
             {
+                String remote = remoteEdit.getText().toString().trim();
+                InetSocketAddress remoteAddress = remote.isEmpty() ? null : parseRemote(remote);
+                if (!remote.isEmpty() && remoteAddress == null)
+                {
+                    Toast.makeText(MainActivity.this, getString(R.string.toast_invalid_remote), Toast.LENGTH_SHORT).show();
+                    return;
+                }
                 int inboundPort = Integer.parseInt(inboundPortEdit.getText().toString());
                 ioService.setInboundPort(inboundPort);
                 activityPreferences.edit().putInt(KEY_NET_PORT_INBOUND, inboundPort).apply();
+                int transport = transportSpinner.getSelectedItemPosition();
+                ioService.setNetworkTransport(IOService.NetworkTransport.values()[transport]);
+                if (remoteAddress != null)
+                    ioService.setTcpRemote(remoteAddress.getHostName(), remoteAddress.getPort());
+                else
+                    ioService.setTcpRemote(null, 0);
+                boolean tcpNoDelay = tcpNoDelayCheckBox.isChecked();
+                int socketBuffer = Integer.parseInt(socketBufferEdit.getText().toString());
+                boolean burstReceive = burstReceiveCheckBox.isChecked();
+                boolean storeForward = storeForwardCheckBox.isChecked();
+                boolean reliableUdp = reliableUdpCheckBox.isChecked();
+                int fecGroup = Integer.parseInt(fecGroupEdit.getText().toString());
+                boolean compression = compressionCheckBox.isChecked();
+                ioService.setTcpOptions(tcpNoDelay, socketBuffer * 1024, socketBuffer * 1024);
+                ioService.setUdpSocketOptions(socketBuffer * 1024, socketBuffer * 1024, burstReceive);
+                ioService.setStoreAndForward(storeForward);
+                ioService.setReliableUdp(reliableUdp);
+                ioService.setFecGroupSize(fecGroup);
+                ioService.setCompression(compression);
+                activityPreferences.edit().putInt(KEY_NET_TRANSPORT, transport).putString(KEY_NET_REMOTE, remote).putBoolean(KEY_NET_TCP_NO_DELAY, tcpNoDelay)
+                        .putInt(KEY_NET_SOCKET_BUFFER, socketBuffer).putBoolean(KEY_NET_BURST_RECEIVE, burstReceive)
+                        .putBoolean(KEY_NET_STORE_FORWARD, storeForward).putBoolean(KEY_NET_RELIABLE_UDP, reliableUdp)
+                        .putInt(KEY_NET_FEC_GROUP, fecGroup).putBoolean(KEY_NET_COMPRESSION, compression).apply();
+                int packetSize = Integer.parseInt(packetSizeEdit.getText().toString());
+                float idleGap = Float.parseFloat(idleGapEdit.getText().toString());
+                String delimiterText = delimiterEdit.getText().toString().trim();
+                int packetDelimiter = delimiterText.isEmpty() ? Packetizer.NO_DELIMITER : Integer.parseInt(delimiterText, 16) & 0xFF;
+                ioService.setUdpPacketizing(packetSize, idleGap, packetDelimiter);
+                activityPreferences.edit().putInt(KEY_NET_PACKET_SIZE, packetSize).putFloat(KEY_NET_PACKET_IDLE_GAP, idleGap).putInt(KEY_NET_PACKET_DELIMITER, packetDelimiter).apply();
+                applyQueueSettings();
                 openUdpServer();
             }
             else
@@ -152,6 +338,20 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
                     int baudrate = Integer.parseInt(baudrateEdit.getText().toString());
                     ioService.setSerialBaudrate(baudrate);
                     activityPreferences.edit().putInt(KEY_SERIAL_BAUDRATE, baudrate).apply();
+                    int writeBatch = Integer.parseInt(writeBatchEdit.getText().toString());
+                    int writeBatchDelay = Integer.parseInt(writeBatchDelayEdit.getText().toString());
+                    ioService.setSerialWriteBatching(writeBatch, writeBatchDelay);
+                    activityPreferences.edit().putInt(KEY_SERIAL_WRITE_BATCH, writeBatch).putInt(KEY_SERIAL_WRITE_BATCH_DELAY, writeBatchDelay).apply();
+                    boolean allPorts = allPortsCheckBox.isChecked();
+                    ioService.setBridgeAllSerialPorts(allPorts);
+                    activityPreferences.edit().putBoolean(KEY_SERIAL_ALL_PORTS, allPorts).apply();
+                    int serialTimeout = Integer.parseInt(serialTimeoutEdit.getText().toString());
+                    ioService.setSerialTimeouts(serialTimeout, serialTimeout);
+                    activityPreferences.edit().putInt(KEY_SERIAL_TIMEOUT, serialTimeout).apply();
+                    boolean asyncRead = asyncReadCheckBox.isChecked();
+                    ioService.setSerialAsyncRead(asyncRead ? ASYNC_READ_REQUESTS : 0);
+                    activityPreferences.edit().putBoolean(KEY_SERIAL_ASYNC_READ, asyncRead).apply();
+                    applyQueueSettings();
                     UsbSerialDriver driver = availableDrivers.get(0);
                     UsbDevice device = driver.getDevice();
                     if (manager.hasPermission(device))
@@ -178,11 +378,33 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
             }
         });
 
-        loggingTrafficCheckBox.setOnClickListener(v ->
+        reliableUdpCheckBox.setOnClickListener(v -> updateBurstReceiveEnabled());
+        fecGroupEdit.addTextChangedListener(new TextWatcher()
         {
-            if (isIoServiceBound) return;
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
 
-            ioService.setTrafficLogging(((CheckBox) v).isChecked());
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {updateBurstReceiveEnabled();}
+        });
+
+        captureTrafficCheckBox.setOnClickListener(v ->
+        {
+            if (!isIoServiceBound) return;
+
+            boolean capture = captureTrafficCheckBox.isChecked();
+            if (!ioService.setTrafficCapture(capture))
+            {
+                Toast.makeText(MainActivity.this, getString(R.string.toast_capture_failed), Toast.LENGTH_SHORT).show();
+                captureTrafficCheckBox.setChecked(false);
+            }
+            else if (capture)
+            {
+                Toast.makeText(MainActivity.this, getString(R.string.toast_capturing) + ioService.getTrafficCapture().getFile(), Toast.LENGTH_LONG).show();
+            }
         });
 
         aboutButton.setOnClickListener(v ->
@@ -233,29 +455,136 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
         }
     }
 
+    private void applySerialLineSettings()
+    {
+        if (!isIoServiceBound) return;
+
+        int dataBits = UsbSerialPort.DATABITS_5 + dataBitsSpinner.getSelectedItemPosition();
+        int stopBits = stopBitsSpinner.getSelectedItemPosition();
+        int parity = paritySpinner.getSelectedItemPosition();
+        int flowControl = flowControlSpinner.getSelectedItemPosition();
+        ioService.setSerialLineSettings(dataBits, STOP_BITS[stopBits], parity, UsbSerialConnection.FlowControl.values()[flowControl]);
+        activityPreferences.edit().putInt(KEY_SERIAL_DATA_BITS, dataBits).putInt(KEY_SERIAL_STOP_BITS, stopBits)
+                .putInt(KEY_SERIAL_PARITY, parity).putInt(KEY_SERIAL_FLOW_CONTROL, flowControl).apply();
+    }
+
+    // The queues can only be recreated when nothing is connected, the views are disabled otherwise
+    private void applyQueueSettings()
+    {
+        int netPolicy = netOverflowSpinner.getSelectedItemPosition();
+        int serialPolicy = serialOverflowSpinner.getSelectedItemPosition();
+        if (ioService.setOverflowPolicy(OverflowPolicy.values()[netPolicy], OverflowPolicy.values()[serialPolicy]))
+            activityPreferences.edit().putInt(KEY_NET_OVERFLOW, netPolicy).putInt(KEY_SERIAL_OVERFLOW, serialPolicy).apply();
+        int readBuffer = Integer.parseInt(readBufferEdit.getText().toString());
+        boolean adaptiveRead = adaptiveReadCheckBox.isChecked();
+        if (ioService.setSerialReadSizing(readBuffer, adaptiveRead))
+            activityPreferences.edit().putInt(KEY_SERIAL_READ_BUFFER, readBuffer).putBoolean(KEY_SERIAL_ADAPTIVE_READ, adaptiveRead).apply();
+        int threadMode = threadModeSpinner.getSelectedItemPosition();
+        int threadPriority = threadPrioritySpinner.getSelectedItemPosition();
+        if (ioService.setForwardingThreads(THREAD_PRIORITIES[threadPriority], threadMode == THREAD_MODE_SINGLE))
+            activityPreferences.edit().putInt(KEY_THREAD_MODE, threadMode).putInt(KEY_THREAD_PRIORITY, threadPriority).apply();
+    }
+
+    // host:port, IPv6 hosts in brackets, e.g. [fe80::1]:8080
+    // Returns an unresolved address, or null if the text is not in this form
+    private static InetSocketAddress parseRemote(String remote)
+    {
+        String host;
+        String port;
+        if (remote.startsWith("["))
+        {
+            int hostEnd = remote.indexOf(']');
+            if (hostEnd < 0 || remote.indexOf(':', hostEnd) != hostEnd + 1) return null;
+            host = remote.substring(1, hostEnd);
+            port = remote.substring(hostEnd + 2);
+        }
+        else
+        {
+            // an IPv6 host without brackets has more than one colon
+            int separator = remote.indexOf(':');
+            if (separator < 0 || separator != remote.lastIndexOf(':')) return null;
+            host = remote.substring(0, separator);
+            port = remote.substring(separator + 1);
+        }
+        if (host.isEmpty() || !port.matches("[0-9]{1,5}")) return null;
+        int portNumber = Integer.parseInt(port);
+        if (portNumber < 1 || portNumber > 65535) return null;
+        return InetSocketAddress.createUnresolved(host, portNumber);
+    }
+
+    private void updateBurstReceiveEnabled()
+    {
+        // the service ignores burst receive under reliable UDP and FEC
+        boolean isFecEnabled = !fecGroupEdit.getText().toString().trim().matches("0*");
+        burstReceiveCheckBox.setEnabled(!reliableUdpCheckBox.isChecked() && !isFecEnabled);
+    }
+
     private void syncIoServiceState()
     {
         if (!isIoServiceBound) return;
 
+        boolean isIdle = !ioService.getIsSerialConnected() && !ioService.getIsSocketConnected();
+        netOverflowSpinner.setEnabled(isIdle);
+        serialOverflowSpinner.setEnabled(isIdle);
+        readBufferEdit.setEnabled(isIdle);
+        adaptiveReadCheckBox.setEnabled(isIdle);
+        threadModeSpinner.setEnabled(isIdle);
+        threadPrioritySpinner.setEnabled(isIdle);
+        captureTrafficCheckBox.setChecked(ioService.getTrafficCapture() != null);
+
         if (ioService.getIsSerialConnected())
         {
             connectDisconnectSerialButton.setText(R.string.activity_main_disconnect);
             baudrateEdit.setEnabled(false);
+            writeBatchEdit.setEnabled(false);
+            writeBatchDelayEdit.setEnabled(false);
+            allPortsCheckBox.setEnabled(false);
+            serialTimeoutEdit.setEnabled(false);
+            asyncReadCheckBox.setEnabled(false);
         }
         else
         {
             connectDisconnectSerialButton.setText(R.string.activity_main_connect);
             baudrateEdit.setEnabled(true);
+            writeBatchEdit.setEnabled(true);
+            writeBatchDelayEdit.setEnabled(true);
+            allPortsCheckBox.setEnabled(true);
+            serialTimeoutEdit.setEnabled(true);
+            asyncReadCheckBox.setEnabled(true);
         }
         if (ioService.getIsSocketConnected())
         {
             startStopServerButton.setText(R.string.activity_main_stop_server);
+            transportSpinner.setEnabled(false);
             inboundPortEdit.setEnabled(false);
+            remoteEdit.setEnabled(false);
+            tcpNoDelayCheckBox.setEnabled(false);
+            socketBufferEdit.setEnabled(false);
+            burstReceiveCheckBox.setEnabled(false);
+            storeForwardCheckBox.setEnabled(false);
+            reliableUdpCheckBox.setEnabled(false);
+            fecGroupEdit.setEnabled(false);
+            compressionCheckBox.setEnabled(false);
+            packetSizeEdit.setEnabled(false);
+            idleGapEdit.setEnabled(false);
+            delimiterEdit.setEnabled(false);
         }
         else
         {
             startStopServerButton.setText(R.string.activity_main_start_server);
+            transportSpinner.setEnabled(true);
             inboundPortEdit.setEnabled(true);
+            remoteEdit.setEnabled(true);
+            tcpNoDelayCheckBox.setEnabled(true);
+            socketBufferEdit.setEnabled(true);
+            updateBurstReceiveEnabled();
+            storeForwardCheckBox.setEnabled(true);
+            reliableUdpCheckBox.setEnabled(true);
+            fecGroupEdit.setEnabled(true);
+            compressionCheckBox.setEnabled(true);
+            packetSizeEdit.setEnabled(true);
+            idleGapEdit.setEnabled(true);
+            delimiterEdit.setEnabled(true);
         }
     }
 
@@ -266,6 +595,7 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
         {
             isIoServiceBound = false;
             ioService.removeOnErrorListener(this);
+            ioService.removeOnMetricsListener(this);
             unbindService(ioServiceConn);
         }
         super.onDestroy();
@@ -285,6 +615,9 @@ public class MainActivity extends AppCompatActivity implements IOService.OnError
         syncIoServiceState();
     }
 
+    @Override
+    public void onMetricsSampled(String summary) {metricsTextView.setText(summary);}
+
     @Override
     protected void onNewIntent(Intent intent)
     {
@@ -0,0 +1,257 @@
+package io.github.wh201906.serialpipe;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// UdpConnection on top of a DatagramChannel with direct buffers.
+// In non-blocking mode, read() waits on a Selector and returns 0 on timeout.
+// In burst receive mode, read() also takes every datagram already pending, as long as they fit into the buffer,
+// so a burst is handed on in one packet instead of one wake-up per datagram. The datagram boundaries are lost,
+// which is fine for data going to the serial port.
+public class NioUdpConnection extends UdpConnection
+{
+    private static final String TAG = "NioUdpConnection";
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private boolean mIsNonBlocking = false;
+    private long mSelectTimeoutMillis = 100;
+    private boolean mIsBurstReceive = false;
+
+    private DatagramChannel mChannel = null;
+    private Selector mSelector = null;
+    // wraps the caller's array for read(byte[]), kept while the caller reuses the same one
+    private ByteBuffer mReadWrapper = null;
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    // burst receive only: the datagram after the ones which fit, it starts the next read
+    private ByteBuffer mBurstBuffer = null;
+    private boolean mHasBurstLeftover = false;
+    // rebuilt only when the outbound address or port changes
+    private InetSocketAddress mOutboundSocketAddress = null;
+
+    @Override
+    public boolean open()
+    {
+        if (!prepareOutboundSocketAddress()) return false;
+        try
+        {
+            mChannel = DatagramChannel.open();
+            mChannel.socket().setReuseAddress(true);
+            applyBufferSizes(mChannel.socket());
+            mChannel.socket().bind(getInboundSocketAddress());
+            mHasBurstLeftover = false;
+            if (mIsBurstReceive && mBurstBuffer == null) mBurstBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            // draining needs a receive() which returns when nothing is pending
+            if (mIsNonBlocking || mIsBurstReceive)
+            {
+                mChannel.configureBlocking(false);
+                mSelector = Selector.open();
+                mChannel.register(mSelector, SelectionKey.OP_READ);
+            }
+        } catch (IOException e)
+        {
+            mLastException = e;
+            close();
+            return false;
+        }
+        mIsOpened = true;
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            if (mSelector != null) mSelector.close();
+            if (mChannel != null) mChannel.close();
+        } catch (IOException e)
+        {
+            mLastException = e;
+            Log.w(TAG, "Failed to close the channel", e);
+        } finally
+        {
+            mSelector = null;
+            mChannel = null;
+            mIsOpened = false;
+        }
+    }
+
+    // Receives one datagram into dst, starting at its position
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        DatagramChannel channel = mChannel;
+        if (channel == null) throw new IOException("UDP connection not open");
+
+        int start = dst.position();
+        try
+        {
+            if (mHasBurstLeftover)
+            {
+                mHasBurstLeftover = false;
+                putTruncated(mBurstBuffer, dst);
+            }
+            else
+            {
+                SocketAddress sender = channel.receive(dst);
+                if (sender == null)
+                {
+                    // non-blocking and nothing pending
+                    if (mSelector.select(mSelectTimeoutMillis) == 0) return 0;
+                    mSelector.selectedKeys().clear();
+                    sender = channel.receive(dst);
+                    if (sender == null) return 0;
+                }
+                updateOutboundSocketAddress(sender);
+            }
+            if (mIsBurstReceive) drainPending(channel, dst);
+        } catch (IOException e)
+        {
+            mLastException = e;
+            close();
+            throw e;
+        }
+        return dst.position() - start;
+    }
+
+    // Appends the pending datagrams to dst while they fit, keeps the first one which doesn't for the next read
+    private void drainPending(DatagramChannel channel, ByteBuffer dst) throws IOException
+    {
+        ByteBuffer burst = mBurstBuffer;
+        while (dst.hasRemaining())
+        {
+            burst.clear();
+            SocketAddress sender = channel.receive(burst);
+            if (sender == null) return;
+            updateOutboundSocketAddress(sender);
+            burst.flip();
+            if (burst.remaining() > dst.remaining())
+            {
+                mHasBurstLeftover = true;
+                return;
+            }
+            dst.put(burst);
+        }
+    }
+
+    // Like receive(), the part of a datagram which doesn't fit is discarded
+    private static void putTruncated(ByteBuffer src, ByteBuffer dst)
+    {
+        if (src.remaining() > dst.remaining()) src.limit(src.position() + dst.remaining());
+        dst.put(src);
+    }
+
+    private void updateOutboundSocketAddress(SocketAddress sender)
+    {
+        InetSocketAddress inetSender = (InetSocketAddress) sender;
+        updateOutboundSocketAddress(inetSender.getAddress(), inetSender.getPort());
+    }
+
+    @Override
+    public int read(byte[] buf, int maxLength) throws IOException {return read(buf, 0, maxLength);}
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        ByteBuffer dst = mReadWrapper;
+        if (dst == null || dst.array() != buf)
+        {
+            dst = ByteBuffer.wrap(buf);
+            mReadWrapper = dst;
+        }
+        dst.clear();
+        dst.position(offset);
+        dst.limit(offset + Math.min(Math.min(buf.length - offset, maxLength), MAX_DATAGRAM_SIZE));
+        return read(dst);
+    }
+
+    // Sends the remaining bytes of src as one datagram
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        DatagramChannel channel = mChannel;
+        if (channel == null) throw new IOException("UDP connection not open");
+        if (!isPeerConnected()) return dropWithoutPeer();
+
+        try
+        {
+            if (!isMultiPeer()) return channel.send(src, getOutboundSocketAddress());
+
+            int start = src.position();
+            int end = src.limit();
+            long now = System.nanoTime();
+            UdpPeerTable peerTable = getPeerTable();
+            for (UdpPeerTable.Peer peer : peerTable.getPeers())
+            {
+                if (!peerTable.isActive(peer, now)) continue;
+                src.position(start);
+                channel.send(src, peer.getSocketAddress());
+            }
+            src.position(end);
+            return end - start;
+        } catch (IOException e)
+        {
+            mLastException = e;
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int length) throws IOException {return write(data, 0, length);}
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        int writeLen = Math.min(Math.min(data.length - offset, length), MAX_DATAGRAM_SIZE);
+        mSendBuffer.clear();
+        mSendBuffer.put(data, offset, writeLen);
+        mSendBuffer.flip();
+        return write(mSendBuffer);
+    }
+
+    private InetSocketAddress getOutboundSocketAddress()
+    {
+        InetAddress address = getOutboundAddress();
+        int port = getOutboundPort();
+        InetSocketAddress socketAddress = mOutboundSocketAddress;
+        if (socketAddress == null || socketAddress.getAddress() != address || socketAddress.getPort() != port)
+        {
+            socketAddress = address == null ? null : new InetSocketAddress(address, port);
+            mOutboundSocketAddress = socketAddress;
+        }
+        return socketAddress;
+    }
+
+    // For registering the channel with a Selector shared by several connections
+    public DatagramChannel getChannel() {return mChannel;}
+
+    @Override
+    protected DatagramSocket getSocket()
+    {
+        DatagramChannel channel = mChannel;
+        return channel == null ? null : channel.socket();
+    }
+
+    public boolean isNonBlocking() {return mIsNonBlocking;}
+
+    public void setNonBlocking(boolean isNonBlocking) {this.mIsNonBlocking = isNonBlocking;}
+
+    public long getSelectTimeoutMillis() {return mSelectTimeoutMillis;}
+
+    public void setSelectTimeoutMillis(long selectTimeoutMillis) {this.mSelectTimeoutMillis = selectTimeoutMillis;}
+
+    public boolean isBurstReceive() {return mIsBurstReceive;}
+
+    // Takes effect on the next open(), also makes the channel non-blocking
+    public void setBurstReceive(boolean isBurstReceive) {this.mIsBurstReceive = isBurstReceive;}
+}
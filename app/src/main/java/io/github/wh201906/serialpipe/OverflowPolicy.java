@@ -0,0 +1,16 @@
+package io.github.wh201906.serialpipe;
+
+// What a reader thread does when its forwarding queue is full because the other side is slower
+public enum OverflowPolicy
+{
+    // Stop reading until there is room. UDP datagrams are then dropped by the kernel, uncounted,
+    // TCP and serial data waits in the socket / USB buffers
+    BLOCK,
+    // Keep reading and drop what was just read, the queued data is delivered
+    DROP_NEWEST,
+    // Keep reading and drop the oldest queued packet, the most recent data is delivered
+    DROP_OLDEST,
+    // Serial side: ask the device to stop sending (RTS, DTR or XOFF, see UsbSerialConnection.FlowControl) until half of the queue is drained
+    // Network side: same as BLOCK, TCP flow control does the rest
+    FLOW_CONTROL
+}
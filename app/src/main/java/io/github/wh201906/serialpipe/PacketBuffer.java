@@ -0,0 +1,124 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Slab passed between a reader thread and a writer thread, either a buffer of its own
+// or a view into the memory of a ByteRingPacketQueue.
+// The valid bytes are [offset, offset + length), the producer may fill [offset, offset + capacity).
+public class PacketBuffer
+{
+    // null if the memory is a direct ByteBuffer
+    private final byte[] mData;
+    // created lazily for heap memory
+    private ByteBuffer mByteBuffer;
+    private int mOffset = 0;
+    private int mLength = 0;
+    private int mCapacity;
+
+    public PacketBuffer(int capacity)
+    {
+        mData = new byte[capacity];
+        mCapacity = capacity;
+    }
+
+    // A view into memory owned by a queue, moved with reset()
+    PacketBuffer(ByteBuffer memory)
+    {
+        mData = memory.hasArray() ? memory.array() : null;
+        mByteBuffer = memory.duplicate();
+        mCapacity = 0;
+    }
+
+    // null if the memory is off-heap, use the methods below then
+    public byte[] getData() {return mData;}
+
+    public boolean hasArray() {return mData != null;}
+
+    public int getOffset() {return mOffset;}
+
+    public int getLength() {return mLength;}
+
+    public void setLength(int length) {this.mLength = length;}
+
+    public void set(int offset, int length)
+    {
+        mOffset = offset;
+        mLength = length;
+    }
+
+    public int getCapacity() {return mCapacity;}
+
+    public void clear() {set(0, 0);}
+
+    void reset(int offset, int capacity)
+    {
+        mOffset = offset;
+        mLength = 0;
+        mCapacity = capacity;
+    }
+
+    // Fills the buffer from the connection, returns the number of bytes read, which is also the new length
+    public int readFrom(Connection connection) throws IOException
+    {
+        int readLen;
+        if (mData != null)
+        {
+            readLen = connection.read(mData, mOffset, mCapacity);
+        }
+        else
+        {
+            mByteBuffer.limit(mOffset + mCapacity);
+            mByteBuffer.position(mOffset);
+            readLen = connection.read(mByteBuffer);
+        }
+        mLength = Math.max(readLen, 0);
+        return readLen;
+    }
+
+    // Returns the absolute index of the first value in [from, to), or -1
+    public int indexOf(byte value, int from, int to)
+    {
+        if (mData != null)
+        {
+            for (int i = from; i < to; i++)
+            {
+                if (mData[i] == value) return i;
+            }
+        }
+        else
+        {
+            // absolute get() still checks the limit
+            mByteBuffer.limit(to);
+            for (int i = from; i < to; i++)
+            {
+                if (mByteBuffer.get(i) == value) return i;
+            }
+        }
+        return -1;
+    }
+
+    // index: absolute
+    public void copyTo(int index, byte[] dst, int dstOffset, int length)
+    {
+        if (mData != null)
+        {
+            System.arraycopy(mData, index, dst, dstOffset, length);
+        }
+        else
+        {
+            mByteBuffer.limit(index + length);
+            mByteBuffer.position(index);
+            mByteBuffer.get(dst, dstOffset, length);
+        }
+    }
+
+    // The valid bytes as [position, limit), shared by every call, so don't keep it
+    public ByteBuffer getByteBuffer()
+    {
+        if (mByteBuffer == null) mByteBuffer = ByteBuffer.wrap(mData);
+        mByteBuffer.limit(mOffset + mLength);
+        mByteBuffer.position(mOffset);
+        return mByteBuffer;
+    }
+}
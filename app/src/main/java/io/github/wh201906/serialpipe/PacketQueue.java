@@ -0,0 +1,31 @@
+package io.github.wh201906.serialpipe;
+
+// Carries packets from one reader thread to one writer thread.
+// Producer: acquire() -> fill -> publish() or discard(), consumer: take() -> use -> release()
+// A producer or consumer holds at most one PacketBuffer at a time.
+public interface PacketQueue
+{
+    // Producer side, returns null if the queue is still full after timeoutNanos
+    PacketBuffer acquire(long timeoutNanos);
+
+    // Producer side, returns false if the packet couldn't be queued within timeoutNanos
+    boolean publish(PacketBuffer buf, long timeoutNanos);
+
+    // Producer side, for an acquired buffer which will never be published
+    void discard(PacketBuffer buf);
+
+    // Producer side, waits until the queue is at most half full, returns false on timeout
+    boolean awaitDrained(long timeoutNanos);
+
+    // Consumer side, returns null if the queue is still empty after timeoutNanos
+    PacketBuffer take(long timeoutNanos);
+
+    // Consumer side, gives a taken buffer back to the producer
+    void release(PacketBuffer buf);
+
+    // Queued packets
+    int size();
+
+    // The largest packet acquire() returns room for
+    int getBufferSize();
+}
@@ -0,0 +1,16 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+
+// The writer thread's side of a queue: takes packets and writes them to a connection, possibly merged or split
+public interface PacketWriter
+{
+    // Waits up to timeoutNanos for data, returns the number of bytes written
+    int forward(PacketQueue queue, Connection connection, long timeoutNanos) throws IOException;
+
+    // Drops whatever is held back, call it when the writer thread exits
+    void clear(PacketQueue queue);
+
+    // Set it before the writer thread starts
+    void setMetrics(TrafficMetrics metrics);
+}
@@ -0,0 +1,103 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+
+// Turns the serial byte stream into datagrams.
+// A datagram is sent when it reaches the size limit, when the delimiter is seen (it is kept at the end),
+// or when no more bytes arrive within the idle gap. An idle gap of 0 sends whatever is buffered once the queue is empty.
+public class Packetizer implements PacketWriter
+{
+    public static final int NO_DELIMITER = -1;
+
+    private final byte[] mBuffer;
+    private int mLength = 0;
+    private final int mDelimiter;
+    private volatile long mIdleGapNanos;
+    private long mLastDataNanos = 0;
+    private TrafficMetrics mMetrics = null;
+
+    public Packetizer(int maxBytes, long idleGapNanos, int delimiter)
+    {
+        mBuffer = new byte[maxBytes];
+        mIdleGapNanos = idleGapNanos;
+        mDelimiter = delimiter;
+    }
+
+    // Waits up to timeoutNanos for data, and writes every datagram which is complete
+    // Returns the number of bytes written
+    @Override
+    public int forward(PacketQueue queue, Connection connection, long timeoutNanos) throws IOException
+    {
+        long idleGap = mIdleGapNanos;
+        long waitNanos = timeoutNanos;
+        if (mLength > 0 && idleGap > 0)
+        {
+            long remaining = mLastDataNanos + idleGap - System.nanoTime();
+            if (remaining <= 0) return flush(connection);
+            waitNanos = Math.min(waitNanos, remaining);
+        }
+
+        PacketBuffer packet = queue.take(waitNanos);
+        if (packet == null)
+        {
+            if (mLength > 0 && System.nanoTime() - mLastDataNanos >= idleGap) return flush(connection);
+            return 0;
+        }
+        mLastDataNanos = System.nanoTime();
+
+        int written = 0;
+        try
+        {
+            int i = packet.getOffset();
+            int end = i + packet.getLength();
+            while (i < end)
+            {
+                int chunkEnd = Math.min(end, i + mBuffer.length - mLength);
+                boolean isFrameEnd = false;
+                if (mDelimiter != NO_DELIMITER)
+                {
+                    int delimiterIndex = packet.indexOf((byte) mDelimiter, i, chunkEnd);
+                    if (delimiterIndex >= 0)
+                    {
+                        chunkEnd = delimiterIndex + 1;
+                        isFrameEnd = true;
+                    }
+                }
+                packet.copyTo(i, mBuffer, mLength, chunkEnd - i);
+                mLength += chunkEnd - i;
+                i = chunkEnd;
+                if (isFrameEnd || mLength == mBuffer.length) written += flush(connection);
+            }
+        } finally
+        {
+            queue.release(packet);
+        }
+        if (idleGap == 0 && mLength > 0 && queue.size() == 0) written += flush(connection);
+        return written;
+    }
+
+    private int flush(Connection connection) throws IOException
+    {
+        int len = mLength;
+        mLength = 0;
+        return write(connection, mBuffer, 0, len);
+    }
+
+    private int write(Connection connection, byte[] data, int offset, int length) throws IOException
+    {
+        TrafficMetrics metrics = mMetrics;
+        return metrics == null ? connection.write(data, offset, length) : metrics.write(connection, data, offset, length);
+    }
+
+    // Can be changed from other threads, e.g. when the baudrate changes
+    public void setIdleGapNanos(long idleGapNanos) {this.mIdleGapNanos = idleGapNanos;}
+
+    public long getIdleGapNanos() {return mIdleGapNanos;}
+
+    // Drops the unfinished datagram
+    @Override
+    public void clear(PacketQueue queue) {mLength = 0;}
+
+    @Override
+    public void setMetrics(TrafficMetrics metrics) {this.mMetrics = metrics;}
+}
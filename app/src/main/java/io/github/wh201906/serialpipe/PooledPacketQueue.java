@@ -0,0 +1,98 @@
+package io.github.wh201906.serialpipe;
+
+// A ForwardingQueue of PacketBuffers plus a free list which sends them back to the producer,
+// so the forwarding path doesn't allocate once every buffer has been created.
+// Bounded by packet count, every packet takes a whole buffer whatever its size.
+public class PooledPacketQueue implements PacketQueue
+{
+    private final ForwardingQueue<PacketBuffer> mQueue;
+    private final ForwardingQueue<PacketBuffer> mFreeList;
+    private final int mBufferSize;
+    private final int mMaxBuffers;
+    // only accessed by the producer
+    private int mAllocatedBuffers = 0;
+
+    public PooledPacketQueue(int capacity, int bufferSize, WaitStrategy.Type waitStrategyType) {this(capacity, bufferSize, waitStrategyType, false);}
+
+    // evictable: the producer removes packets too, which makes it a SpmcArrayQueue, see ForwardingQueue
+    private PooledPacketQueue(int capacity, int bufferSize, WaitStrategy.Type waitStrategyType, boolean evictable)
+    {
+        mQueue = new ForwardingQueue<>(capacity, waitStrategyType, evictable);
+        // one buffer being filled by the producer and one being used by the consumer
+        mMaxBuffers = mQueue.capacity() + 2;
+        mFreeList = new ForwardingQueue<>(mMaxBuffers, waitStrategyType);
+        mBufferSize = bufferSize;
+    }
+
+    // Buffers are created lazily up to the limit, then recycled
+    @Override
+    public PacketBuffer acquire(long timeoutNanos)
+    {
+        PacketBuffer buf = mFreeList.poll();
+        if (buf == null)
+        {
+            if (mAllocatedBuffers < mMaxBuffers)
+            {
+                mAllocatedBuffers++;
+                return new PacketBuffer(mBufferSize);
+            }
+            buf = mFreeList.poll(timeoutNanos);
+            if (buf == null) return null;
+        }
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    public boolean publish(PacketBuffer buf, long timeoutNanos) {return mQueue.offer(buf, timeoutNanos);}
+
+    @Override
+    public boolean awaitDrained(long timeoutNanos) {return mQueue.awaitSize(mQueue.capacity() / 2, timeoutNanos);}
+
+    @Override
+    public void discard(PacketBuffer buf)
+    {
+        if (buf != null) mAllocatedBuffers--;
+    }
+
+    @Override
+    public PacketBuffer take(long timeoutNanos) {return mQueue.poll(timeoutNanos);}
+
+    @Override
+    public void release(PacketBuffer buf)
+    {
+        if (buf != null) mFreeList.offer(buf);
+    }
+
+    @Override
+    public int size() {return mQueue.size();}
+
+    public int capacity() {return mQueue.capacity();}
+
+    @Override
+    public int getBufferSize() {return mBufferSize;}
+
+    public ForwardingQueue<PacketBuffer> getQueue() {return mQueue;}
+
+    // For OverflowPolicy.DROP_OLDEST
+    public static class Evictable extends PooledPacketQueue implements EvictablePacketQueue
+    {
+        // a consumer preempted in the middle of its poll() holds the freed slot for this long at most, or the new packet is dropped
+        private static final long SLOT_WAIT_NANOS = 100_000_000L;
+
+        public Evictable(int capacity, int bufferSize, WaitStrategy.Type waitStrategyType) {super(capacity, bufferSize, waitStrategyType, true);}
+
+        @Override
+        public PacketBuffer publishEvicting(PacketBuffer buf)
+        {
+            ForwardingQueue<PacketBuffer> queue = getQueue();
+            if (queue.offer(buf)) return null;
+            PacketBuffer evicted = queue.evict();
+            // The oldest slot is free now, either by evict() or by a consumer which is finishing its poll() and signals then
+            // If it times out, evict() found nothing, as the producer is the only one filling slots
+            if (!queue.offer(buf, SLOT_WAIT_NANOS)) evicted = buf;
+            if (evicted != null) evicted.clear();
+            return evicted;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+// Delivers the byte stream over UDP in order and intact, the peer must use it too.
+// Every datagram gets a sequence number. The receiver acknowledges each one with the next sequence number it expects
+// and a bitmap of the ones after it which already arrived (selective ACK), so only what is lost gets sent again:
+// after a timeout derived from the measured RTT (RFC 6298), or right away once FAST_RETRANSMIT_THRESHOLD later ones are acknowledged.
+// At most WINDOW datagrams are unacknowledged, write() waits while the window is full.
+// Both directions keep their datagrams in preallocated rings, nothing is allocated per datagram.
+// Wire format, big-endian:
+// DATA: type (1), session (4), sequence (4), oldest unacknowledged sequence (4), payload (up to MAX_PAYLOAD)
+// ACK: type (1), session of the DATA (4), next expected sequence (4), bitmap (8), bit i for sequence next + 1 + i
+// The session is picked on open(), the receiver starts over when it changes, e.g. when the peer restarts.
+// A receiver which starts over, e.g. restarted while this side kept running, begins at the oldest unacknowledged sequence,
+// so it gets everything the previous one hasn't acknowledged, and the sender goes on as it is.
+// Only for one peer, as UdpConnection without multi-peer mode.
+public class ReliableUdpConnection extends ConnectionDecorator
+{
+    // longer writes are split, smaller than the usual MTU since losing an IP fragment loses the whole datagram
+    public static final int MAX_PAYLOAD = 1200;
+    public static final int WINDOW = 128;
+    private static final int SLOT_MASK = WINDOW - 1;
+    private static final int SACK_BITS = 64;
+    private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int DATA_HEADER_SIZE = 13;
+    private static final int ACK_SIZE = 17;
+    private static final long INITIAL_RTO_NANOS = 200_000_000L;
+    private static final long MIN_RTO_NANOS = 20_000_000L;
+    private static final long MAX_RTO_NANOS = 2_000_000_000L;
+    // the Bridge writer calls flush() this often while something is unacknowledged
+    private static final long TIMER_GRANULARITY_NANOS = 10_000_000L;
+    // the largest datagram read()
+    private static final int MAX_DATAGRAM = 65536;
+
+    // sender, guarded by mSendLock, which also keeps the writes of the reader (ACK) and the writer (DATA) apart
+    private final Object mSendLock = new Object();
+    private final byte[][] mSendFrames = new byte[WINDOW][DATA_HEADER_SIZE + MAX_PAYLOAD];
+    private final int[] mSendLengths = new int[WINDOW];
+    private final long[] mSentNanos = new long[WINDOW];
+    private final int[] mTransmissions = new int[WINDOW];
+    private final boolean[] mIsAcked = new boolean[WINDOW];
+    private final boolean[] mIsFastRetransmitted = new boolean[WINDOW];
+    private final byte[] mAckFrame = new byte[ACK_SIZE];
+    private int mSession = 0;
+    // the oldest unacknowledged sequence, and the next one to send
+    private int mSendBase = 0;
+    private int mNextSeq = 0;
+    private volatile long mSmoothedRttNanos = 0;
+    private long mRttVarNanos = 0;
+    private volatile long mRtoNanos = INITIAL_RTO_NANOS;
+    private volatile int mUnackedBytes = 0;
+    private volatile long mRetransmissions = 0;
+    private byte[] mWriteCopy = null;
+
+    // receiver, reader thread only
+    private final byte[][] mReceiveFrames = new byte[WINDOW][MAX_PAYLOAD];
+    private final int[] mReceiveLengths = new int[WINDOW];
+    private final boolean[] mIsReceived = new boolean[WINDOW];
+    private final byte[] mFrameBuffer = new byte[MAX_DATAGRAM];
+    private boolean mHasPeerSession = false;
+    private int mPeerSession = 0;
+    private volatile int mPeerGeneration = 0;
+    // the next sequence read() returns (from mDeliverOffset on), and the first one which hasn't arrived
+    private int mDeliverSeq = 0;
+    private int mDeliverOffset = 0;
+    private int mExpectedSeq = 0;
+    private byte[] mReadCopy = null;
+    // write() waits for the window by reading itself if it runs on this thread, e.g. the event loop of a Bridge
+    private volatile Thread mReaderThread = null;
+
+    public ReliableUdpConnection(Connection connection) {super(connection);}
+
+    @Override
+    public boolean open()
+    {
+        synchronized (mSendLock)
+        {
+            mSession = new Random().nextInt();
+            mSendBase = 0;
+            mNextSeq = 0;
+            Arrays.fill(mIsAcked, false);
+            mSmoothedRttNanos = 0;
+            mRttVarNanos = 0;
+            mRtoNanos = INITIAL_RTO_NANOS;
+            mUnackedBytes = 0;
+        }
+        resetReceiver(0);
+        mHasPeerSession = false;
+        return super.open();
+    }
+
+    @Override
+    public int read(byte[] buf, int maxLength) throws IOException {return read(buf, 0, maxLength);}
+
+    // Returns the payload of one or more datagrams in order, 0 if the inner read returns 0
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        Thread thread = Thread.currentThread();
+        if (mReaderThread != thread) mReaderThread = thread;
+        int readLen = Math.min(buf.length - offset, maxLength);
+        while (true)
+        {
+            int copied = 0;
+            while (mDeliverSeq != mExpectedSeq && copied < readLen)
+            {
+                int slot = mDeliverSeq & SLOT_MASK;
+                int length = Math.min(mReceiveLengths[slot] - mDeliverOffset, readLen - copied);
+                System.arraycopy(mReceiveFrames[slot], mDeliverOffset, buf, offset + copied, length);
+                copied += length;
+                mDeliverOffset += length;
+                if (mDeliverOffset == mReceiveLengths[slot])
+                {
+                    mIsReceived[slot] = false;
+                    mDeliverSeq++;
+                    mDeliverOffset = 0;
+                }
+            }
+            if (copied > 0 || readLen <= 0) return copied;
+            if (!receiveFrame()) return 0;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (dst.hasArray())
+        {
+            int readLen = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.position() + readLen);
+            return readLen;
+        }
+        if (mReadCopy == null) mReadCopy = new byte[MAX_DATAGRAM];
+        int readLen = read(mReadCopy, 0, Math.min(dst.remaining(), mReadCopy.length));
+        dst.put(mReadCopy, 0, readLen);
+        return readLen;
+    }
+
+    // Splits the data into datagrams, waits while the window is full
+    // Returns 0 without a peer, like UdpConnection, or less than length if the connection is closed meanwhile
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        int writeLen = Math.min(data.length - offset, length);
+        if (writeLen <= 0 || !mConnection.isPeerConnected()) return 0;
+        int written = 0;
+        synchronized (mSendLock)
+        {
+            while (written < writeLen && awaitWindow())
+            {
+                int seq = mNextSeq;
+                int slot = seq & SLOT_MASK;
+                int chunk = Math.min(writeLen - written, MAX_PAYLOAD);
+                byte[] frame = mSendFrames[slot];
+                frame[0] = TYPE_DATA;
+                putInt(frame, 1, mSession);
+                putInt(frame, 5, seq);
+                System.arraycopy(data, offset + written, frame, DATA_HEADER_SIZE, chunk);
+                mSendLengths[slot] = DATA_HEADER_SIZE + chunk;
+                mTransmissions[slot] = 0;
+                mIsAcked[slot] = false;
+                mIsFastRetransmitted[slot] = false;
+                mNextSeq = seq + 1;
+                mUnackedBytes += chunk;
+                transmit(seq, System.nanoTime());
+                written += chunk;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (src.hasArray())
+        {
+            int written = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.position() + written);
+            return written;
+        }
+        if (mWriteCopy == null) mWriteCopy = new byte[MAX_DATAGRAM];
+        int length = Math.min(src.remaining(), mWriteCopy.length);
+        int position = src.position();
+        src.get(mWriteCopy, 0, length);
+        int written = write(mWriteCopy, 0, length);
+        src.position(position + written);
+        return written;
+    }
+
+    // Sends again what has timed out, then flushes the decorated connection
+    // Returns the unacknowledged bytes and what the decorated connection holds
+    @Override
+    public int flush() throws IOException
+    {
+        synchronized (mSendLock)
+        {
+            retransmitDue(System.nanoTime());
+            return (int) Math.min((long) mUnackedBytes + mConnection.flush(), Integer.MAX_VALUE);
+        }
+    }
+
+    // Returns false if the connection is closed while waiting
+    private boolean awaitWindow() throws IOException
+    {
+        while (mNextSeq - mSendBase >= WINDOW)
+        {
+            if (!mConnection.isOpened()) return false;
+            retransmitDue(System.nanoTime());
+            if (Thread.currentThread() == mReaderThread)
+            {
+                // nobody else reads the ACKs, the inner read waits up to its timeout
+                receiveFrame();
+                continue;
+            }
+            try
+            {
+                mSendLock.wait(TIMER_GRANULARITY_NANOS / 1_000_000);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads one datagram, returns false if the inner read returns 0
+    private boolean receiveFrame() throws IOException
+    {
+        int length = mConnection.read(mFrameBuffer, 0, mFrameBuffer.length);
+        if (length <= 0) return false;
+        byte type = mFrameBuffer[0];
+        // anything else, e.g. from a peer without this layer, is ignored
+        if (type == TYPE_DATA && length >= DATA_HEADER_SIZE)
+            onData(getInt(mFrameBuffer, 1), getInt(mFrameBuffer, 5), getInt(mFrameBuffer, 9), length - DATA_HEADER_SIZE);
+        else if (type == TYPE_ACK && length == ACK_SIZE && getInt(mFrameBuffer, 1) == mSession)
+            onAck(getInt(mFrameBuffer, 5), getLong(mFrameBuffer, 9));
+        return true;
+    }
+
+    private void onData(int session, int seq, int senderBase, int payloadLength) throws IOException
+    {
+        if (!mHasPeerSession || session != mPeerSession)
+        {
+            // a broken base would make it wait for a sequence which never comes
+            resetReceiver(seq - senderBase >= 0 && seq - senderBase < WINDOW ? senderBase : seq);
+            mHasPeerSession = true;
+            mPeerSession = session;
+            mPeerGeneration++;
+        }
+        // older ones are duplicates, newer ones than the window are sent again later
+        if (payloadLength <= MAX_PAYLOAD && seq - mExpectedSeq >= 0 && seq - mDeliverSeq < WINDOW)
+        {
+            int slot = seq & SLOT_MASK;
+            if (!mIsReceived[slot])
+            {
+                System.arraycopy(mFrameBuffer, DATA_HEADER_SIZE, mReceiveFrames[slot], 0, payloadLength);
+                mReceiveLengths[slot] = payloadLength;
+                mIsReceived[slot] = true;
+            }
+            while (mExpectedSeq - mDeliverSeq < WINDOW && mIsReceived[mExpectedSeq & SLOT_MASK]) mExpectedSeq++;
+        }
+        // every DATA is acknowledged, duplicates too, since the ACK of the original might be lost
+        long bitmap = 0;
+        for (int i = 0; i < SACK_BITS; i++)
+        {
+            int next = mExpectedSeq + 1 + i;
+            if (next - mDeliverSeq >= WINDOW) break;
+            if (mIsReceived[next & SLOT_MASK]) bitmap |= 1L << i;
+        }
+        synchronized (mSendLock)
+        {
+            mAckFrame[0] = TYPE_ACK;
+            putInt(mAckFrame, 1, mPeerSession);
+            putInt(mAckFrame, 5, mExpectedSeq);
+            putLong(mAckFrame, 9, bitmap);
+            mConnection.write(mAckFrame, 0, ACK_SIZE);
+        }
+    }
+
+    private void onAck(int expectedSeq, long bitmap) throws IOException
+    {
+        synchronized (mSendLock)
+        {
+            long now = System.nanoTime();
+            long rttSample = -1;
+            int highestAcked = mSendBase - 1;
+            // a late ACK can still hold new bits
+            if (expectedSeq - mSendBase > 0 && expectedSeq - mNextSeq <= 0)
+            {
+                for (int seq = mSendBase; seq != expectedSeq; seq++)
+                    rttSample = markAcked(seq, now, rttSample);
+                highestAcked = expectedSeq - 1;
+            }
+            for (int i = 0; i < SACK_BITS; i++)
+            {
+                if ((bitmap & (1L << i)) == 0) continue;
+                int seq = expectedSeq + 1 + i;
+                if (seq - mSendBase < 0 || seq - mNextSeq >= 0) continue;
+                rttSample = markAcked(seq, now, rttSample);
+                if (seq - highestAcked > 0) highestAcked = seq;
+            }
+            if (rttSample >= 0) updateRto(rttSample);
+
+            int oldBase = mSendBase;
+            while (mSendBase != mNextSeq && mIsAcked[mSendBase & SLOT_MASK])
+            {
+                mUnackedBytes -= mSendLengths[mSendBase & SLOT_MASK] - DATA_HEADER_SIZE;
+                mSendBase++;
+            }
+            // the ones which later ones overtook are most likely lost
+            for (int seq = mSendBase; highestAcked - seq >= FAST_RETRANSMIT_THRESHOLD; seq++)
+            {
+                int slot = seq & SLOT_MASK;
+                if (mIsAcked[slot] || mIsFastRetransmitted[slot]) continue;
+                mIsFastRetransmitted[slot] = true;
+                transmit(seq, now);
+            }
+            if (mSendBase != oldBase) mSendLock.notifyAll();
+        }
+    }
+
+    // Returns the RTT sample of this sequence if it has one, otherwise rttSample
+    private long markAcked(int seq, long now, long rttSample)
+    {
+        int slot = seq & SLOT_MASK;
+        if (mIsAcked[slot]) return rttSample;
+        mIsAcked[slot] = true;
+        // Karn's algorithm: after a retransmission, the ACK might be for either copy
+        return mTransmissions[slot] == 1 ? now - mSentNanos[slot] : rttSample;
+    }
+
+    // RFC 6298
+    private void updateRto(long rttNanos)
+    {
+        long smoothed = mSmoothedRttNanos;
+        if (smoothed == 0)
+        {
+            smoothed = Math.max(rttNanos, 1);
+            mRttVarNanos = rttNanos / 2;
+        }
+        else
+        {
+            mRttVarNanos = (3 * mRttVarNanos + Math.abs(smoothed - rttNanos)) / 4;
+            smoothed = Math.max((7 * smoothed + rttNanos) / 8, 1);
+        }
+        mSmoothedRttNanos = smoothed;
+        mRtoNanos = Math.min(Math.max(smoothed + Math.max(TIMER_GRANULARITY_NANOS, 4 * mRttVarNanos), MIN_RTO_NANOS), MAX_RTO_NANOS);
+    }
+
+    private void retransmitDue(long now) throws IOException
+    {
+        long rto = mRtoNanos;
+        for (int seq = mSendBase; seq != mNextSeq; seq++)
+        {
+            int slot = seq & SLOT_MASK;
+            if (mIsAcked[slot]) continue;
+            // doubles for every retransmission of the same datagram
+            long timeout = Math.min(rto << Math.min(Math.max(mTransmissions[slot] - 1, 0), 6), MAX_RTO_NANOS);
+            if (now - mSentNanos[slot] >= timeout) transmit(seq, now);
+        }
+    }
+
+    private void transmit(int seq, long now) throws IOException
+    {
+        int slot = seq & SLOT_MASK;
+        mSentNanos[slot] = now;
+        // changes while the datagram waits for its ACK
+        putInt(mSendFrames[slot], 9, mSendBase);
+        // without a peer, the timer tries again
+        if (mConnection.write(mSendFrames[slot], 0, mSendLengths[slot]) == 0) return;
+        if (mTransmissions[slot] > 0) mRetransmissions++;
+        mTransmissions[slot]++;
+    }
+
+    private void resetReceiver(int firstSeq)
+    {
+        mDeliverSeq = firstSeq;
+        mDeliverOffset = 0;
+        mExpectedSeq = firstSeq;
+        Arrays.fill(mIsReceived, false);
+    }
+
+    // Changes with the session of the peer, not with its address, the stream goes on if only that changes
+    @Override
+    public int getPeerGeneration() {return mPeerGeneration;}
+
+    // 0 before the first sample
+    public long getSmoothedRttNanos() {return mSmoothedRttNanos;}
+
+    public long getRtoNanos() {return mRtoNanos;}
+
+    // Sent but not acknowledged yet
+    public int getUnackedBytes() {return mUnackedBytes;}
+
+    // Datagrams sent more than once, counted per extra copy
+    public long getRetransmissions() {return mRetransmissions;}
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buf, int offset)
+    {
+        return (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+    }
+
+    private static void putLong(byte[] buf, int offset, long value)
+    {
+        putInt(buf, offset, (int) (value >>> 32));
+        putInt(buf, offset + 4, (int) value);
+    }
+
+    private static long getLong(byte[] buf, int offset)
+    {
+        return ((long) getInt(buf, offset) << 32) | (getInt(buf, offset + 4) & 0xFFFFFFFFL);
+    }
+}
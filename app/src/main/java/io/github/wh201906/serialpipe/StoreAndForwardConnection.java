@@ -0,0 +1,235 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Holds what is written while the connection has no peer (see Connection.isPeerConnected()), e.g. a UDP server
+// before the first client, and replays it in order once a peer appears, paced to a byte rate.
+// The writes are kept as whole records, so datagram boundaries survive. They are held in memory first,
+// then in a memory-mapped file, and dropped when both are full. Everything held is lost when the connection is closed.
+// Only the writer thread may write and flush.
+public class StoreAndForwardConnection extends ConnectionDecorator
+{
+    private static final int HEADER_SIZE = 4;
+    private static final int WRAP_MARKER = -1;
+    // the largest write which is held
+    private static final int MAX_RECORD_SIZE = 65535;
+    // replay can catch up after a pause of the writer thread, but not burst the whole backlog at once
+    private static final long MAX_REPLAY_BURST_NANOS = 10_000_000L;
+
+    private final RecordRing mMemory;
+    private final File mSpillFile;
+    private final int mSpillFileBytes;
+    // mapped on the first spill, null if no file is used or it can't be created
+    private RecordRing mFile = null;
+    private boolean mIsFileFailed = false;
+    private FileChannel mFileChannel = null;
+
+    // 0: as fast as the connection takes it
+    private long mReplayBytesPerSecond = 0;
+    private long mNextReplayNanos = 0;
+    // the record being replayed
+    private final byte[] mRecordBuffer = new byte[MAX_RECORD_SIZE];
+    // a direct buffer being held, created on first use
+    private byte[] mDirectCopy = null;
+
+    private volatile long mHeldBytes = 0;
+    private volatile long mDroppedBytes = 0;
+    private volatile long mReplayedBytes = 0;
+
+    // memoryBytes: held in memory, spillFile: null to hold nothing more, spillFileBytes: the largest the file gets
+    public StoreAndForwardConnection(Connection connection, int memoryBytes, File spillFile, int spillFileBytes)
+    {
+        super(connection);
+        mMemory = new RecordRing(ByteBuffer.allocate(Math.max(RecordRing.align(memoryBytes), 2 * RecordRing.align(HEADER_SIZE + MAX_RECORD_SIZE))));
+        mSpillFile = spillFile;
+        mSpillFileBytes = RecordRing.align(spillFileBytes);
+    }
+
+    @Override
+    public void close()
+    {
+        super.close();
+        try
+        {
+            if (mFileChannel != null) mFileChannel.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        // still mapped until collected, which is fine on Linux
+        if (mSpillFile != null) mSpillFile.delete();
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        int writeLen = Math.min(data.length - offset, length);
+        if (mHeldBytes > 0) flush();
+        if (mHeldBytes == 0 && mConnection.isPeerConnected())
+        {
+            int written = mConnection.write(data, offset, writeLen);
+            // the peer might have just left
+            if (written > 0 || mConnection.isPeerConnected()) return written;
+        }
+        return hold(data, offset, writeLen) ? writeLen : 0;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (src.hasArray())
+        {
+            int written = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            if (written > 0) src.position(src.position() + written);
+            return written;
+        }
+        if (mHeldBytes == 0 && mConnection.isPeerConnected()) return mConnection.write(src);
+        if (mDirectCopy == null) mDirectCopy = new byte[MAX_RECORD_SIZE];
+        int writeLen = Math.min(src.remaining(), MAX_RECORD_SIZE);
+        src.get(mDirectCopy, 0, writeLen);
+        return write(mDirectCopy, 0, writeLen);
+    }
+
+    // Replays what the replay rate allows, then flushes the decorated connection
+    @Override
+    public int flush() throws IOException
+    {
+        long now = System.nanoTime();
+        if (mNextReplayNanos - (now - MAX_REPLAY_BURST_NANOS) < 0) mNextReplayNanos = now - MAX_REPLAY_BURST_NANOS;
+        while (mHeldBytes > 0 && mConnection.isPeerConnected())
+        {
+            if (mReplayBytesPerSecond > 0 && mNextReplayNanos - now > 0) break;
+            // the memory holds the older records, see hold()
+            RecordRing ring = mMemory.isEmpty() ? mFile : mMemory;
+            int length = ring.peek(mRecordBuffer);
+            int written = mConnection.write(mRecordBuffer, 0, length);
+            if (written == 0 && !mConnection.isPeerConnected()) break;
+            ring.remove();
+            mHeldBytes -= length;
+            mReplayedBytes += length;
+            if (mReplayBytesPerSecond > 0) mNextReplayNanos += length * 1_000_000_000L / mReplayBytesPerSecond;
+        }
+        return (int) Math.min(mHeldBytes + mConnection.flush(), Integer.MAX_VALUE);
+    }
+
+    private boolean hold(byte[] data, int offset, int length)
+    {
+        if (length > MAX_RECORD_SIZE)
+        {
+            mDroppedBytes += length;
+            return false;
+        }
+        // once a record goes to the file, the next ones follow it until the file is empty, so the order is kept
+        boolean held = (mFile == null || mFile.isEmpty()) && mMemory.put(data, offset, length);
+        if (!held && openFile()) held = mFile.put(data, offset, length);
+        if (!held)
+        {
+            mDroppedBytes += length;
+            return false;
+        }
+        if (mHeldBytes == 0) mNextReplayNanos = System.nanoTime();
+        mHeldBytes += length;
+        return true;
+    }
+
+    private boolean openFile()
+    {
+        if (mFile != null) return true;
+        if (mSpillFile == null || mIsFileFailed) return false;
+        try
+        {
+            // writing to a mapped page without space behind it crashes the process
+            File dir = mSpillFile.getAbsoluteFile().getParentFile();
+            if (dir == null || dir.getUsableSpace() < 2L * mSpillFileBytes) throw new IOException("Not enough space for " + mSpillFile);
+            RandomAccessFile file = new RandomAccessFile(mSpillFile, "rw");
+            file.setLength(mSpillFileBytes);
+            mFileChannel = file.getChannel();
+            mFile = new RecordRing(mFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSpillFileBytes));
+            return true;
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            mIsFileFailed = true;
+            return false;
+        }
+    }
+
+    // Bytes waiting for a peer
+    public long getHeldBytes() {return mHeldBytes;}
+
+    // Bytes which didn't fit
+    public long getDroppedBytes() {return mDroppedBytes;}
+
+    public long getReplayedBytes() {return mReplayedBytes;}
+
+    public long getReplayBytesPerSecond() {return mReplayBytesPerSecond;}
+
+    // 0: as fast as the connection takes it, e.g. the byte rate of the serial line the data came from
+    public void setReplayBytesPerSecond(long bytesPerSecond) {this.mReplayBytesPerSecond = Math.max(bytesPerSecond, 0);}
+
+    // FIFO of length-prefixed records in a fixed buffer, a record never wraps around the end
+    private static class RecordRing
+    {
+        private final ByteBuffer mBuffer;
+        private final int mCapacity;
+        // positions only grow, the offset is position % capacity
+        private long mHead = 0;
+        private long mTail = 0;
+
+        RecordRing(ByteBuffer buffer)
+        {
+            mBuffer = buffer;
+            mCapacity = buffer.capacity();
+        }
+
+        static int align(int size) {return (size + 3) & ~3;}
+
+        boolean isEmpty() {return mHead == mTail;}
+
+        boolean put(byte[] data, int offset, int length)
+        {
+            int tailOffset = (int) (mTail % mCapacity);
+            int room = align(HEADER_SIZE + length);
+            int skip = mCapacity - tailOffset >= room ? 0 : mCapacity - tailOffset;
+            if (mTail + skip + room - mHead > mCapacity) return false;
+            if (skip != 0)
+            {
+                mBuffer.putInt(tailOffset, WRAP_MARKER);
+                tailOffset = 0;
+            }
+            mBuffer.putInt(tailOffset, length);
+            mBuffer.position(tailOffset + HEADER_SIZE);
+            mBuffer.put(data, offset, length);
+            mTail += skip + room;
+            return true;
+        }
+
+        // Copies the oldest record into dst, returns its length
+        int peek(byte[] dst)
+        {
+            int headOffset = skipWrap();
+            int length = mBuffer.getInt(headOffset);
+            mBuffer.position(headOffset + HEADER_SIZE);
+            mBuffer.get(dst, 0, length);
+            return length;
+        }
+
+        void remove()
+        {
+            int headOffset = skipWrap();
+            mHead += align(HEADER_SIZE + mBuffer.getInt(headOffset));
+        }
+
+        private int skipWrap()
+        {
+            int headOffset = (int) (mHead % mCapacity);
+            if (mBuffer.getInt(headOffset) != WRAP_MARKER) return headOffset;
+            mHead += mCapacity - headOffset;
+            return 0;
+        }
+    }
+}
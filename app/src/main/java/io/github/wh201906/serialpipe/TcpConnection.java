@@ -0,0 +1,308 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+// Server mode: accepts one client at a time, and waits for the next one when it leaves.
+// Client mode: connects from the reading thread, and reconnects when the connection is lost.
+// Data written while no peer is connected is discarded.
+public class TcpConnection extends BaseConnection
+{
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+    private boolean mIsServerMode = false;
+    private InetAddress mLocalAddress = null;
+    private int mLocalPort = 0;
+    private String mRemoteHost = null;
+    private int mRemotePort = 0;
+    private boolean mTcpNoDelay = true;
+    // 0: system default
+    private int mSendBufferSize = 0;
+    private int mReceiveBufferSize = 0;
+    private long mReconnectIntervalMillis = 1000;
+    // 0: read() waits for data or a peer, otherwise it returns 0 after this long
+    // Connecting in client mode still takes up to CONNECT_TIMEOUT_MILLIS + mReconnectIntervalMillis
+    private int mReadTimeoutMillis = 0;
+
+    private ServerSocket mServerSocket = null;
+    private final Object mSocketLock = new Object();
+    private volatile Socket mSocket = null;
+    private volatile int mPeerGeneration = 0;
+    private InputStream mInputStream = null;
+    private OutputStream mOutputStream = null;
+
+    @Override
+    public boolean open()
+    {
+        if (mIsServerMode)
+        {
+            try
+            {
+                mServerSocket = new ServerSocket();
+                mServerSocket.setReuseAddress(true);
+                // accepted sockets inherit it, and it has to be set before listen() to get a large window
+                if (mReceiveBufferSize > 0) mServerSocket.setReceiveBufferSize(mReceiveBufferSize);
+                mServerSocket.setSoTimeout(mReadTimeoutMillis);
+                if (mLocalAddress != null && !mLocalAddress.isAnyLocalAddress())
+                    mServerSocket.bind(new InetSocketAddress(mLocalAddress, mLocalPort));
+                else
+                    mServerSocket.bind(new InetSocketAddress(mLocalPort));
+            } catch (IOException e)
+            {
+                mLastException = e;
+                close();
+                return false;
+            }
+        }
+        // in client mode, the remote host must be set first
+        else if (mRemoteHost == null || mRemotePort == 0) return false;
+
+        mIsOpened = true;
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        mIsOpened = false;
+        dropSocket(mSocket);
+        try
+        {
+            if (mServerSocket != null) mServerSocket.close();
+        } catch (IOException e)
+        {
+            mLastException = e;
+            e.printStackTrace();
+        } finally
+        {
+            mServerSocket = null;
+        }
+    }
+
+    // Blocks until a peer is connected
+    // Returns 0 if the peer is gone or the connection attempt failed, the next call will wait for a new one
+    @Override
+    public int read(byte[] buf, int maxLength) throws IOException {return read(buf, 0, maxLength);}
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        if (!mIsOpened) throw new IOException("TCP connection not open");
+
+        Socket socket = mSocket;
+        if (socket == null)
+        {
+            socket = mIsServerMode ? accept() : connect();
+            if (socket == null) return 0;
+        }
+        try
+        {
+            int readLen = mInputStream.read(buf, offset, Math.min(buf.length - offset, maxLength));
+            if (readLen >= 0) return readLen;
+            // closed by the peer
+            dropSocket(socket);
+            return 0;
+        } catch (SocketTimeoutException e)
+        {
+            return 0;
+        } catch (IOException e)
+        {
+            mLastException = e;
+            dropSocket(socket);
+            if (!mIsOpened) throw e;
+            return 0;
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int length) throws IOException {return write(data, 0, length);}
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        if (!mIsOpened) throw new IOException("TCP connection not open");
+
+        Socket socket = mSocket;
+        if (socket == null) return 0; // no peer
+        int writeLen = Math.min(data.length - offset, length);
+        try
+        {
+            mOutputStream.write(data, offset, writeLen);
+        } catch (IOException e)
+        {
+            mLastException = e;
+            // the reading thread will wait for a new peer
+            dropSocket(socket);
+            return 0;
+        }
+        return writeLen;
+    }
+
+    private Socket accept() throws IOException
+    {
+        ServerSocket serverSocket = mServerSocket;
+        if (serverSocket == null) throw new IOException("TCP connection not open");
+        Socket socket;
+        try
+        {
+            socket = serverSocket.accept();
+        } catch (SocketTimeoutException e)
+        {
+            return null;
+        } catch (IOException e)
+        {
+            mLastException = e;
+            // close() closes the server socket to stop waiting
+            if (!mIsOpened) throw e;
+            return null;
+        }
+        return setSocket(socket);
+    }
+
+    private Socket connect() throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            if (mSendBufferSize > 0) socket.setSendBufferSize(mSendBufferSize);
+            if (mReceiveBufferSize > 0) socket.setReceiveBufferSize(mReceiveBufferSize);
+            // resolved here, so open() can be called from the UI thread
+            socket.connect(new InetSocketAddress(mRemoteHost, mRemotePort), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e)
+        {
+            mLastException = e;
+            socket.close();
+            try
+            {
+                Thread.sleep(mReconnectIntervalMillis);
+            } catch (InterruptedException ignored)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+        return setSocket(socket);
+    }
+
+    private Socket setSocket(Socket socket) throws IOException
+    {
+        try
+        {
+            socket.setTcpNoDelay(mTcpNoDelay);
+            socket.setSoTimeout(mReadTimeoutMillis);
+            if (mSendBufferSize > 0) socket.setSendBufferSize(mSendBufferSize);
+            if (mReceiveBufferSize > 0) socket.setReceiveBufferSize(mReceiveBufferSize);
+            synchronized (mSocketLock)
+            {
+                mInputStream = socket.getInputStream();
+                mOutputStream = socket.getOutputStream();
+                mSocket = socket;
+                mPeerGeneration++;
+            }
+        } catch (SocketException e)
+        {
+            mLastException = e;
+            socket.close();
+            return null;
+        }
+        // close() might be called while waiting for the peer
+        if (!mIsOpened) dropSocket(socket);
+        return socket;
+    }
+
+    private void dropSocket(Socket socket)
+    {
+        if (socket == null) return;
+        synchronized (mSocketLock)
+        {
+            if (mSocket == socket) mSocket = null;
+        }
+        try
+        {
+            socket.close();
+        } catch (IOException e)
+        {
+            mLastException = e;
+        }
+    }
+
+    @Override
+    public boolean isPeerConnected() {return mSocket != null;}
+
+    // Every accepted or connected socket is a new peer
+    @Override
+    public int getPeerGeneration() {return mPeerGeneration;}
+
+    // The buffer sizes the system actually uses, -1 if no peer is connected
+    public int getEffectiveSendBufferSize()
+    {
+        Socket socket = mSocket;
+        try
+        {
+            return socket == null ? -1 : socket.getSendBufferSize();
+        } catch (SocketException e)
+        {
+            return -1;
+        }
+    }
+
+    public int getEffectiveReceiveBufferSize()
+    {
+        Socket socket = mSocket;
+        try
+        {
+            return socket == null ? -1 : socket.getReceiveBufferSize();
+        } catch (SocketException e)
+        {
+            return -1;
+        }
+    }
+
+    public boolean isServerMode() {return mIsServerMode;}
+
+    public void setIsServerMode(boolean isServerMode) {this.mIsServerMode = isServerMode;}
+
+    public InetAddress getLocalAddress() {return mLocalAddress;}
+
+    public void setLocalAddress(InetAddress localAddress) {this.mLocalAddress = localAddress;}
+
+    public int getLocalPort() {return mLocalPort;}
+
+    public void setLocalPort(int localPort) {this.mLocalPort = localPort;}
+
+    public String getRemoteHost() {return mRemoteHost;}
+
+    public void setRemoteHost(String remoteHost) {this.mRemoteHost = remoteHost;}
+
+    public int getRemotePort() {return mRemotePort;}
+
+    public void setRemotePort(int remotePort) {this.mRemotePort = remotePort;}
+
+    public boolean getTcpNoDelay() {return mTcpNoDelay;}
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {this.mTcpNoDelay = tcpNoDelay;}
+
+    public int getSendBufferSize() {return mSendBufferSize;}
+
+    public void setSendBufferSize(int sendBufferSize) {this.mSendBufferSize = sendBufferSize;}
+
+    public int getReceiveBufferSize() {return mReceiveBufferSize;}
+
+    public void setReceiveBufferSize(int receiveBufferSize) {this.mReceiveBufferSize = receiveBufferSize;}
+
+    public long getReconnectIntervalMillis() {return mReconnectIntervalMillis;}
+
+    public void setReconnectIntervalMillis(long reconnectIntervalMillis) {this.mReconnectIntervalMillis = reconnectIntervalMillis;}
+
+    public int getReadTimeoutMillis() {return mReadTimeoutMillis;}
+
+    // Takes effect on the next open() and the next peer
+    public void setReadTimeoutMillis(int readTimeoutMillis) {this.mReadTimeoutMillis = Math.max(readTimeoutMillis, 0);}
+}
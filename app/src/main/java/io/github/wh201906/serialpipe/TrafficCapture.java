@@ -0,0 +1,303 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Records the forwarded packets into a pcap file (nanosecond timestamps, LINKTYPE_USER0), readable by Wireshark.
+// Every packet starts with a 2-byte pseudo header: the direction (DIRECTION_*) and the port index.
+// The forwarding threads only copy the packet into a ring of their own channel, never wait and drop the packet if it is full.
+// A background thread merges the channels by timestamp and appends them to a memory-mapped file.
+public class TrafficCapture
+{
+    public static final int LINKTYPE_USER0 = 147;
+    public static final byte DIRECTION_FROM_NETWORK = 0;
+    public static final byte DIRECTION_FROM_SERIAL = 1;
+
+    // pcap with nanosecond timestamps, written in native (little-endian) order
+    private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+    private static final int PCAP_HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int PSEUDO_HEADER_SIZE = 2;
+    // in the ring, before the data: System.nanoTime() and the original length
+    private static final int RING_PREFIX_SIZE = 12;
+    private static final long MAP_CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final long WRITER_IDLE_NANOS = 1_000_000L;
+
+    private final File mFile;
+    private final int mSnapLength;
+    private final int mRingBytes;
+    private final List<Channel> mChannels = new CopyOnWriteArrayList<>();
+    private final AtomicLong mCapturedPackets = new AtomicLong();
+    private final AtomicLong mDroppedPackets = new AtomicLong();
+
+    private volatile boolean mIsRunning = false;
+    private Thread mWriterThread = null;
+    private volatile Exception mLastException = null;
+
+    // writer thread only
+    private RandomAccessFile mRandomAccessFile = null;
+    private FileChannel mFileChannel = null;
+    private MappedByteBuffer mMap = null;
+    private long mMapStart = 0;
+    private volatile long mFileBytes = 0;
+    // the pcap timestamps are wall clock, the channels record System.nanoTime()
+    private long mStartEpochNanos = 0;
+    private long mStartNanoTime = 0;
+
+    // snapLength: longer packets are truncated, ringBytes: the ring of each channel
+    public TrafficCapture(File file, int snapLength, int ringBytes)
+    {
+        mFile = file;
+        mSnapLength = Math.max(snapLength, 1);
+        mRingBytes = ringBytes;
+    }
+
+    // One channel per producer thread, e.g. the reader of each end of a Bridge
+    // Can be called while the capture is running
+    public Channel addChannel(byte direction, int port)
+    {
+        Channel channel = new Channel(direction, port);
+        mChannels.add(channel);
+        return channel;
+    }
+
+    // Creates the file and starts the writer thread, returns false on failure, see getLastException()
+    public boolean start()
+    {
+        if (mIsRunning) return true;
+        try
+        {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mFileChannel = mRandomAccessFile.getChannel();
+            mMapStart = 0;
+            mMap = null;
+            if (!ensureRoom(PCAP_HEADER_SIZE)) throw new IOException("Not enough space for " + mFile);
+            mMap.putInt(PCAP_MAGIC_NANOS);
+            mMap.putShort((short) 2);
+            mMap.putShort((short) 4);
+            mMap.putInt(0); // GMT
+            mMap.putInt(0); // accuracy
+            mMap.putInt(PSEUDO_HEADER_SIZE + mSnapLength);
+            mMap.putInt(LINKTYPE_USER0);
+            mFileBytes = mMap.position();
+        } catch (IOException e)
+        {
+            mLastException = e;
+            closeFile();
+            return false;
+        }
+        mStartEpochNanos = System.currentTimeMillis() * 1_000_000L;
+        mStartNanoTime = System.nanoTime();
+        mIsRunning = true;
+        mWriterThread = new Thread(this::runWriter, "capture-writer");
+        mWriterThread.start();
+        return true;
+    }
+
+    // Writes what is already captured and closes the file, detach the channels from the producers first
+    public void stop()
+    {
+        if (!mIsRunning) return;
+        mIsRunning = false;
+        try
+        {
+            mWriterThread.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        mWriterThread = null;
+    }
+
+    public boolean isRunning() {return mIsRunning;}
+
+    public File getFile() {return mFile;}
+
+    public long getCapturedPackets() {return mCapturedPackets.get();}
+
+    // Lost because a ring was full or the disk is almost full
+    public long getDroppedPackets() {return mDroppedPackets.get();}
+
+    public long getFileBytes() {return mFileBytes;}
+
+    public Exception getLastException() {return mLastException;}
+
+    private void runWriter()
+    {
+        try
+        {
+            while (true)
+            {
+                // detached channels might still get the packet which was being recorded, so stop only once nothing is left
+                boolean isRunning = mIsRunning;
+                if (writeAvailable() > 0) continue;
+                if (!isRunning) break;
+                LockSupport.parkNanos(WRITER_IDLE_NANOS);
+            }
+        } catch (IOException e)
+        {
+            mLastException = e;
+            mIsRunning = false;
+        } finally
+        {
+            closeFile();
+        }
+    }
+
+    // Writes the queued records, oldest first, returns how many
+    private int writeAvailable() throws IOException
+    {
+        int count = 0;
+        while (true)
+        {
+            Channel oldest = null;
+            for (Channel channel : mChannels)
+            {
+                if (channel.mHead == null) channel.mHead = channel.mRing.take(0);
+                if (channel.mHead != null && (oldest == null || channel.getHeadNanos() - oldest.getHeadNanos() < 0)) oldest = channel;
+            }
+            if (oldest == null) return count;
+            writeRecord(oldest, oldest.mHead);
+            oldest.mRing.release(oldest.mHead);
+            oldest.mHead = null;
+            count++;
+        }
+    }
+
+    private void writeRecord(Channel channel, PacketBuffer record) throws IOException
+    {
+        byte[] data = record.getData();
+        int offset = record.getOffset();
+        int length = record.getLength() - RING_PREFIX_SIZE;
+        long epochNanos = mStartEpochNanos + (getLong(data, offset) - mStartNanoTime);
+        int originalLength = getInt(data, offset + 8);
+        if (!ensureRoom(RECORD_HEADER_SIZE + PSEUDO_HEADER_SIZE + length))
+        {
+            mDroppedPackets.incrementAndGet();
+            return;
+        }
+        mMap.putInt((int) (epochNanos / 1_000_000_000L));
+        mMap.putInt((int) (epochNanos % 1_000_000_000L));
+        mMap.putInt(PSEUDO_HEADER_SIZE + length);
+        mMap.putInt(PSEUDO_HEADER_SIZE + originalLength);
+        mMap.put(channel.mDirection);
+        mMap.put((byte) channel.mPort);
+        mMap.put(data, offset + RING_PREFIX_SIZE, length);
+        mFileBytes = mMapStart + mMap.position();
+        mCapturedPackets.incrementAndGet();
+    }
+
+    // Maps the next chunk of the file if the current one is too small
+    // Returns false if the disk is almost full, writing to a mapped page without space behind it crashes the process
+    private boolean ensureRoom(int bytes) throws IOException
+    {
+        if (mMap != null && mMap.remaining() >= bytes) return true;
+        long position = mMap == null ? mMapStart : mMapStart + mMap.position();
+        long size = Math.max(MAP_CHUNK_BYTES, bytes);
+        if (mFile.getUsableSpace() < 2 * size) return false;
+        mMap = mFileChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+        mMapStart = position;
+        return true;
+    }
+
+    private void closeFile()
+    {
+        try
+        {
+            // the last chunk is mapped beyond the data
+            if (mFileChannel != null) mFileChannel.truncate(mFileBytes);
+            if (mRandomAccessFile != null) mRandomAccessFile.close();
+        } catch (IOException e)
+        {
+            mLastException = e;
+        } finally
+        {
+            mMap = null;
+            mFileChannel = null;
+            mRandomAccessFile = null;
+        }
+    }
+
+    private static long getLong(byte[] buf, int offset)
+    {
+        return ((long) getInt(buf, offset) << 32) | (getInt(buf, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int getInt(byte[] buf, int offset)
+    {
+        return (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    // The packets of one direction of one port
+    public class Channel
+    {
+        private final byte mDirection;
+        private final int mPort;
+        private final ByteRingPacketQueue mRing;
+        // a reader thread which is still exiting might overlap with the next one, the loser drops its packet
+        private final AtomicBoolean mIsRecording = new AtomicBoolean();
+        // writer thread only, the oldest record not written yet
+        private PacketBuffer mHead = null;
+
+        private Channel(byte direction, int port)
+        {
+            mDirection = direction;
+            mPort = port;
+            mRing = new ByteRingPacketQueue(mRingBytes, RING_PREFIX_SIZE + mSnapLength, false, WaitStrategy.Type.SPIN_PARK);
+        }
+
+        // Copies the valid bytes of the packet, never waits
+        public void record(PacketBuffer packet)
+        {
+            if (!mIsRunning) return;
+            if (!mIsRecording.compareAndSet(false, true))
+            {
+                mDroppedPackets.incrementAndGet();
+                return;
+            }
+            try
+            {
+                long now = System.nanoTime();
+                int length = Math.min(packet.getLength(), mSnapLength);
+                // only the room of this packet, the ring holds many short ones even with a long snap length
+                PacketBuffer record = mRing.acquire(RING_PREFIX_SIZE + length, 0);
+                if (record == null)
+                {
+                    mDroppedPackets.incrementAndGet();
+                    return;
+                }
+                byte[] data = record.getData();
+                int offset = record.getOffset();
+                putInt(data, offset, (int) (now >>> 32));
+                putInt(data, offset + 4, (int) now);
+                putInt(data, offset + 8, packet.getLength());
+                packet.copyTo(packet.getOffset(), data, offset + RING_PREFIX_SIZE, length);
+                record.setLength(RING_PREFIX_SIZE + length);
+                mRing.publish(record, 0);
+            } finally
+            {
+                mIsRecording.set(false);
+            }
+        }
+
+        private long getHeadNanos() {return getLong(mHead.getData(), mHead.getOffset());}
+    }
+}
@@ -0,0 +1,182 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters of one forwarding direction, e.g. serial -> network of one pipeline.
+// The reader thread owns the receive-side counters and the writer thread owns the send-side ones,
+// so each counter has a single writer and is updated with lazySet(), no CAS or lock on the hot path.
+// Drops can be counted from any thread and use atomic adds, they are rare.
+public class TrafficMetrics
+{
+    // bucket i counts write latencies in [2^i, 2^(i+1)) ns, the last one is open-ended (> 1s)
+    public static final int LATENCY_BUCKET_NUM = 31;
+
+    // reader side
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mReceivedPackets = new AtomicLong();
+    private final AtomicLong mQueueHighWaterMark = new AtomicLong();
+    private final AtomicLong mReaderStallNanos = new AtomicLong();
+    // writer side
+    private final AtomicLong mSentBytes = new AtomicLong();
+    private final AtomicLong mSentPackets = new AtomicLong();
+    private final AtomicLongArray mWriteLatencyBuckets = new AtomicLongArray(LATENCY_BUCKET_NUM);
+    private final AtomicLong mMaxWriteLatencyNanos = new AtomicLong();
+    // any thread
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    private final AtomicLong mDroppedPackets = new AtomicLong();
+
+    // Reader side, after a successful read
+    public void onReceived(int bytes)
+    {
+        mReceivedBytes.lazySet(mReceivedBytes.get() + bytes);
+        mReceivedPackets.lazySet(mReceivedPackets.get() + 1);
+    }
+
+    // Reader side, with the queue size right after publishing
+    public void onQueueDepth(int depth)
+    {
+        if (depth > mQueueHighWaterMark.get()) mQueueHighWaterMark.lazySet(depth);
+    }
+
+    // Reader side, time spent waiting for a free buffer or for space in the queue
+    public void onReaderStall(long nanos) {mReaderStallNanos.lazySet(mReaderStallNanos.get() + nanos);}
+
+    // Writer side, after Connection.write()
+    public void onWritten(int bytes, long latencyNanos)
+    {
+        mSentBytes.lazySet(mSentBytes.get() + bytes);
+        mSentPackets.lazySet(mSentPackets.get() + 1);
+        int bucket = latencyNanos <= 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(latencyNanos), LATENCY_BUCKET_NUM - 1);
+        mWriteLatencyBuckets.lazySet(bucket, mWriteLatencyBuckets.get(bucket) + 1);
+        if (latencyNanos > mMaxWriteLatencyNanos.get()) mMaxWriteLatencyNanos.lazySet(latencyNanos);
+    }
+
+    // Writer side, Connection.write() with its latency recorded, anything not written is counted as dropped
+    public int write(Connection connection, byte[] data, int offset, int length) throws IOException
+    {
+        long start = System.nanoTime();
+        int written = connection.write(data, offset, length);
+        onWritten(written, System.nanoTime() - start);
+        if (written < length) onDropped(length - written);
+        return written;
+    }
+
+    public int write(Connection connection, ByteBuffer src) throws IOException
+    {
+        int length = src.remaining();
+        long start = System.nanoTime();
+        int written = connection.write(src);
+        onWritten(written, System.nanoTime() - start);
+        if (written < length) onDropped(length - written);
+        return written;
+    }
+
+    public void onDropped(int bytes)
+    {
+        mDroppedBytes.addAndGet(bytes);
+        mDroppedPackets.incrementAndGet();
+    }
+
+    // Can be called from any thread, the counters are read one by one so they might be off by one packet
+    public Snapshot snapshot()
+    {
+        long[] buckets = new long[LATENCY_BUCKET_NUM];
+        for (int i = 0; i < LATENCY_BUCKET_NUM; i++)
+            buckets[i] = mWriteLatencyBuckets.get(i);
+        return new Snapshot(System.nanoTime(), mReceivedBytes.get(), mReceivedPackets.get(), mSentBytes.get(), mSentPackets.get(),
+                mDroppedBytes.get(), mDroppedPackets.get(), mQueueHighWaterMark.get(), mReaderStallNanos.get(), buckets, mMaxWriteLatencyNanos.get());
+    }
+
+    public static class Snapshot
+    {
+        private final long mTimeNanos;
+        private final long mReceivedBytes;
+        private final long mReceivedPackets;
+        private final long mSentBytes;
+        private final long mSentPackets;
+        private final long mDroppedBytes;
+        private final long mDroppedPackets;
+        private final long mQueueHighWaterMark;
+        private final long mReaderStallNanos;
+        private final long[] mWriteLatencyBuckets;
+        private final long mMaxWriteLatencyNanos;
+
+        private Snapshot(long timeNanos, long receivedBytes, long receivedPackets, long sentBytes, long sentPackets, long droppedBytes, long droppedPackets,
+                         long queueHighWaterMark, long readerStallNanos, long[] writeLatencyBuckets, long maxWriteLatencyNanos)
+        {
+            mTimeNanos = timeNanos;
+            mReceivedBytes = receivedBytes;
+            mReceivedPackets = receivedPackets;
+            mSentBytes = sentBytes;
+            mSentPackets = sentPackets;
+            mDroppedBytes = droppedBytes;
+            mDroppedPackets = droppedPackets;
+            mQueueHighWaterMark = queueHighWaterMark;
+            mReaderStallNanos = readerStallNanos;
+            mWriteLatencyBuckets = writeLatencyBuckets;
+            mMaxWriteLatencyNanos = maxWriteLatencyNanos;
+        }
+
+        public long getTimeNanos() {return mTimeNanos;}
+
+        public long getReceivedBytes() {return mReceivedBytes;}
+
+        public long getReceivedPackets() {return mReceivedPackets;}
+
+        public long getSentBytes() {return mSentBytes;}
+
+        public long getSentPackets() {return mSentPackets;}
+
+        public long getDroppedBytes() {return mDroppedBytes;}
+
+        public long getDroppedPackets() {return mDroppedPackets;}
+
+        public long getQueueHighWaterMark() {return mQueueHighWaterMark;}
+
+        public long getReaderStallNanos() {return mReaderStallNanos;}
+
+        public long getMaxWriteLatencyNanos() {return mMaxWriteLatencyNanos;}
+
+        // Upper bound of the bucket which holds the given percentile (0-100) of the writes since an earlier snapshot
+        // previous: null for all writes so far
+        // Returns 0 if nothing was written
+        public long getWriteLatencyPercentileNanos(double percentile, Snapshot previous)
+        {
+            long total = 0;
+            for (int i = 0; i < mWriteLatencyBuckets.length; i++)
+                total += getBucketCount(i, previous);
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < mWriteLatencyBuckets.length; i++)
+            {
+                seen += getBucketCount(i, previous);
+                if (seen >= rank) return i == mWriteLatencyBuckets.length - 1 ? mMaxWriteLatencyNanos : 1L << (i + 1);
+            }
+            return mMaxWriteLatencyNanos;
+        }
+
+        private long getBucketCount(int i, Snapshot previous)
+        {
+            return previous == null ? mWriteLatencyBuckets[i] : mWriteLatencyBuckets[i] - previous.mWriteLatencyBuckets[i];
+        }
+
+        // Sent bytes per second since an earlier snapshot of the same metrics
+        public long getSendRate(Snapshot previous)
+        {
+            long elapsed = mTimeNanos - previous.mTimeNanos;
+            return elapsed <= 0 ? 0 : (mSentBytes - previous.mSentBytes) * 1_000_000_000L / elapsed;
+        }
+
+        // The fraction of time the reader was blocked by a full queue since an earlier snapshot, 0-1
+        // Close to 1 means the writer side is the bottleneck
+        public double getReaderStallRatio(Snapshot previous)
+        {
+            long elapsed = mTimeNanos - previous.mTimeNanos;
+            return elapsed <= 0 ? 0 : (double) (mReaderStallNanos - previous.mReaderStallNanos) / elapsed;
+        }
+    }
+}
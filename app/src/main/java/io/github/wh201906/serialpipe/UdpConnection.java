@@ -1,11 +1,15 @@
 package io.github.wh201906.serialpipe;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
 
 public class UdpConnection extends BaseConnection
 {
@@ -15,34 +19,34 @@ public class UdpConnection extends BaseConnection
     private InetAddress mOutboundAddress = null;
     private boolean mIsServerMode = false;
     private boolean mAlwaysUpdateOutboundSocketAddress = false;
+    // server mode only: send to every peer seen within the idle timeout instead of the last one
+    private boolean mIsMultiPeer = false;
+    private final UdpPeerTable mPeerTable = new UdpPeerTable(32, 60_000_000_000L);
+    private volatile int mPeerGeneration = 0;
+    // writer thread only
+    private volatile long mNoPeerDrops = 0;
+    // 0: read() waits for a datagram, otherwise it returns 0 after this long
+    private int mReadTimeoutMillis = 0;
+    // 0: system default, the kernel drops datagrams which arrive while the receive buffer is full
+    private int mSendBufferSize = 0;
+    private int mReceiveBufferSize = 0;
 
     private DatagramSocket mSocket = null;
+    // reused for every datagram, the reader and the writer have their own
+    private final DatagramPacket mReceivePacket = new DatagramPacket(new byte[0], 0);
+    private final DatagramPacket mSendPacket = new DatagramPacket(new byte[0], 0);
 
     @Override
     public boolean open()
     {
-        if (!mIsServerMode && (mOutboundAddress == null || mOutboundPort == 0))
-            // in "client" mode, the outboundAddress and outboundPort must be set first
-            return false;
-        else if (mIsServerMode)
-        {
-            // unspecified yet
-            mOutboundAddress = null;
-            mOutboundPort = 0;
-        }
-
-        InetSocketAddress inboundSocketAddress;
-        if (mInboundAddress != null && !mInboundAddress.isAnyLocalAddress())
-            // specific local address
-            inboundSocketAddress = new InetSocketAddress(mInboundAddress, mInboundPort);
-        else
-            // wildcard
-            inboundSocketAddress = new InetSocketAddress(mInboundPort);
+        if (!prepareOutboundSocketAddress()) return false;
         try
         {
             mSocket = new DatagramSocket(null);
             mSocket.setReuseAddress(true);
-            mSocket.bind(inboundSocketAddress);
+            applyBufferSizes(mSocket);
+            mSocket.bind(getInboundSocketAddress());
+            mSocket.setSoTimeout(mReadTimeoutMillis);
         } catch (SocketException e)
         {
             mLastException = e;
@@ -62,47 +66,205 @@ public class UdpConnection extends BaseConnection
     }
 
     @Override
-    public int read(byte[] buf, int maxLength) throws IOException
+    public int read(byte[] buf, int maxLength) throws IOException {return read(buf, 0, maxLength);}
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
     {
         if (mSocket == null) throw new IOException("UDP connection not open");
 
-        DatagramPacket receivePacket = new DatagramPacket(buf, Math.min(buf.length, maxLength));
+        mReceivePacket.setData(buf, offset, Math.min(buf.length - offset, maxLength));
         try
         {
-            mSocket.receive(receivePacket);
+            mSocket.receive(mReceivePacket);
+        } catch (SocketTimeoutException e)
+        {
+            return 0;
         } catch (IOException e)
         {
             mLastException = e;
             close();
             throw e;
         }
-        if (mIsServerMode && (mAlwaysUpdateOutboundSocketAddress || mOutboundAddress == null))
-        {
-            mOutboundAddress = receivePacket.getAddress();
-            mOutboundPort = receivePacket.getPort();
-        }
-        return receivePacket.getLength();
+        updateOutboundSocketAddress(mReceivePacket.getAddress(), mReceivePacket.getPort());
+        return mReceivePacket.getLength();
     }
 
     @Override
-    public int write(byte[] data, int length) throws IOException
+    public int write(byte[] data, int length) throws IOException {return write(data, 0, length);}
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
     {
         if (mSocket == null) throw new IOException("UDP connection not open");
+        if (!isPeerConnected()) return dropWithoutPeer();
 
-        int writeLen = Math.min(data.length, length);
-        DatagramPacket sendPacket = new DatagramPacket(data, writeLen, mOutboundAddress, mOutboundPort);
+        int writeLen = Math.min(data.length - offset, length);
+        mSendPacket.setData(data, offset, writeLen);
+        if (isMultiPeer())
+        {
+            long now = System.nanoTime();
+            for (UdpPeerTable.Peer peer : mPeerTable.getPeers())
+            {
+                if (mPeerTable.isActive(peer, now)) send(peer.getAddress(), peer.getPort());
+            }
+        }
+        else
+        {
+            send(mOutboundAddress, mOutboundPort);
+        }
+        return writeLen;
+    }
+
+    private void send(InetAddress address, int port) throws IOException
+    {
+        if (address != mSendPacket.getAddress()) mSendPacket.setAddress(address);
+        if (port != mSendPacket.getPort()) mSendPacket.setPort(port);
         try
         {
-            mSocket.send(sendPacket);
+            mSocket.send(mSendPacket);
         } catch (IOException e)
         {
             mLastException = e;
             close();
             throw e;
         }
-        return writeLen;
     }
 
+    // Returns false if the connection can't be opened with the current outbound settings
+    protected boolean prepareOutboundSocketAddress()
+    {
+        if (!mIsServerMode && (mOutboundAddress == null || mOutboundPort == 0))
+            // in "client" mode, the outboundAddress and outboundPort must be set first
+            return false;
+        else if (mIsServerMode)
+        {
+            // unspecified yet
+            mOutboundAddress = null;
+            mOutboundPort = 0;
+            mPeerTable.clear();
+        }
+        return true;
+    }
+
+    protected void applyBufferSizes(DatagramSocket socket) throws SocketException
+    {
+        if (mSendBufferSize > 0) socket.setSendBufferSize(mSendBufferSize);
+        if (mReceiveBufferSize > 0) socket.setReceiveBufferSize(mReceiveBufferSize);
+    }
+
+    // The socket of the connection, null if not open
+    protected DatagramSocket getSocket() {return mSocket;}
+
+    // The buffer sizes the system actually uses (Linux doubles the requested size), -1 if not open
+    public int getEffectiveSendBufferSize()
+    {
+        DatagramSocket socket = getSocket();
+        try
+        {
+            return socket == null ? -1 : socket.getSendBufferSize();
+        } catch (SocketException e)
+        {
+            return -1;
+        }
+    }
+
+    public int getEffectiveReceiveBufferSize()
+    {
+        DatagramSocket socket = getSocket();
+        try
+        {
+            return socket == null ? -1 : socket.getReceiveBufferSize();
+        } catch (SocketException e)
+        {
+            return -1;
+        }
+    }
+
+    // Datagrams the kernel dropped on the bound port, mostly because the receive buffer was full
+    // Counts every socket on the port, and -1 if unknown: not open, or /proc/net is not readable (Android 10+)
+    // Parses all of /proc/net/udp and udp6, so keep it off the UI thread
+    public long getKernelDrops()
+    {
+        DatagramSocket socket = getSocket();
+        if (socket == null) return -1;
+        long v4Drops = readProcNetUdpDrops("/proc/net/udp", socket.getLocalPort());
+        long v6Drops = readProcNetUdpDrops("/proc/net/udp6", socket.getLocalPort());
+        if (v4Drops < 0 && v6Drops < 0) return -1;
+        return Math.max(v4Drops, 0) + Math.max(v6Drops, 0);
+    }
+
+    // The sum of the "drops" column of the sockets bound to the port, -1 if none is found
+    private static long readProcNetUdpDrops(String path, int port)
+    {
+        // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+        String portSuffix = String.format(Locale.US, ":%04X", port);
+        long drops = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path)))
+        {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 13 || !fields[1].endsWith(portSuffix)) continue;
+                drops = Math.max(drops, 0) + Long.parseLong(fields[12]);
+            }
+        } catch (IOException | NumberFormatException e)
+        {
+            return -1;
+        }
+        return drops;
+    }
+
+    protected InetSocketAddress getInboundSocketAddress()
+    {
+        if (mInboundAddress != null && !mInboundAddress.isAnyLocalAddress())
+            // specific local address
+            return new InetSocketAddress(mInboundAddress, mInboundPort);
+        else
+            // wildcard
+            return new InetSocketAddress(mInboundPort);
+    }
+
+    // Called with the sender of every received datagram
+    protected void updateOutboundSocketAddress(InetAddress address, int port)
+    {
+        if (isMultiPeer())
+        {
+            mPeerTable.update(address, port);
+            return;
+        }
+        if (!mIsServerMode || (!mAlwaysUpdateOutboundSocketAddress && mOutboundAddress != null)) return;
+        // Compared by value, the packet may carry a new InetAddress for every datagram from the same sender
+        if (address.equals(mOutboundAddress) && port == mOutboundPort) return;
+        mOutboundAddress = address;
+        mOutboundPort = port;
+        mPeerGeneration++;
+    }
+
+    protected boolean isMultiPeer() {return mIsServerMode && mIsMultiPeer;}
+
+    // In server mode, false until the first datagram arrives, or while every peer is idle in multi-peer mode
+    @Override
+    public boolean isPeerConnected() {return isMultiPeer() ? mPeerTable.getActiveCount() > 0 : mOutboundAddress != null;}
+
+    // Changes with the outbound peer in server mode, not in multi-peer mode
+    @Override
+    public int getPeerGeneration() {return mPeerGeneration;}
+
+    // The writer thread has nowhere to send to, the write is dropped and counted
+    protected int dropWithoutPeer()
+    {
+        mNoPeerDrops++;
+        return 0;
+    }
+
+    // Datagrams dropped because no peer had sent anything yet, or every peer was idle in multi-peer mode
+    public long getNoPeerDrops() {return mNoPeerDrops;}
+
+    public UdpPeerTable getPeerTable() {return mPeerTable;}
+
     public int getInboundPort() {return mInboundPort;}
 
     public void setInboundPort(int inboundPort) {this.mInboundPort = inboundPort;}
@@ -127,4 +289,27 @@ public class UdpConnection extends BaseConnection
 
     public void setAlwaysUpdateOutboundSocketAddress(boolean alwaysUpdateOutboundSocketAddress) {this.mAlwaysUpdateOutboundSocketAddress = alwaysUpdateOutboundSocketAddress;}
 
+    public boolean isMultiPeerEnabled() {return mIsMultiPeer;}
+
+    public void setMultiPeerEnabled(boolean isMultiPeer) {this.mIsMultiPeer = isMultiPeer;}
+
+    public long getPeerIdleTimeoutMillis() {return mPeerTable.getIdleTimeoutNanos() / 1_000_000;}
+
+    public void setPeerIdleTimeoutMillis(long timeoutMillis) {mPeerTable.setIdleTimeoutNanos(timeoutMillis * 1_000_000);}
+
+    public int getReadTimeoutMillis() {return mReadTimeoutMillis;}
+
+    // Takes effect on the next open(), NioUdpConnection uses its select timeout in non-blocking mode instead
+    public void setReadTimeoutMillis(int readTimeoutMillis) {this.mReadTimeoutMillis = Math.max(readTimeoutMillis, 0);}
+
+    public int getSendBufferSize() {return mSendBufferSize;}
+
+    // Takes effect on the next open(), 0: system default, see getEffectiveSendBufferSize()
+    public void setSendBufferSize(int sendBufferSize) {this.mSendBufferSize = Math.max(sendBufferSize, 0);}
+
+    public int getReceiveBufferSize() {return mReceiveBufferSize;}
+
+    // Takes effect on the next open(), 0: system default, see getEffectiveReceiveBufferSize()
+    public void setReceiveBufferSize(int receiveBufferSize) {this.mReceiveBufferSize = Math.max(receiveBufferSize, 0);}
+
 }
@@ -0,0 +1,113 @@
+package io.github.wh201906.serialpipe;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+// The UDP peers which sent something within the idle timeout.
+// Only the reader thread changes the table, other threads read a snapshot of it.
+// The snapshot is rebuilt when a peer joins or expires, so looking up and iterating doesn't allocate.
+public class UdpPeerTable
+{
+    public static class Peer
+    {
+        private final InetSocketAddress mSocketAddress;
+        private volatile long mLastSeenNanos;
+
+        private Peer(InetSocketAddress socketAddress, long now)
+        {
+            mSocketAddress = socketAddress;
+            mLastSeenNanos = now;
+        }
+
+        public InetSocketAddress getSocketAddress() {return mSocketAddress;}
+
+        public InetAddress getAddress() {return mSocketAddress.getAddress();}
+
+        public int getPort() {return mSocketAddress.getPort();}
+
+        public long getLastSeenNanos() {return mLastSeenNanos;}
+
+        private boolean matches(InetAddress address, int port)
+        {
+            return mSocketAddress.getPort() == port && mSocketAddress.getAddress().equals(address);
+        }
+    }
+
+    private static final Peer[] EMPTY = new Peer[0];
+
+    private final int mMaxPeers;
+    private volatile long mIdleTimeoutNanos;
+    private volatile Peer[] mPeers = EMPTY;
+
+    public UdpPeerTable(int maxPeers, long idleTimeoutNanos)
+    {
+        mMaxPeers = maxPeers;
+        mIdleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    // Reader side, called with the sender of every received datagram
+    public void update(InetAddress address, int port)
+    {
+        long now = System.nanoTime();
+        Peer[] peers = mPeers;
+        int expiredCount = 0;
+        Peer found = null;
+        for (Peer peer : peers)
+        {
+            if (found == null && peer.matches(address, port)) found = peer;
+            else if (isExpired(peer, now)) expiredCount++;
+        }
+        if (found != null)
+        {
+            found.mLastSeenNanos = now;
+            if (expiredCount == 0) return;
+        }
+
+        int newCount = peers.length - expiredCount + (found == null ? 1 : 0);
+        Peer oldest = null;
+        if (newCount > mMaxPeers)
+        {
+            // full, replace the least recently seen one
+            for (Peer peer : peers)
+            {
+                if (oldest == null || peer.mLastSeenNanos - oldest.mLastSeenNanos < 0) oldest = peer;
+            }
+            newCount--;
+        }
+        Peer[] newPeers = new Peer[newCount];
+        int i = 0;
+        for (Peer peer : peers)
+        {
+            if (peer == found || (peer != oldest && !isExpired(peer, now))) newPeers[i++] = peer;
+        }
+        if (found == null) newPeers[i] = new Peer(new InetSocketAddress(address, port), now);
+        mPeers = newPeers;
+    }
+
+    // Writer side, the returned array must not be modified
+    // It may contain expired peers if nothing was received for a while, check them with isActive()
+    public Peer[] getPeers() {return mPeers;}
+
+    public boolean isActive(Peer peer, long now) {return !isExpired(peer, now);}
+
+    public int getActiveCount()
+    {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Peer peer : mPeers)
+        {
+            if (!isExpired(peer, now)) count++;
+        }
+        return count;
+    }
+
+    public void clear() {mPeers = EMPTY;}
+
+    private boolean isExpired(Peer peer, long now) {return now - peer.mLastSeenNanos > mIdleTimeoutNanos;}
+
+    public long getIdleTimeoutNanos() {return mIdleTimeoutNanos;}
+
+    public void setIdleTimeoutNanos(long idleTimeoutNanos) {this.mIdleTimeoutNanos = idleTimeoutNanos;}
+
+    public int getMaxPeers() {return mMaxPeers;}
+}
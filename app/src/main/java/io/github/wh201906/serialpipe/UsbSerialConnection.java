@@ -1,25 +1,89 @@
 package io.github.wh201906.serialpipe;
 
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
 
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
 
-public class UsbSerialConnection extends BaseConnection
+public class UsbSerialConnection extends BaseConnection implements FlowControllable
 {
-    private static final int WRITE_WAIT_MILLIS = 2000;
-    private static final int READ_WAIT_MILLIS = 2000;
+    // How the two sides tell each other to stop sending
+    // The host side is handled here: pauseSender() drives RTS/DTR or sends XOFF,
+    // and write() waits while CTS/DSR is deasserted or the device has sent XOFF
+    public enum FlowControl
+    {
+        NONE,
+        RTS_CTS,
+        DTR_DSR,
+        // XON/XOFF bytes are taken out of the received data, so it only suits text protocols
+        XON_XOFF
+    }
+
+    // how much line time one adaptive read covers
+    private static final long ADAPTIVE_READ_WINDOW_NANOS = 10_000_000L;
+    // size of each queued request when the adaptive read size is off
+    private static final int ASYNC_READ_SIZE = 4096;
+    // FTDI chips put 2 modem status bytes at the start of every USB packet
+    private static final int FTDI_STATUS_SIZE = 2;
+    private static final byte XON_CHAR = 0x11;
+    private static final byte XOFF_CHAR = 0x13;
+    private static final byte[] XON = {XON_CHAR};
+    private static final byte[] XOFF = {XOFF_CHAR};
+    // how often write() checks whether the device accepts data again
+    private static final long FLOW_CONTROL_POLL_MILLIS = 1;
+    // CTS/DSR is read again after about this many characters of line time,
+    // so writes in between skip the control transfer and the device receives at most this much after deasserting it
+    private static final int FLOW_CONTROL_CHECK_CHARS = 16;
 
     private int mBaudRate = 115200;
     private int mDataBits = UsbSerialPort.DATABITS_8;
     private int mStopBits = UsbSerialPort.STOPBITS_1;
     private int mParity = UsbSerialPort.PARITY_NONE;
+    private volatile FlowControl mFlowControl = FlowControl.NONE;
+    // set by the reading thread when the device sends XOFF
+    private volatile boolean mIsPausedByDevice = false;
+    // writer thread only, CTS/DSR as last read and when, see FLOW_CONTROL_CHECK_CHARS
+    private long mClearToSendTime = 0;
+    // cleared when the flow control is applied again
+    private volatile boolean mIsClearToSendKnown = false;
+    // when the device started holding off the current write, 0 if it isn't
+    private volatile long mWriteStallStartNanos = 0;
+    // a read returns 0 after this, so it also bounds how long a closed connection takes to notice
+    private int mReadTimeoutMillis = 2000;
+    private int mWriteTimeoutMillis = 2000;
+    // read about ADAPTIVE_READ_WINDOW_NANOS of line data at a time, in whole USB packets, instead of the whole buffer
+    private boolean mIsAdaptiveReadSize = false;
+    private int mAdaptiveReadSize = Integer.MAX_VALUE;
+    // keep several bulk-in requests queued, so the device always has somewhere to put data between two read() calls
+    private boolean mIsAsyncRead = false;
+    private int mAsyncRequestCount = 4;
 
     private UsbDeviceConnection mUsbConnection = null;
     private UsbSerialPort mUsbPort = null;
 
+    // UsbSerialPort always reads into/writes from the beginning of an array,
+    // these are used for the other cases so that they don't allocate per call
+    private byte[] mReadScratch = new byte[0];
+    private byte[] mWriteScratch = new byte[0];
+
+    // async read only, close() cancels the requests, and leaves closing them to the reading thread if it is using them
+    private final Object mAsyncLock = new Object();
+    private volatile UsbRequest[] mReadRequests = null;
+    // the completed request being consumed, its buffer holds the unread bytes as [position, limit)
+    private volatile UsbRequest mPendingRequest = null;
+    // guarded by mAsyncLock
+    private UsbRequest[] mRequestsInUse = null;
+    private boolean mIsCloseDeferred = false;
+    private int mReadPacketSize = 0;
+    private boolean mIsFtdi = false;
+
     @Override
     public boolean open()
     {
@@ -28,9 +92,13 @@ public class UsbSerialConnection extends BaseConnection
         {
             mUsbPort.open(mUsbConnection);
             mUsbPort.setParameters(mBaudRate, mDataBits, mStopBits, mParity);
+            updateAdaptiveReadSize();
+            applyFlowControl();
+            if (mIsAsyncRead) startAsyncRead();
         } catch (IOException e)
         {
             mLastException = e;
+            stopAsyncRead();
             return false;
         }
         mIsOpened = true;
@@ -40,6 +108,8 @@ public class UsbSerialConnection extends BaseConnection
     @Override
     public void close()
     {
+        // cancelled before the port closes the device connection, which also wakes up a waiting read()
+        stopAsyncRead();
         try
         {
             if (mUsbPort != null) mUsbPort.close();
@@ -59,11 +129,12 @@ public class UsbSerialConnection extends BaseConnection
     {
         if (mUsbPort == null || !mUsbPort.isOpen())
             throw new IOException("USB Serial connection not open");
+        if (mReadRequests != null) return readAsync(buf, 0, Math.min(buf.length, maxLength));
 
         int readLen = 0;
         try
         {
-            readLen = mUsbPort.read(buf, maxLength, READ_WAIT_MILLIS);
+            readLen = mUsbPort.read(buf, mIsAdaptiveReadSize ? Math.min(maxLength, mAdaptiveReadSize) : maxLength, mReadTimeoutMillis);
 
         } catch (IOException e)
         {
@@ -71,6 +142,7 @@ public class UsbSerialConnection extends BaseConnection
             close();
             throw e;
         }
+        if (mFlowControl == FlowControl.XON_XOFF) readLen = takeXonXoff(buf, 0, readLen);
         return readLen;
     }
 
@@ -83,7 +155,9 @@ public class UsbSerialConnection extends BaseConnection
         int writeLen = Math.min(data.length, length);
         try
         {
-            mUsbPort.write(data, writeLen, WRITE_WAIT_MILLIS);
+            // only false once the connection is closed, nothing can be written then
+            if (!awaitClearToSend()) return 0;
+            mUsbPort.write(data, writeLen, mWriteTimeoutMillis);
 
         } catch (IOException e)
         {
@@ -95,6 +169,396 @@ public class UsbSerialConnection extends BaseConnection
     }
 
 
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        if (offset == 0) return read(buf, maxLength);
+        if (mReadRequests != null)
+        {
+            if (mUsbPort == null || !mUsbPort.isOpen())
+                throw new IOException("USB Serial connection not open");
+            return readAsync(buf, offset, Math.min(buf.length - offset, maxLength));
+        }
+
+        int len = Math.min(buf.length - offset, maxLength);
+        byte[] scratch = getReadScratch(len);
+        int readLen = read(scratch, len);
+        if (readLen > 0) System.arraycopy(scratch, 0, buf, offset, readLen);
+        return readLen;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (dst.hasArray()) return super.read(dst);
+
+        int len = dst.remaining();
+        byte[] scratch = getReadScratch(len);
+        int readLen = read(scratch, len);
+        if (readLen > 0) dst.put(scratch, 0, readLen);
+        return readLen;
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        if (offset == 0) return write(data, length);
+
+        int writeLen = Math.min(data.length - offset, length);
+        byte[] scratch = getWriteScratch(writeLen);
+        System.arraycopy(data, offset, scratch, 0, writeLen);
+        return write(scratch, writeLen);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (src.hasArray()) return super.write(src);
+
+        int writeLen = src.remaining();
+        byte[] scratch = getWriteScratch(writeLen);
+        src.get(scratch, 0, writeLen);
+        return write(scratch, writeLen);
+    }
+
+    private void startAsyncRead() throws IOException
+    {
+        UsbEndpoint endpoint = mUsbPort.getReadEndpoint();
+        mReadPacketSize = endpoint.getMaxPacketSize();
+        mIsFtdi = mUsbPort.getDriver() instanceof FtdiSerialDriver;
+        // whole USB packets, a request which ends in the middle of one would fail with an overflow
+        int size = mIsAdaptiveReadSize ? mAdaptiveReadSize : ASYNC_READ_SIZE;
+        size = Math.max(mReadPacketSize, size / mReadPacketSize * mReadPacketSize);
+        UsbRequest[] requests = new UsbRequest[Math.max(1, mAsyncRequestCount)];
+        mPendingRequest = null;
+        mReadRequests = requests;
+        for (int i = 0; i < requests.length; i++)
+        {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(mUsbConnection, endpoint))
+                throw new IOException("Failed to initialize USB request");
+            requests[i] = request;
+            request.setClientData(ByteBuffer.allocate(size));
+            if (!queueRead(request)) throw new IOException("Failed to queue USB request");
+        }
+    }
+
+    private void stopAsyncRead()
+    {
+        synchronized (mAsyncLock)
+        {
+            UsbRequest[] requests = mReadRequests;
+            if (requests == null) return;
+            mReadRequests = null;
+            mPendingRequest = null;
+            // wakes up requestWait(), the reading thread might still be using a request afterwards
+            for (UsbRequest request : requests)
+            {
+                if (request != null) request.cancel();
+            }
+            if (mRequestsInUse == requests) mIsCloseDeferred = true;
+            else closeRequests(requests);
+        }
+    }
+
+    private static void closeRequests(UsbRequest[] requests)
+    {
+        for (UsbRequest request : requests)
+        {
+            if (request != null) request.close();
+        }
+    }
+
+    private static boolean queueRead(UsbRequest request)
+    {
+        ByteBuffer buffer = (ByteBuffer) request.getClientData();
+        buffer.clear();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) return request.queue(buffer);
+        else return request.queue(buffer, buffer.capacity());
+    }
+
+    // Takes the bytes of one completed request, the request is queued again once all of them are consumed
+    private int readAsync(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        UsbRequest[] requests;
+        synchronized (mAsyncLock)
+        {
+            requests = mReadRequests;
+            // cancelled by close()
+            if (requests == null) return 0;
+            mRequestsInUse = requests;
+        }
+        try
+        {
+            return takeAsync(requests, buf, offset, maxLength);
+        } finally
+        {
+            synchronized (mAsyncLock)
+            {
+                mRequestsInUse = null;
+                if (mIsCloseDeferred)
+                {
+                    mIsCloseDeferred = false;
+                    closeRequests(requests);
+                }
+            }
+        }
+    }
+
+    private int takeAsync(UsbRequest[] requests, byte[] buf, int offset, int maxLength) throws IOException
+    {
+        UsbRequest request = mPendingRequest;
+        if (request == null)
+        {
+            try
+            {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                    request = mUsbConnection.requestWait(mReadTimeoutMillis);
+                else
+                    request = mUsbConnection.requestWait();
+            } catch (TimeoutException e)
+            {
+                return 0;
+            }
+            // close() has cancelled the requests meanwhile
+            if (mReadRequests != requests) return 0;
+            if (request == null)
+            {
+                IOException e = new IOException("USB request failed");
+                mLastException = e;
+                close();
+                throw e;
+            }
+            // the position is the received length
+            ByteBuffer data = (ByteBuffer) request.getClientData();
+            data.flip();
+            if (mIsFtdi) stripFtdiStatus(data);
+            synchronized (mAsyncLock)
+            {
+                if (mReadRequests != requests) return 0;
+                mPendingRequest = request;
+            }
+        }
+
+        ByteBuffer data = (ByteBuffer) request.getClientData();
+        int readLen = Math.min(data.remaining(), maxLength);
+        data.get(buf, offset, readLen);
+        if (!data.hasRemaining())
+        {
+            synchronized (mAsyncLock)
+            {
+                // not after close() has cancelled it
+                if (mReadRequests == requests)
+                {
+                    mPendingRequest = null;
+                    queueRead(request);
+                }
+            }
+        }
+        if (mFlowControl == FlowControl.XON_XOFF) readLen = takeXonXoff(buf, offset, readLen);
+        return readLen;
+    }
+
+    private void stripFtdiStatus(ByteBuffer data)
+    {
+        byte[] array = data.array();
+        int end = data.limit();
+        int dst = 0;
+        for (int src = 0; src < end; src += mReadPacketSize)
+        {
+            int len = Math.min(mReadPacketSize, end - src) - FTDI_STATUS_SIZE;
+            if (len <= 0) continue;
+            System.arraycopy(array, src + FTDI_STATUS_SIZE, array, dst, len);
+            dst += len;
+        }
+        data.position(0);
+        data.limit(dst);
+    }
+
+    private byte[] getReadScratch(int size)
+    {
+        if (mReadScratch.length < size) mReadScratch = new byte[size];
+        return mReadScratch;
+    }
+
+    private byte[] getWriteScratch(int size)
+    {
+        if (mWriteScratch.length < size) mWriteScratch = new byte[size];
+        return mWriteScratch;
+    }
+
+    // Asks the device to stop sending, by deasserting RTS/DTR or sending XOFF
+    // RTS is used without flow control too, in case the device watches it anyway
+    @Override
+    public void pauseSender() throws IOException
+    {
+        UsbSerialPort port = mUsbPort;
+        if (port == null) return;
+        FlowControl flowControl = mFlowControl;
+        if (flowControl == FlowControl.XON_XOFF) port.write(XOFF, mWriteTimeoutMillis);
+        else if (flowControl == FlowControl.DTR_DSR) port.setDTR(false);
+        else port.setRTS(false);
+    }
+
+    @Override
+    public void resumeSender() throws IOException
+    {
+        UsbSerialPort port = mUsbPort;
+        if (port == null) return;
+        FlowControl flowControl = mFlowControl;
+        if (flowControl == FlowControl.XON_XOFF) port.write(XON, mWriteTimeoutMillis);
+        else if (flowControl == FlowControl.DTR_DSR) port.setDTR(true);
+        else port.setRTS(true);
+    }
+
+    // Takes effect on open(), or on an open port with applyLineSettings()
+    public void setLineParameters(int dataBits, int stopBits, int parity)
+    {
+        mDataBits = dataBits;
+        mStopBits = stopBits;
+        mParity = parity;
+    }
+
+    public FlowControl getFlowControl() {return mFlowControl;}
+
+    // Takes effect on open(), or on an open port with applyLineSettings()
+    public void setFlowControl(FlowControl flowControl) {mFlowControl = flowControl;}
+
+    // Changes the data format and flow control of an open port in place, the other end has to change too
+    // These are USB control transfers, so keep it off the UI thread
+    public void applyLineSettings() throws IOException
+    {
+        UsbSerialPort port = mUsbPort;
+        if (port == null || !port.isOpen()) return;
+        port.setParameters(mBaudRate, mDataBits, mStopBits, mParity);
+        updateAdaptiveReadSize();
+        applyFlowControl();
+    }
+
+    // Tells the device it can send
+    private void applyFlowControl() throws IOException
+    {
+        mIsPausedByDevice = false;
+        mIsClearToSendKnown = false;
+        FlowControl flowControl = mFlowControl;
+        if (flowControl == FlowControl.RTS_CTS) mUsbPort.setRTS(true);
+        else if (flowControl == FlowControl.DTR_DSR) mUsbPort.setDTR(true);
+    }
+
+    // Waits as long as the device holds off, so the writer thread backs up into its queue instead of dropping data
+    // False only if the connection is closed or the thread is interrupted meanwhile
+    // CTS/DSR are read with a control transfer, so it's only done when that flow control is on
+    private boolean awaitClearToSend() throws IOException
+    {
+        if (mFlowControl == FlowControl.NONE || isClearToSend()) return true;
+        mWriteStallStartNanos = System.nanoTime();
+        try
+        {
+            do
+            {
+                UsbSerialPort port = mUsbPort;
+                if (port == null || !port.isOpen()) return false;
+                try
+                {
+                    Thread.sleep(FLOW_CONTROL_POLL_MILLIS);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } while (!isClearToSend());
+        } finally
+        {
+            mWriteStallStartNanos = 0;
+        }
+        return true;
+    }
+
+    // How long the device has been holding off the current write, 0 if it isn't
+    public long getWriteStallMillis()
+    {
+        long start = mWriteStallStartNanos;
+        return start == 0 ? 0 : (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // Stalled longer than the write timeout, the device may have stopped reading or the flow control lines are miswired
+    public boolean isWriteStalled() {return getWriteStallMillis() >= mWriteTimeoutMillis;}
+
+    private boolean isClearToSend() throws IOException
+    {
+        switch (mFlowControl)
+        {
+            case RTS_CTS:
+            case DTR_DSR:
+                long now = System.nanoTime();
+                if (mIsClearToSendKnown && now - mClearToSendTime < FLOW_CONTROL_CHECK_CHARS * getCharTimeNanos()) return true;
+                mIsClearToSendKnown = mFlowControl == FlowControl.RTS_CTS ? mUsbPort.getCTS() : mUsbPort.getDSR();
+                mClearToSendTime = now;
+                return mIsClearToSendKnown;
+            case XON_XOFF:
+                return !mIsPausedByDevice;
+            default:
+                return true;
+        }
+    }
+
+    // Removes XON/XOFF from the received data and follows the last one, returns the remaining length
+    private int takeXonXoff(byte[] buf, int offset, int length)
+    {
+        int dst = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            byte b = buf[i];
+            if (b == XOFF_CHAR) mIsPausedByDevice = true;
+            else if (b == XON_CHAR) mIsPausedByDevice = false;
+            else buf[dst++] = b;
+        }
+        return dst - offset;
+    }
+
+    // Time to transfer one character on the wire, including the start, parity and stop bits
+    public long getCharTimeNanos()
+    {
+        double stopBits = mStopBits == UsbSerialPort.STOPBITS_1_5 ? 1.5 : mStopBits;
+        double bits = 1 + mDataBits + (mParity == UsbSerialPort.PARITY_NONE ? 0 : 1) + stopBits;
+        return (long) (bits * 1_000_000_000L / mBaudRate);
+    }
+
+    // The bytes the line delivers within ADAPTIVE_READ_WINDOW_NANOS, rounded up to whole USB packets
+    // e.g. 8N1 with 64-byte packets: 64 at 9600 baud, 128 at 115200, 960 at 921600, 3008 at 3M
+    private void updateAdaptiveReadSize()
+    {
+        UsbSerialPort port = mUsbPort;
+        if (port == null || port.getReadEndpoint() == null) return;
+        int packetSize = port.getReadEndpoint().getMaxPacketSize();
+        long bytes = ADAPTIVE_READ_WINDOW_NANOS / getCharTimeNanos();
+        mAdaptiveReadSize = (int) Math.max(packetSize, (bytes + packetSize - 1) / packetSize * packetSize);
+    }
+
+    public int getAdaptiveReadSize() {return mAdaptiveReadSize;}
+
+    public boolean isAdaptiveReadSize() {return mIsAdaptiveReadSize;}
+
+    public void setAdaptiveReadSize(boolean enabled) {this.mIsAdaptiveReadSize = enabled;}
+
+    public boolean isAsyncRead() {return mIsAsyncRead;}
+
+    // Takes effect on the next open()
+    public void setAsyncRead(boolean enabled) {this.mIsAsyncRead = enabled;}
+
+    public int getAsyncRequestCount() {return mAsyncRequestCount;}
+
+    public void setAsyncRequestCount(int count) {this.mAsyncRequestCount = count;}
+
+    public int getReadTimeoutMillis() {return mReadTimeoutMillis;}
+
+    public void setReadTimeoutMillis(int readTimeoutMillis) {this.mReadTimeoutMillis = readTimeoutMillis;}
+
+    public int getWriteTimeoutMillis() {return mWriteTimeoutMillis;}
+
+    public void setWriteTimeoutMillis(int writeTimeoutMillis) {this.mWriteTimeoutMillis = writeTimeoutMillis;}
+
     public int getBaudRate() {return mBaudRate;}
 
     public void setBaudRate(int baudRate) {this.mBaudRate = baudRate;}
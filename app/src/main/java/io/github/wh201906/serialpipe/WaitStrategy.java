@@ -0,0 +1,206 @@
+package io.github.wh201906.serialpipe;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decides how a forwarding thread waits when its queue is empty (or full).
+// One instance serves one waiting thread and one signalling thread.
+public abstract class WaitStrategy
+{
+    public enum Type
+    {
+        // Lowest latency, burns a whole core while idle
+        BUSY_SPIN,
+        // Spins for a while, then gives the core to other threads
+        SPIN_YIELD,
+        // Spins for a while, then parks until signalled, near-zero idle CPU
+        SPIN_PARK,
+        // Always sleeps on a lock condition, lowest CPU usage, highest latency
+        BLOCKING;
+
+        public WaitStrategy create()
+        {
+            switch (this)
+            {
+                case BUSY_SPIN:
+                    return new BusySpin();
+                case SPIN_YIELD:
+                    return new SpinYield();
+                case BLOCKING:
+                    return new Blocking();
+                case SPIN_PARK:
+                default:
+                    return new SpinPark();
+            }
+        }
+    }
+
+    public interface ReadyCondition
+    {
+        boolean isReady();
+    }
+
+    private static final int SPIN_TRIES = 200;
+
+    // written by the signalling thread, only when the waiter is sleeping
+    protected volatile long mSignalTimeNanos = 0;
+    protected volatile long mLastWakeUpLatencyNanos = 0;
+    protected volatile long mMaxWakeUpLatencyNanos = 0;
+
+    // Waits until condition.isReady() returns true or timeoutNanos elapsed.
+    // Returns the last result of condition.isReady().
+    public abstract boolean await(ReadyCondition condition, long timeoutNanos);
+
+    // Called by the other side after it changed the state which the condition depends on
+    public abstract void signal();
+
+    // Time between signal() and the sleeping waiter running again, 0 for spinning strategies
+    public long getLastWakeUpLatencyNanos() {return mLastWakeUpLatencyNanos;}
+
+    public long getMaxWakeUpLatencyNanos() {return mMaxWakeUpLatencyNanos;}
+
+    protected void recordWakeUp()
+    {
+        long signalTime = mSignalTimeNanos;
+        if (signalTime == 0) return; // timeout or spurious wake-up
+        mSignalTimeNanos = 0;
+        long latency = System.nanoTime() - signalTime;
+        mLastWakeUpLatencyNanos = latency;
+        if (latency > mMaxWakeUpLatencyNanos) mMaxWakeUpLatencyNanos = latency;
+    }
+
+    private static final class BusySpin extends WaitStrategy
+    {
+        @Override
+        public boolean await(ReadyCondition condition, long timeoutNanos)
+        {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!condition.isReady())
+            {
+                if (System.nanoTime() - deadline >= 0) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void signal() {}
+    }
+
+    private static final class SpinYield extends WaitStrategy
+    {
+        @Override
+        public boolean await(ReadyCondition condition, long timeoutNanos)
+        {
+            long deadline = System.nanoTime() + timeoutNanos;
+            int tries = 0;
+            while (!condition.isReady())
+            {
+                if (tries < SPIN_TRIES) tries++;
+                else if (System.nanoTime() - deadline >= 0) return false;
+                else Thread.yield();
+            }
+            return true;
+        }
+
+        @Override
+        public void signal() {}
+    }
+
+    private static final class SpinPark extends WaitStrategy
+    {
+        private volatile Thread mWaiter = null;
+        // Only the signalling thread writes it. The volatile write in signal() and the volatile read in await()
+        // make sure the waiter either sees the new data or gets unparked.
+        private volatile int mSignalSequence = 0;
+
+        @Override
+        public boolean await(ReadyCondition condition, long timeoutNanos)
+        {
+            for (int i = 0; i < SPIN_TRIES; i++)
+            {
+                if (condition.isReady()) return true;
+            }
+
+            long deadline = System.nanoTime() + timeoutNanos;
+            mWaiter = Thread.currentThread();
+            try
+            {
+                while (true)
+                {
+                    int ignored = mSignalSequence;
+                    if (condition.isReady()) return true;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return false;
+                    LockSupport.parkNanos(this, remaining);
+                    recordWakeUp();
+                }
+            } finally
+            {
+                mWaiter = null;
+            }
+        }
+
+        @Override
+        public void signal()
+        {
+            mSignalSequence++;
+            Thread waiter = mWaiter;
+            if (waiter != null)
+            {
+                mSignalTimeNanos = System.nanoTime();
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private static final class Blocking extends WaitStrategy
+    {
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mCondition = mLock.newCondition();
+        private boolean mIsWaiting = false;
+
+        @Override
+        public boolean await(ReadyCondition condition, long timeoutNanos)
+        {
+            if (condition.isReady()) return true;
+
+            mLock.lock();
+            try
+            {
+                long remaining = timeoutNanos;
+                while (!condition.isReady())
+                {
+                    if (remaining <= 0) return false;
+                    mIsWaiting = true;
+                    remaining = mCondition.awaitNanos(remaining);
+                    mIsWaiting = false;
+                    recordWakeUp();
+                }
+                return true;
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return condition.isReady();
+            } finally
+            {
+                mIsWaiting = false;
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void signal()
+        {
+            mLock.lock();
+            try
+            {
+                if (mIsWaiting) mSignalTimeNanos = System.nanoTime();
+                mCondition.signalAll();
+            } finally
+            {
+                mLock.unlock();
+            }
+        }
+    }
+}
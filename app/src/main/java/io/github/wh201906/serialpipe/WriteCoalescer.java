@@ -0,0 +1,87 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+
+// Merges the packets waiting in a queue into one Connection.write(),
+// so a stream of tiny packets doesn't become one USB transfer per packet
+public class WriteCoalescer implements PacketWriter
+{
+    private final byte[] mBuffer;
+    private final long mMaxDelayNanos;
+    // taken from the queue but didn't fit into the last batch
+    private PacketBuffer mPending = null;
+    private TrafficMetrics mMetrics = null;
+
+    // maxBytes: the size limit of one write, maxDelayNanos: how long to wait for more packets after the first one
+    public WriteCoalescer(int maxBytes, long maxDelayNanos)
+    {
+        mBuffer = new byte[maxBytes];
+        mMaxDelayNanos = maxDelayNanos;
+    }
+
+    // Waits up to timeoutNanos for the first packet, then writes it with everything that follows within the batching window
+    // Returns the number of bytes written, 0 if the queue stayed empty
+    @Override
+    public int forward(PacketQueue queue, Connection connection, long timeoutNanos) throws IOException
+    {
+        PacketBuffer packet = mPending != null ? mPending : queue.take(timeoutNanos);
+        mPending = null;
+        if (packet == null) return 0;
+
+        if (packet.getLength() >= mBuffer.length)
+        {
+            // nothing to merge with
+            try
+            {
+                return write(connection, packet);
+            } finally
+            {
+                queue.release(packet);
+            }
+        }
+
+        int batchLen = 0;
+        long deadline = System.nanoTime() + mMaxDelayNanos;
+        while (true)
+        {
+            packet.copyTo(packet.getOffset(), mBuffer, batchLen, packet.getLength());
+            batchLen += packet.getLength();
+            queue.release(packet);
+            if (batchLen == mBuffer.length) break;
+
+            long remaining = deadline - System.nanoTime();
+            packet = queue.take(remaining > 0 ? remaining : 0);
+            if (packet == null) break;
+            if (batchLen + packet.getLength() > mBuffer.length)
+            {
+                mPending = packet;
+                break;
+            }
+        }
+        return write(connection, mBuffer, 0, batchLen);
+    }
+
+    private int write(Connection connection, byte[] data, int offset, int length) throws IOException
+    {
+        TrafficMetrics metrics = mMetrics;
+        return metrics == null ? connection.write(data, offset, length) : metrics.write(connection, data, offset, length);
+    }
+
+    private int write(Connection connection, PacketBuffer packet) throws IOException
+    {
+        if (packet.hasArray()) return write(connection, packet.getData(), packet.getOffset(), packet.getLength());
+        TrafficMetrics metrics = mMetrics;
+        return metrics == null ? connection.write(packet.getByteBuffer()) : metrics.write(connection, packet.getByteBuffer());
+    }
+
+    // Gives the pending packet back to the queue, call it when the writer thread exits
+    @Override
+    public void clear(PacketQueue queue)
+    {
+        queue.release(mPending);
+        mPending = null;
+    }
+
+    @Override
+    public void setMetrics(TrafficMetrics metrics) {this.mMetrics = metrics;}
+}
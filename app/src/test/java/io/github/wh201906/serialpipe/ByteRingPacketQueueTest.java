@@ -0,0 +1,97 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ByteRingPacketQueueTest
+{
+    private static final int MAX_PACKET = 20;
+
+    // Packets of every size, with up to 3 queued, go around a ring which only holds 5 of the largest
+    @Test
+    public void wrapsAroundInOrder() throws IOException
+    {
+        wrapsAroundInOrder(false);
+        wrapsAroundInOrder(true);
+    }
+
+    private static void wrapsAroundInOrder(boolean direct) throws IOException
+    {
+        ByteRingPacketQueue queue = new ByteRingPacketQueue(128, MAX_PACKET, direct, WaitStrategy.Type.BUSY_SPIN);
+        assertEquals(128, queue.getCapacityBytes());
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        int published = 0;
+        int taken = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            publish(queue, link, packet(published++));
+            if (i % 2 == 0) publish(queue, link, packet(published++));
+            while (queue.size() > 1) assertArrayEquals(packet(taken++), take(queue));
+        }
+        while (queue.size() > 0) assertArrayEquals(packet(taken++), take(queue));
+        assertEquals(published, taken);
+        assertEquals(0, queue.getUsedBytes());
+    }
+
+    @Test
+    public void fullRingMakesAcquireWait() throws IOException
+    {
+        ByteRingPacketQueue queue = new ByteRingPacketQueue(64, MAX_PACKET, false, WaitStrategy.Type.BUSY_SPIN);
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        // 4 + 20 bytes each, the third one doesn't fit
+        publish(queue, link, new byte[MAX_PACKET]);
+        publish(queue, link, new byte[MAX_PACKET]);
+        assertNull(queue.acquire(0));
+        assertNull(queue.acquire(1_000_000));
+        // a small packet still fits
+        assertNotNull(queue.acquire(8, 0));
+
+        take(queue);
+        assertNotNull(queue.acquire(0));
+    }
+
+    @Test
+    public void discardedPacketTakesNoRoom() throws IOException
+    {
+        ByteRingPacketQueue queue = new ByteRingPacketQueue(64, MAX_PACKET, false, WaitStrategy.Type.BUSY_SPIN);
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        for (int i = 0; i < 10; i++) queue.discard(queue.acquire(0));
+        assertEquals(0, queue.getUsedBytes());
+        publish(queue, link, packet(1));
+        assertArrayEquals(packet(1), take(queue));
+    }
+
+    // 1 to MAX_PACKET bytes, filled with the index
+    private static byte[] packet(int index)
+    {
+        byte[] packet = new byte[1 + index % MAX_PACKET];
+        for (int i = 0; i < packet.length; i++) packet[i] = (byte) (index + i);
+        return packet;
+    }
+
+    // Through PacketBuffer.readFrom(), as a reader thread fills it, which covers the direct ring too
+    private static void publish(PacketQueue queue, MemoryDatagramLink link, byte[] packet) throws IOException
+    {
+        PacketBuffer buf = queue.acquire(0);
+        assertNotNull(buf);
+        link.getA().write(packet);
+        assertEquals(packet.length, buf.readFrom(link.getB()));
+        queue.publish(buf, 0);
+    }
+
+    private static byte[] take(PacketQueue queue)
+    {
+        PacketBuffer buf = queue.take(0);
+        assertNotNull(buf);
+        byte[] packet = new byte[buf.getLength()];
+        buf.copyTo(buf.getOffset(), packet, 0, packet.length);
+        queue.release(buf);
+        return packet;
+    }
+}
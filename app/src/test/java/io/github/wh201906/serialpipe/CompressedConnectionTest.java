@@ -0,0 +1,98 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedConnectionTest
+{
+    @Test
+    public void roundTrip() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        CompressedConnection encoder = open(link.getA(), 0);
+        CompressedConnection decoder = open(link.getB(), 0);
+        for (int i = 0; i < 20; i++)
+        {
+            byte[] message = message(i, 500);
+            assertEquals(message.length, encoder.write(message, 0, message.length));
+            assertArrayEquals(message, read(decoder));
+        }
+        assertTrue(encoder.getCompressionRatio() > 2);
+        assertEquals(0, decoder.getSkippedFrames());
+    }
+
+    @Test
+    public void garbageIsSkipped() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        CompressedConnection encoder = open(link.getA(), 0);
+        CompressedConnection decoder = open(link.getB(), 0);
+        // a bad type, and a stored frame whose lengths don't match
+        link.getA().write(new byte[]{0x7F, 0, 0, 4, 0, 4, 1, 2, 3, 4});
+        link.getA().write(new byte[]{0x31, 0, 0, 4, 0, 3, 1, 2, 3});
+        assertEquals(0, decoder.read(new byte[64]));
+        assertEquals(2, decoder.getSkippedFrames());
+
+        // the first frame of the encoder is a keyframe
+        byte[] message = message(1, 300);
+        encoder.write(message, 0, message.length);
+        assertArrayEquals(message, read(decoder));
+    }
+
+    // Every byte of the encoded body is corrupted in turn, the decoder must neither throw nor lose the next keyframe
+    @Test
+    public void corruptedBodyIsSurvived() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        CompressedConnection encoder = open(link.getA(), 1);
+        CompressedConnection decoder = open(link.getB(), 1);
+        byte[] message = message(2, 300);
+        encoder.write(message, 0, message.length);
+        byte[] frame = read(link.getB());
+        // an LZ keyframe
+        assertEquals(0x21, frame[0]);
+
+        Random random = new Random(1);
+        byte[] buf = new byte[1024];
+        for (int i = 6; i < frame.length; i++)
+        {
+            byte[] corrupted = Arrays.copyOf(frame, frame.length);
+            corrupted[i] ^= (byte) (1 + random.nextInt(255));
+            link.getA().write(corrupted);
+            while (decoder.read(buf) > 0) ;
+
+            encoder.write(message, 0, message.length);
+            assertArrayEquals(message, read(decoder));
+        }
+    }
+
+    private static CompressedConnection open(Connection connection, int keyframeInterval)
+    {
+        CompressedConnection compressed = new CompressedConnection(connection, keyframeInterval);
+        compressed.open();
+        return compressed;
+    }
+
+    // Compressible, a few words repeated with the index mixed in
+    private static byte[] message(int index, int length)
+    {
+        byte[] message = new byte[length];
+        String text = "sensor=" + index + " value=12.5 status=ok ";
+        for (int i = 0; i < length; i++) message[i] = (byte) text.charAt(i % text.length());
+        return message;
+    }
+
+    private static byte[] read(Connection connection) throws IOException
+    {
+        byte[] buf = new byte[65536];
+        int length = connection.read(buf);
+        return Arrays.copyOf(buf, length);
+    }
+}
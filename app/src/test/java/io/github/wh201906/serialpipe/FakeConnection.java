@@ -0,0 +1,111 @@
+package io.github.wh201906.serialpipe;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// In-memory Connection for the benchmarks, no I/O and no allocation per call.
+// As a source, every read() returns one packet which starts with its creation time (System.nanoTime(), 8 bytes).
+// As a sink, every write() is counted as one packet and its latency is taken from that time.
+public class FakeConnection extends BaseConnection
+{
+    public static final int TIMESTAMP_SIZE = 8;
+
+    private final int mPacketSize;
+    private final long mPacketCount;
+    private long mReadPackets = 0;
+    private volatile boolean mIsDrained = false;
+
+    // written by one writer thread, read by the benchmark thread after it finishes
+    private volatile long mWrittenBytes = 0;
+    private volatile long mWrittenPackets = 0;
+    private final long[] mLatencySamples;
+    private int mLatencySampleCount = 0;
+
+    // packetSize: at least TIMESTAMP_SIZE, packetCount: reads after this many packets wait 1ms and return 0
+    // latencySampleLimit: the first writes whose latency is kept
+    public FakeConnection(int packetSize, long packetCount, int latencySampleLimit)
+    {
+        mPacketSize = Math.max(packetSize, TIMESTAMP_SIZE);
+        mPacketCount = packetCount;
+        mLatencySamples = new long[latencySampleLimit];
+    }
+
+    @Override
+    public boolean open()
+    {
+        mIsOpened = true;
+        return true;
+    }
+
+    @Override
+    public void close() {mIsOpened = false;}
+
+    @Override
+    public int read(byte[] buf, int maxLength) throws IOException {return read(buf, 0, maxLength);}
+
+    @Override
+    public int read(byte[] buf, int offset, int maxLength) throws IOException
+    {
+        if (!mIsOpened) throw new IOException("Fake connection not open");
+        if (mReadPackets == mPacketCount)
+        {
+            // drained, like a read timeout
+            mIsDrained = true;
+            try
+            {
+                Thread.sleep(1);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        }
+        int length = Math.min(Math.min(buf.length - offset, maxLength), mPacketSize);
+        // the payload is left as it is, only the timestamp matters
+        putLong(buf, offset, System.nanoTime());
+        mReadPackets++;
+        return length;
+    }
+
+    @Override
+    public int write(byte[] data, int length) throws IOException {return write(data, 0, length);}
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException
+    {
+        if (!mIsOpened) throw new IOException("Fake connection not open");
+        long now = System.nanoTime();
+        if (mLatencySampleCount < mLatencySamples.length && length >= TIMESTAMP_SIZE)
+            mLatencySamples[mLatencySampleCount++] = now - getLong(data, offset);
+        mWrittenBytes += length;
+        mWrittenPackets++;
+        return length;
+    }
+
+    // Every packet has been read
+    public boolean isDrained() {return mIsDrained;}
+
+    public long getWrittenBytes() {return mWrittenBytes;}
+
+    public long getWrittenPackets() {return mWrittenPackets;}
+
+    // Only valid after the writer thread has finished
+    public long[] getLatencySamples() {return Arrays.copyOf(mLatencySamples, mLatencySampleCount);}
+
+    static void putLong(byte[] buf, int offset, long value)
+    {
+        for (int i = TIMESTAMP_SIZE - 1; i >= 0; i--)
+        {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] buf, int offset)
+    {
+        long value = 0;
+        for (int i = 0; i < TIMESTAMP_SIZE; i++)
+            value = (value << 8) | (buf[offset + i] & 0xFF);
+        return value;
+    }
+}
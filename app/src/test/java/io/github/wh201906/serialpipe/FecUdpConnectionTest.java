@@ -0,0 +1,175 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FecUdpConnectionTest
+{
+    private static final int GROUP_SIZE = 4;
+    private static final int MAX_PAYLOAD = 256;
+
+    // The second datagram of every group is lost, and rebuilt from the parity
+    @Test
+    public void rebuildsOneLostPerGroup() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        link.getA().setLossFilter((index, datagram) -> isData(datagram, 1));
+        FecUdpConnection encoder = open(link.getA());
+        FecUdpConnection decoder = open(link.getB());
+        for (int i = 0; i < 5 * GROUP_SIZE; i++)
+        {
+            byte[] message = message(i);
+            assertEquals(message.length, encoder.write(message, 0, message.length));
+        }
+
+        // the rebuilt one comes after the rest of its group
+        List<byte[]> received = readAll(decoder, link.getB());
+        assertEquals(5 * GROUP_SIZE, received.size());
+        for (int group = 0; group < 5; group++)
+        {
+            int first = group * GROUP_SIZE;
+            assertArrayEquals(message(first), received.get(first));
+            assertArrayEquals(message(first + 2), received.get(first + 1));
+            assertArrayEquals(message(first + 3), received.get(first + 2));
+            assertArrayEquals(message(first + 1), received.get(first + 3));
+        }
+        assertEquals(5, decoder.getRecoveredDatagrams());
+    }
+
+    // A new peer starts its groups from 0, which are older than the old peer's groups still in the slots
+    @Test
+    public void newPeerIsDecodedFromScratch() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        FecUdpConnection decoder = open(link.getB());
+        FecUdpConnection oldEncoder = open(link.getA());
+        for (int i = 0; i < 10 * GROUP_SIZE; i++)
+        {
+            byte[] message = message(i);
+            oldEncoder.write(message, 0, message.length);
+        }
+        assertEquals(10 * GROUP_SIZE, readAll(decoder, link.getB()).size());
+
+        link.getB().changePeer();
+        FecUdpConnection newEncoder = open(link.getA());
+        link.getA().setLossFilter((index, datagram) -> isData(datagram, 0));
+        for (int i = 0; i < GROUP_SIZE; i++)
+        {
+            byte[] message = message(i);
+            newEncoder.write(message, 0, message.length);
+        }
+        List<byte[]> received = readAll(decoder, link.getB());
+        assertEquals(GROUP_SIZE, received.size());
+        assertArrayEquals(message(0), received.get(GROUP_SIZE - 1));
+    }
+
+    // The parity of a group begun for the old peer would rebuild the old peer's datagram for the new one
+    @Test
+    public void newPeerGetsNewGroup() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        FecUdpConnection encoder = open(link.getA());
+        byte[] old = message(100);
+        encoder.write(old, 0, old.length);
+
+        link.getA().changePeer();
+        link.getB().clear();
+        FecUdpConnection decoder = open(link.getB());
+        for (int i = 0; i < GROUP_SIZE; i++)
+        {
+            byte[] message = message(i);
+            encoder.write(message, 0, message.length);
+        }
+        List<byte[]> received = readAll(decoder, link.getB());
+        assertEquals(GROUP_SIZE, received.size());
+        for (int i = 0; i < GROUP_SIZE; i++) assertArrayEquals(message(i), received.get(i));
+        assertEquals(0, decoder.getRecoveredDatagrams());
+    }
+
+    // Truncated headers, indexes and counts out of range, parity blocks longer than any payload and random bytes
+    // mustn't throw, and mustn't stop the decoder from working afterwards
+    @Test
+    public void malformedInputIsSurvived() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        FecUdpConnection decoder = open(link.getB());
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++)
+        {
+            byte[] datagram = new byte[random.nextInt(MAX_PAYLOAD + 20)];
+            random.nextBytes(datagram);
+            if (datagram.length > 0) datagram[0] = (byte) (0x11 + random.nextInt(3));
+            // groups just below 0, which the groups of the encoder below count as older
+            if (datagram.length > 1) datagram[1] = (byte) 0xFF;
+            link.getA().write(datagram);
+        }
+        link.getA().write(new byte[]{0x11, 0, 0});
+        link.getA().write(new byte[]{0x12});
+        link.getA().write(new byte[]{0x11, 0, 0, 0, 0, (byte) 200, 1});
+        link.getA().write(new byte[]{0x12, 0, 0, 0, 0, 0});
+        link.getA().write(new byte[]{0x12, 0, 0, 0, 0, (byte) 255});
+        link.getA().write(new byte[6 + MAX_PAYLOAD + 100]);
+        byte[] oversizedParity = new byte[6 + MAX_PAYLOAD + 100];
+        oversizedParity[0] = 0x12;
+        oversizedParity[5] = 2;
+        link.getA().write(oversizedParity);
+        // a parity which claims a length longer than any payload
+        link.getA().write(new byte[]{0x12, 0, 0, 0, 1, 1, (byte) 0xFF, (byte) 0xFF});
+        readAll(decoder, link.getB());
+
+        long recovered = decoder.getRecoveredDatagrams();
+        FecUdpConnection encoder = open(link.getA());
+        link.getA().setLossFilter((index, datagram) -> isData(datagram, 0));
+        for (int i = 0; i < GROUP_SIZE; i++)
+        {
+            byte[] message = message(i);
+            encoder.write(message, 0, message.length);
+        }
+        List<byte[]> received = readAll(decoder, link.getB());
+        assertEquals(GROUP_SIZE, received.size());
+        assertArrayEquals(message(0), received.get(GROUP_SIZE - 1));
+        assertEquals(recovered + 1, decoder.getRecoveredDatagrams());
+    }
+
+    private static FecUdpConnection open(Connection connection)
+    {
+        FecUdpConnection fec = new FecUdpConnection(connection, GROUP_SIZE, MAX_PAYLOAD);
+        fec.open();
+        return fec;
+    }
+
+    private static byte[] message(int index)
+    {
+        byte[] message = new byte[1 + index * 7 % MAX_PAYLOAD];
+        for (int i = 0; i < message.length; i++) message[i] = (byte) (index + i);
+        return message;
+    }
+
+    // The DATA datagram with this index in its group
+    private static boolean isData(byte[] datagram, int index)
+    {
+        return datagram.length >= 6 && datagram[0] == 0x11 && datagram[5] == index;
+    }
+
+    // Until the link is empty, an empty datagram also reads as 0
+    private static List<byte[]> readAll(Connection connection, MemoryDatagramLink.Side side) throws IOException
+    {
+        List<byte[]> received = new ArrayList<>();
+        byte[] buf = new byte[65536];
+        while (true)
+        {
+            int length = connection.read(buf);
+            if (length > 0) received.add(Arrays.copyOf(buf, length));
+            else if (side.getQueued() == 0) break;
+        }
+        return received;
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.wh201906.serialpipe;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Two in-memory datagram connections wired to each other, for the unit tests of the datagram decorators.
+// Single-threaded: write() queues a copy for the other side, read() returns 0 when nothing is queued.
+public class MemoryDatagramLink
+{
+    private final Side mA = new Side();
+    private final Side mB = new Side();
+
+    public MemoryDatagramLink()
+    {
+        mA.mOther = mB;
+        mB.mOther = mA;
+    }
+
+    public Side getA() {return mA;}
+
+    public Side getB() {return mB;}
+
+    public static class Side extends BaseConnection
+    {
+        private final ArrayDeque<byte[]> mInbox = new ArrayDeque<>();
+        private Side mOther = null;
+        private int mPeerGeneration = 0;
+        private boolean mIsPeerConnected = true;
+        private long mWrites = 0;
+        // decides which writes are lost, null for none
+        private LossFilter mLossFilter = null;
+
+        public interface LossFilter
+        {
+            boolean isLost(long writeIndex, byte[] datagram);
+        }
+
+        @Override
+        public boolean open()
+        {
+            mIsOpened = true;
+            return true;
+        }
+
+        @Override
+        public void close() {mIsOpened = false;}
+
+        @Override
+        public int read(byte[] buf, int maxLength) {return read(buf, 0, maxLength);}
+
+        @Override
+        public int read(byte[] buf, int offset, int maxLength)
+        {
+            byte[] datagram = mInbox.poll();
+            if (datagram == null) return 0;
+            int length = Math.min(datagram.length, Math.min(buf.length - offset, maxLength));
+            System.arraycopy(datagram, 0, buf, offset, length);
+            return length;
+        }
+
+        @Override
+        public int write(byte[] data, int length) {return write(data, 0, length);}
+
+        @Override
+        public int write(byte[] data, int offset, int length)
+        {
+            // nowhere to go, like a UDP server before the first client
+            if (!mIsPeerConnected) return 0;
+            int writeLen = Math.min(data.length - offset, length);
+            byte[] datagram = Arrays.copyOfRange(data, offset, offset + writeLen);
+            LossFilter filter = mLossFilter;
+            if (filter == null || !filter.isLost(mWrites++, datagram)) mOther.mInbox.add(datagram);
+            return writeLen;
+        }
+
+        @Override
+        public boolean isPeerConnected() {return mIsPeerConnected;}
+
+        public void setPeerConnected(boolean connected) {this.mIsPeerConnected = connected;}
+
+        @Override
+        public int getPeerGeneration() {return mPeerGeneration;}
+
+        // As if another peer took over this side's address
+        public void changePeer() {mPeerGeneration++;}
+
+        public void setLossFilter(LossFilter filter) {this.mLossFilter = filter;}
+
+        // Datagrams waiting to be read
+        public int getQueued() {return mInbox.size();}
+
+        // Drops what is waiting, e.g. what was in flight to a peer which went away
+        public void clear() {mInbox.clear();}
+    }
+}
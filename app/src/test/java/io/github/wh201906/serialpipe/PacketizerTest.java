@@ -0,0 +1,113 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class PacketizerTest
+{
+    private static final long LONG_GAP_NANOS = 10_000_000_000L;
+
+    @Test
+    public void fullDatagramIsSent() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        Packetizer packetizer = new Packetizer(4, LONG_GAP_NANOS, Packetizer.NO_DELIMITER);
+        publish(queue, bytes("0123456789"));
+        assertEquals(8, packetizer.forward(queue, link.getA(), 0));
+        assertArrayEquals(bytes("0123"), read(link.getB()));
+        assertArrayEquals(bytes("4567"), read(link.getB()));
+        // the rest waits for more data or the idle gap
+        assertEquals(0, link.getB().getQueued());
+    }
+
+    @Test
+    public void delimiterEndsDatagram() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        Packetizer packetizer = new Packetizer(64, LONG_GAP_NANOS, '\n');
+        publish(queue, bytes("ab\ncd"));
+        packetizer.forward(queue, link.getA(), 0);
+        publish(queue, bytes("e\n\nf"));
+        packetizer.forward(queue, link.getA(), 0);
+        assertArrayEquals(bytes("ab\n"), read(link.getB()));
+        assertArrayEquals(bytes("cde\n"), read(link.getB()));
+        assertArrayEquals(bytes("\n"), read(link.getB()));
+        assertEquals(0, link.getB().getQueued());
+    }
+
+    @Test
+    public void idleGapSendsTheRest() throws IOException, InterruptedException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        Packetizer packetizer = new Packetizer(64, 20_000_000L, Packetizer.NO_DELIMITER);
+        publish(queue, bytes("ab"));
+        assertEquals(0, packetizer.forward(queue, link.getA(), 0));
+        assertEquals(0, packetizer.forward(queue, link.getA(), 0));
+        Thread.sleep(30);
+        assertEquals(2, packetizer.forward(queue, link.getA(), 0));
+        assertArrayEquals(bytes("ab"), read(link.getB()));
+    }
+
+    // An idle gap of 0 merges what is queued, and sends it once the queue is empty
+    @Test
+    public void zeroIdleGapSendsWhenQueueIsEmpty() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        Packetizer packetizer = new Packetizer(64, 0, Packetizer.NO_DELIMITER);
+        publish(queue, bytes("ab"));
+        publish(queue, bytes("cd"));
+        assertEquals(0, packetizer.forward(queue, link.getA(), 0));
+        assertEquals(4, packetizer.forward(queue, link.getA(), 0));
+        assertArrayEquals(bytes("abcd"), read(link.getB()));
+    }
+
+    @Test
+    public void clearDropsUnfinishedDatagram() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        Packetizer packetizer = new Packetizer(64, LONG_GAP_NANOS, '\n');
+        publish(queue, bytes("ab"));
+        packetizer.forward(queue, link.getA(), 0);
+        packetizer.clear(queue);
+        publish(queue, bytes("c\n"));
+        packetizer.forward(queue, link.getA(), 0);
+        assertArrayEquals(bytes("c\n"), read(link.getB()));
+    }
+
+    private static PacketQueue newQueue() {return new ByteRingPacketQueue(1024, 64, false, WaitStrategy.Type.BUSY_SPIN);}
+
+    private static byte[] bytes(String s)
+    {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.charAt(i);
+        return bytes;
+    }
+
+    private static void publish(PacketQueue queue, byte[] data)
+    {
+        PacketBuffer buf = queue.acquire(0);
+        assertNotNull(buf);
+        System.arraycopy(data, 0, buf.getData(), buf.getOffset(), data.length);
+        buf.setLength(data.length);
+        queue.publish(buf, 0);
+    }
+
+    private static byte[] read(Connection connection) throws IOException
+    {
+        byte[] buf = new byte[256];
+        int length = connection.read(buf);
+        byte[] datagram = new byte[length];
+        System.arraycopy(buf, 0, datagram, 0, length);
+        return datagram;
+    }
+}
@@ -0,0 +1,635 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput, latency and allocation of the reader -> queue -> writer pipeline, on a plain JVM.
+ * A Bridge, as IOService runs it, forwards from a FakeConnection
+ * to either another FakeConnection or a UdpConnection on the loopback interface.
+ * <p>
+ * Skipped unless -Dserialpipe.benchmark=true, so ./gradlew test stays fast.
+ * Run with ./gradlew test --tests '*PipelineBenchmark*' -Dserialpipe.benchmark=true -Dserialpipe.benchmark.packets=2000000
+ * and compare the printed table before and after a change.
+ */
+public class PipelineBenchmark
+{
+    private static final long PACKETS = Long.getLong("serialpipe.benchmark.packets", 200_000);
+    private static final int[] PAYLOAD_SIZES = {16, 256, 1472};
+    // the largest read, same as IOService
+    private static final int BUFFER_SIZE = 4096;
+    private static final int LATENCY_SAMPLE_LIMIT = 1 << 20;
+    private static final long TIMEOUT_NANOS = 60_000_000_000L;
+    // ReliableUdpConnection runs over a link which loses every n-th datagram, both ways
+    private static final int RELIABLE_LOSS_EVERY = 20;
+
+    @Before
+    public void requireBenchmarkProperty() {assumeTrue(Boolean.getBoolean("serialpipe.benchmark"));}
+
+    @Test
+    public void fakeToFake() throws Exception
+    {
+        run(new Options(QueueKind.BYTE_RING_64K, 256));
+        System.out.println(Result.HEADER);
+        for (QueueKind queueKind : QueueKind.values())
+        {
+            for (int payloadSize : PAYLOAD_SIZES)
+            {
+                Result result = run(new Options(queueKind, payloadSize));
+                System.out.println(result);
+                assertEquals(PACKETS, result.deliveredPackets);
+            }
+        }
+    }
+
+    @Test
+    public void fakeToUdpLoopback() throws Exception
+    {
+        run(new Options(QueueKind.BYTE_RING_64K, 256).udp());
+        System.out.println(Result.HEADER);
+        for (QueueKind queueKind : QueueKind.values())
+        {
+            for (int payloadSize : PAYLOAD_SIZES)
+            {
+                Result result = run(new Options(queueKind, payloadSize).udp());
+                System.out.println(result);
+                // the kernel drops datagrams when the receiver can't keep up, but most of them must arrive
+                assertTrue(result.deliveredPackets > 0);
+            }
+        }
+    }
+
+    // ReliableUdpConnection on both sides of a lossy loopback link, everything must arrive in order
+    @Test
+    public void fakeToReliableUdpLossy() throws Exception
+    {
+        System.out.println(Result.HEADER);
+        for (int payloadSize : PAYLOAD_SIZES)
+        {
+            Result result = run(new Options(QueueKind.BYTE_RING_256K, payloadSize).reliableUdp());
+            System.out.println(result);
+            assertEquals(PACKETS, result.deliveredPackets);
+        }
+    }
+
+    // Encoding and decoding of FecUdpConnection on one thread, over a link which loses one datagram of every group
+    // 1 Mbaud serial is about 0.1 MB/s
+    @Test
+    public void fecCodec() throws Exception
+    {
+        runFecCodec(8, 256);
+        System.out.println(String.format("%-20s %7s %9s %9s", "group", "payload", "MB/s", "x 1Mbaud"));
+        for (int groupSize : new int[]{4, 8, 16})
+        {
+            for (int payloadSize : PAYLOAD_SIZES)
+            {
+                double megabytesPerSecond = runFecCodec(groupSize, payloadSize);
+                System.out.println(String.format("%-20d %7d %9.1f %9.0f", groupSize, payloadSize, megabytesPerSecond, megabytesPerSecond / 0.1));
+                assertTrue(megabytesPerSecond > 0.1);
+            }
+        }
+    }
+
+    // Returns the payload MB/s
+    private static double runFecCodec(int groupSize, int payloadSize) throws IOException
+    {
+        // the second datagram of every group, parity included
+        MemoryLink link = new MemoryLink(groupSize + 1, 1);
+        FecUdpConnection encoder = new FecUdpConnection(link, groupSize, 1472);
+        FecUdpConnection decoder = new FecUdpConnection(link, groupSize, 1472);
+        assertTrue(encoder.open());
+        assertTrue(decoder.open());
+        byte[] payload = new byte[payloadSize];
+        byte[] buf = new byte[65536];
+        long received = 0;
+        long start = System.nanoTime();
+        for (long i = 0; i < PACKETS; i++)
+        {
+            FakeConnection.putLong(payload, 0, i);
+            assertEquals(payloadSize, encoder.write(payload, payloadSize));
+            int length;
+            while ((length = decoder.read(buf, buf.length)) > 0)
+            {
+                assertEquals(payloadSize, length);
+                received++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(PACKETS, received);
+        assertEquals(PACKETS / groupSize, decoder.getRecoveredDatagrams());
+        return (double) PACKETS * payloadSize / (elapsed / 1e9) / 1e6;
+    }
+
+    // CompressedConnection on verbose log lines, one per datagram or packed into 1472-byte ones
+    // Over the lossy link, the frames after a lost one are skipped until the next keyframe
+    @Test
+    public void compressionCodec() throws Exception
+    {
+        runCompression(0, 0, 0);
+        System.out.println(String.format("%-20s %7s %9s %9s %9s %9s", "link", "payload", "ratio", "comp ms/MB", "dec ms/MB", "delivered %"));
+        for (int chunkSize : new int[]{0, 1472})
+        {
+            for (int lossPeriod : new int[]{0, 100})
+            {
+                System.out.println(runCompression(chunkSize, lossPeriod, lossPeriod == 0 ? 0 : 32));
+            }
+        }
+    }
+
+    // chunkSize: 0 for one line per datagram, lossPeriod: every n-th datagram is lost, 0 for none
+    // Returns a row of the table
+    private static String runCompression(int chunkSize, int lossPeriod, int keyframeInterval) throws IOException
+    {
+        MemoryLink link = lossPeriod == 0 ? new MemoryLink(Integer.MAX_VALUE, -1) : new MemoryLink(lossPeriod, lossPeriod / 2);
+        CompressedConnection encoder = new CompressedConnection(link, keyframeInterval);
+        CompressedConnection decoder = new CompressedConnection(link, keyframeInterval);
+        assertTrue(encoder.open());
+        assertTrue(decoder.open());
+        byte[] datagram = new byte[Math.max(chunkSize, 256)];
+        byte[] buf = new byte[65536];
+        long datagrams = 0;
+        long delivered = 0;
+        long line = 0;
+        while (line < PACKETS)
+        {
+            int length = 0;
+            do
+            {
+                byte[] text = String.format("2026-10-18 12:%02d:%02d.%03d I/SensorHub( 1234): sample seq=%08d temperature=%d.%d humidity=%d status=OK\n",
+                        line / 60000 % 60, line / 1000 % 60, line % 1000, line, 20 + line % 7, line % 10, 40 + line % 13).getBytes();
+                if (length + text.length > datagram.length) break;
+                System.arraycopy(text, 0, datagram, length, text.length);
+                length += text.length;
+                line++;
+            } while (chunkSize > 0 && line < PACKETS);
+            assertEquals(length, encoder.write(datagram, length));
+            datagrams++;
+            int readLen = decoder.read(buf, buf.length);
+            if (readLen == 0) continue;
+            assertEquals(length, readLen);
+            for (int i = 0; i < length; i++) assertEquals(datagram[i], buf[i]);
+            delivered++;
+        }
+        if (lossPeriod == 0) assertEquals(datagrams, delivered);
+        assertEquals(datagrams, delivered + decoder.getSkippedFrames() + link.getDropped());
+        assertTrue(encoder.getCompressionRatio() > 1);
+        return String.format("%-20s %7d %9.2f %9.2f %9.2f %9.1f", lossPeriod == 0 ? "lossless" : "lose 1/" + lossPeriod + " key/" + keyframeInterval,
+                encoder.getInputBytes() / datagrams, encoder.getCompressionRatio(), encoder.getCompressNanosPerMegabyte() / 1e6,
+                decoder.getDecompressNanosPerMegabyte() / 1e6, 100.0 * delivered / datagrams);
+    }
+
+    // Both directions on one thread, as IOService runs low-rate links
+    @Test
+    public void fakeToFakeEventLoop() throws Exception
+    {
+        run(new Options(QueueKind.BYTE_RING_256K, 256).eventLoop());
+        System.out.println(Result.HEADER);
+        for (int payloadSize : PAYLOAD_SIZES)
+        {
+            Result result = run(new Options(QueueKind.BYTE_RING_256K, payloadSize).eventLoop());
+            System.out.println(result);
+            assertEquals(PACKETS, result.deliveredPackets);
+        }
+    }
+
+    // The cost of TrafficCapture on the forwarding path, and the pcap file it writes
+    @Test
+    public void fakeToFakeWithCapture() throws Exception
+    {
+        System.out.println(Result.HEADER);
+        for (int payloadSize : PAYLOAD_SIZES)
+        {
+            File file = File.createTempFile("capture", ".pcap");
+            try
+            {
+                TrafficCapture capture = new TrafficCapture(file, 65535, 1024 * 1024);
+                assertTrue(capture.start());
+                Result result = run(new Options(QueueKind.BYTE_RING_256K, payloadSize).capture(capture));
+                capture.stop();
+                System.out.println(result + String.format(" captured %d, dropped %d", capture.getCapturedPackets(), capture.getDroppedPackets()));
+                assertEquals(PACKETS, result.deliveredPackets);
+                assertEquals(PACKETS, capture.getCapturedPackets() + capture.getDroppedPackets());
+                assertEquals(capture.getCapturedPackets(), countPcapRecords(file, payloadSize));
+            } finally
+            {
+                file.delete();
+            }
+        }
+    }
+
+    // Walks the records of a capture of the source, every one must hold a whole packet
+    private static long countPcapRecords(File file, int payloadSize) throws IOException
+    {
+        ByteBuffer pcap = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0xA1B23C4D, pcap.getInt(0));
+        assertEquals(TrafficCapture.LINKTYPE_USER0, pcap.getInt(20));
+        pcap.position(24);
+        long records = 0;
+        while (pcap.hasRemaining())
+        {
+            pcap.position(pcap.position() + 8);
+            int length = pcap.getInt();
+            assertEquals(length, pcap.getInt());
+            assertEquals(2 + payloadSize, length);
+            assertEquals(TrafficCapture.DIRECTION_FROM_NETWORK, pcap.get());
+            pcap.position(pcap.position() + length - 1);
+            records++;
+        }
+        return records;
+    }
+
+    private enum QueueKind
+    {
+        BYTE_RING_64K,
+        BYTE_RING_256K,
+        POOLED_512;
+
+        void configure(Bridge.End end)
+        {
+            end.setBufferSize(BUFFER_SIZE);
+            end.setWaitStrategyType(WaitStrategy.Type.SPIN_PARK);
+            end.setQueueType(this == POOLED_512 ? Bridge.QueueType.POOLED : Bridge.QueueType.BYTE_RING);
+            end.setQueueCapacityBytes(this == BYTE_RING_64K ? 64 * 1024 : 256 * 1024);
+            end.setQueueCapacityPackets(512);
+        }
+    }
+
+    // What one run forwards and through what, FakeConnection to FakeConnection on two threads unless changed
+    private static class Options
+    {
+        final QueueKind queueKind;
+        final int payloadSize;
+        boolean udp = false;
+        // UDP only, through ReliableUdpConnection with loss
+        boolean reliable = false;
+        boolean eventLoop = false;
+        // records what the source end reads, or null
+        TrafficCapture capture = null;
+
+        Options(QueueKind queueKind, int payloadSize)
+        {
+            this.queueKind = queueKind;
+            this.payloadSize = payloadSize;
+        }
+
+        Options udp()
+        {
+            udp = true;
+            return this;
+        }
+
+        Options reliableUdp()
+        {
+            reliable = true;
+            return udp();
+        }
+
+        Options eventLoop()
+        {
+            eventLoop = true;
+            return this;
+        }
+
+        Options capture(TrafficCapture capture)
+        {
+            this.capture = capture;
+            return this;
+        }
+    }
+
+    private Result run(Options options) throws Exception
+    {
+        QueueKind queueKind = options.queueKind;
+        int payloadSize = options.payloadSize;
+        boolean udp = options.udp;
+        boolean reliable = options.reliable;
+        boolean eventLoop = options.eventLoop;
+        TrafficCapture capture = options.capture;
+        FakeConnection source = new FakeConnection(payloadSize, PACKETS, 0);
+        Connection sink;
+        UdpReceiver receiver = null;
+        if (udp)
+        {
+            receiver = new UdpReceiver(findFreePort(), reliable ? payloadSize : 0);
+            UdpConnection sender = new UdpConnection();
+            sender.setOutboundAddress(InetAddress.getLoopbackAddress());
+            sender.setOutboundPort(receiver.port);
+            sink = reliable ? new ReliableUdpConnection(new LossyConnection(sender, RELIABLE_LOSS_EVERY)) : sender;
+        }
+        else
+        {
+            sink = new FakeConnection(payloadSize, 0, LATENCY_SAMPLE_LIMIT);
+        }
+        assertTrue(source.open());
+        assertTrue(sink.open());
+
+        Bridge.End sourceEnd = new Bridge.End("source");
+        Bridge.End sinkEnd = new Bridge.End("sink");
+        queueKind.configure(sourceEnd);
+        queueKind.configure(sinkEnd);
+        // one write per packet, so the sink can tell the latency of each packet
+        sinkEnd.setWriter(new WriteCoalescer(payloadSize, 0));
+        if (capture != null) sourceEnd.setCapture(capture.addChannel(TrafficCapture.DIRECTION_FROM_NETWORK, 0));
+        Bridge bridge = new Bridge(sourceEnd, sinkEnd);
+        bridge.setEventLoop(eventLoop);
+        PacketQueue queue = sourceEnd.getQueue();
+        Map<String, Long> allocated = new ConcurrentHashMap<>();
+        bridge.setThreadFactory(runnable -> new Thread(() ->
+        {
+            long start = getAllocatedBytes();
+            runnable.run();
+            allocated.put(Thread.currentThread().getName(), getAllocatedBytes() - start);
+        }));
+
+        if (receiver != null) receiver.start();
+        long start = System.nanoTime();
+        bridge.start(sourceEnd, source);
+        bridge.start(sinkEnd, sink);
+
+        long delivered;
+        long lastProgress = start;
+        long lastDelivered = 0;
+        while (true)
+        {
+            delivered = receiver != null ? receiver.packets : ((FakeConnection) sink).getWrittenPackets();
+            long now = System.nanoTime();
+            if (delivered == PACKETS || now - start > TIMEOUT_NANOS) break;
+            if (delivered != lastDelivered)
+            {
+                lastDelivered = delivered;
+                lastProgress = now;
+            }
+            // lost datagrams never arrive, stop once everything is sent and nothing moves
+            else if (source.isDrained() && queue.size() == 0 && now - lastProgress > 500_000_000L) break;
+            Thread.sleep(1);
+        }
+        long elapsed = (receiver != null ? receiver.lastReceiveNanos : System.nanoTime()) - start;
+
+        bridge.stop(sourceEnd);
+        bridge.stop(sinkEnd);
+        assertTrue(bridge.join(sourceEnd, 5000));
+        assertTrue(bridge.join(sinkEnd, 5000));
+        long[] latencies;
+        if (receiver != null)
+        {
+            receiver.close();
+            latencies = receiver.getLatencySamples();
+        }
+        else
+        {
+            latencies = ((FakeConnection) sink).getLatencySamples();
+        }
+        if (eventLoop)
+        {
+            // one thread does everything, so the allocations can't be told apart
+            long loopAllocated = allocated.getOrDefault("source+sink-loop", -1L);
+            return new Result(queueKind + " loop", payloadSize, delivered, delivered * payloadSize, elapsed, latencies, loopAllocated, loopAllocated);
+        }
+        return new Result(queueKind + (reliable ? " rudp" : udp ? " udp" : " fake"), payloadSize, delivered, delivered * payloadSize, elapsed, latencies,
+                allocated.getOrDefault("source-reader", -1L), allocated.getOrDefault("sink-writer", -1L));
+    }
+
+    // -1 if the JVM can't tell
+    private static long getAllocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) return -1;
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static int findFreePort() throws IOException
+    {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress()))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Drops every n-th write, like a lossy link
+    private static class LossyConnection extends ConnectionDecorator
+    {
+        private final int mLossEvery;
+        private int mWrites = 0;
+
+        LossyConnection(Connection connection, int lossEvery)
+        {
+            super(connection);
+            mLossEvery = lossEvery;
+        }
+
+        // called by the reader (ACK) and the writer (DATA) of a ReliableUdpConnection, one at a time
+        @Override
+        public int write(byte[] data, int offset, int length) throws IOException
+        {
+            if (++mWrites % mLossEvery == 0) return Math.min(data.length - offset, length);
+            return super.write(data, offset, length);
+        }
+    }
+
+    // Datagrams in memory, from the writer to the reader on the same thread
+    // Drops the write which has lossIndex in every lossPeriod writes
+    private static class MemoryLink extends BaseConnection
+    {
+        private static final int CAPACITY = 64;
+        private final byte[][] mDatagrams = new byte[CAPACITY][65536];
+        private final int[] mLengths = new int[CAPACITY];
+        private final int mLossPeriod;
+        private final int mLossIndex;
+        private long mWrites = 0;
+        private long mDropped = 0;
+        private int mHead = 0;
+        private int mTail = 0;
+
+        MemoryLink(int lossPeriod, int lossIndex)
+        {
+            mLossPeriod = lossPeriod;
+            mLossIndex = lossIndex;
+        }
+
+        @Override
+        public boolean open()
+        {
+            mIsOpened = true;
+            return true;
+        }
+
+        @Override
+        public void close() {mIsOpened = false;}
+
+        @Override
+        public int read(byte[] buf, int maxLength) {return read(buf, 0, maxLength);}
+
+        @Override
+        public int read(byte[] buf, int offset, int maxLength)
+        {
+            if (mHead == mTail) return 0;
+            int slot = mHead++ % CAPACITY;
+            int length = Math.min(mLengths[slot], Math.min(buf.length - offset, maxLength));
+            System.arraycopy(mDatagrams[slot], 0, buf, offset, length);
+            return length;
+        }
+
+        @Override
+        public int write(byte[] data, int length) {return write(data, 0, length);}
+
+        @Override
+        public int write(byte[] data, int offset, int length)
+        {
+            int writeLen = Math.min(data.length - offset, length);
+            if (mWrites++ % mLossPeriod == mLossIndex)
+            {
+                mDropped++;
+                return writeLen;
+            }
+            if (mTail - mHead == CAPACITY) throw new IllegalStateException("Memory link full");
+            int slot = mTail++ % CAPACITY;
+            System.arraycopy(data, offset, mDatagrams[slot], 0, writeLen);
+            mLengths[slot] = writeLen;
+            return writeLen;
+        }
+
+        long getDropped() {return mDropped;}
+    }
+
+    // Receives from the UdpConnection under test with another one, like the remote peer would
+    private static class UdpReceiver extends Thread
+    {
+        final int port;
+        // 0: one packet per datagram, otherwise a ReliableUdpConnection, which returns a stream of packets of this size
+        private final int mStreamPacketSize;
+        private final UdpConnection mUdpConnection = new UdpConnection();
+        private final Connection mConnection;
+        private final long[] mLatencySamples = new long[LATENCY_SAMPLE_LIMIT];
+        private int mLatencySampleCount = 0;
+        private long mStreamBytes = 0;
+        volatile long packets = 0;
+        volatile long lastReceiveNanos = 0;
+
+        UdpReceiver(int port, int streamPacketSize)
+        {
+            super("benchmark-udp-receiver");
+            this.port = port;
+            mStreamPacketSize = streamPacketSize;
+            mUdpConnection.setIsServerMode(true);
+            mUdpConnection.setInboundAddress(InetAddress.getLoopbackAddress());
+            mUdpConnection.setInboundPort(port);
+            mConnection = streamPacketSize > 0 ? new ReliableUdpConnection(new LossyConnection(mUdpConnection, RELIABLE_LOSS_EVERY)) : mUdpConnection;
+            if (!mConnection.open()) throw new IllegalStateException(mConnection.getLastException());
+        }
+
+        @Override
+        public void run()
+        {
+            byte[] buf = new byte[65536];
+            try
+            {
+                while (mConnection.isOpened())
+                {
+                    int length = mConnection.read(buf, buf.length);
+                    long now = System.nanoTime();
+                    if (mStreamPacketSize > 0)
+                    {
+                        if (length > 0) onStream(buf, length, now);
+                        continue;
+                    }
+                    if (length < FakeConnection.TIMESTAMP_SIZE) continue;
+                    if (mLatencySampleCount < mLatencySamples.length)
+                        mLatencySamples[mLatencySampleCount++] = now - FakeConnection.getLong(buf, 0);
+                    lastReceiveNanos = now;
+                    packets++;
+                }
+            } catch (IOException ignored)
+            {
+                // closed by the benchmark
+            }
+        }
+
+        // Takes the latency of every packet whose timestamp is within this read
+        private void onStream(byte[] buf, int length, long now)
+        {
+            long end = mStreamBytes + length;
+            long packetStart = (mStreamBytes + mStreamPacketSize - 1) / mStreamPacketSize * mStreamPacketSize;
+            for (; packetStart + FakeConnection.TIMESTAMP_SIZE <= end; packetStart += mStreamPacketSize)
+            {
+                if (mLatencySampleCount < mLatencySamples.length)
+                    mLatencySamples[mLatencySampleCount++] = now - FakeConnection.getLong(buf, (int) (packetStart - mStreamBytes));
+            }
+            mStreamBytes = end;
+            lastReceiveNanos = now;
+            packets = mStreamBytes / mStreamPacketSize;
+        }
+
+        void close() throws InterruptedException
+        {
+            mConnection.close();
+            join();
+        }
+
+        long[] getLatencySamples() {return Arrays.copyOf(mLatencySamples, mLatencySampleCount);}
+    }
+
+    private static class Result
+    {
+        static final String HEADER = String.format("%-20s %7s %9s %9s %9s %9s %9s %9s %9s %8s %8s",
+                "pipeline", "payload", "MB/s", "kpkt/s", "p50 us", "p99 us", "p99.9 us", "max us", "loss %", "rd B/pkt", "wr B/pkt");
+
+        final String name;
+        final int payloadSize;
+        final long deliveredPackets;
+        final long deliveredBytes;
+        final long elapsedNanos;
+        final long[] latencies;
+        final long readerAllocated;
+        final long writerAllocated;
+
+        Result(String name, int payloadSize, long deliveredPackets, long deliveredBytes, long elapsedNanos, long[] latencies, long readerAllocated, long writerAllocated)
+        {
+            this.name = name;
+            this.payloadSize = payloadSize;
+            this.deliveredPackets = deliveredPackets;
+            this.deliveredBytes = deliveredBytes;
+            this.elapsedNanos = Math.max(elapsedNanos, 1);
+            this.latencies = latencies;
+            this.readerAllocated = readerAllocated;
+            this.writerAllocated = writerAllocated;
+            Arrays.sort(latencies);
+        }
+
+        double getPercentileMicros(double percentile)
+        {
+            if (latencies.length == 0) return 0;
+            int rank = (int) Math.ceil(latencies.length * percentile / 100);
+            return latencies[Math.max(0, Math.min(latencies.length - 1, rank - 1))] / 1000.0;
+        }
+
+        @Override
+        public String toString()
+        {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%-20s %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.2f %8.1f %8.1f",
+                    name, payloadSize, deliveredBytes / seconds / 1e6, deliveredPackets / seconds / 1e3,
+                    getPercentileMicros(50), getPercentileMicros(99), getPercentileMicros(99.9), getPercentileMicros(100),
+                    100.0 * (PACKETS - deliveredPackets) / PACKETS,
+                    readerAllocated < 0 ? -1.0 : (double) readerAllocated / PACKETS,
+                    writerAllocated < 0 ? -1.0 : (double) writerAllocated / Math.max(deliveredPackets, 1));
+        }
+    }
+}
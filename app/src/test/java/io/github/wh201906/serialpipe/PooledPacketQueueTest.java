@@ -0,0 +1,60 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PooledPacketQueueTest
+{
+    @Test
+    public void fullQueueEvictsOldest()
+    {
+        PooledPacketQueue.Evictable queue = new PooledPacketQueue.Evictable(4, 16, WaitStrategy.Type.BLOCKING);
+        for (int i = 0; i < queue.capacity(); i++) assertNull(queue.publishEvicting(packet(queue, i)));
+
+        PacketBuffer evicted = queue.publishEvicting(packet(queue, 100));
+        assertNotNull(evicted);
+        // cleared, for the producer to fill next
+        assertEquals(0, evicted.getLength());
+        assertEquals(queue.capacity(), queue.size());
+        for (int i = 1; i < queue.capacity(); i++) assertEquals(i, take(queue));
+        assertEquals(100, take(queue));
+    }
+
+    // The evicted buffer is filled next, so a producer which never waits keeps the newest packets without allocating
+    @Test
+    public void keepsNewestWhileEvicting()
+    {
+        PooledPacketQueue.Evictable queue = new PooledPacketQueue.Evictable(4, 16, WaitStrategy.Type.BLOCKING);
+        PacketBuffer buf = queue.acquire(0);
+        for (int i = 0; i < 20; i++)
+        {
+            buf.getData()[buf.getOffset()] = (byte) i;
+            buf.setLength(1);
+            PacketBuffer evicted = queue.publishEvicting(buf);
+            buf = evicted != null ? evicted : queue.acquire(0);
+        }
+        for (int i = 20 - queue.capacity(); i < 20; i++) assertEquals(i, take(queue));
+        assertNull(queue.take(0));
+    }
+
+    private static PacketBuffer packet(PacketQueue queue, int value)
+    {
+        PacketBuffer buf = queue.acquire(0);
+        assertNotNull(buf);
+        buf.getData()[buf.getOffset()] = (byte) value;
+        buf.setLength(1);
+        return buf;
+    }
+
+    private static int take(PacketQueue queue)
+    {
+        PacketBuffer buf = queue.take(0);
+        assertNotNull(buf);
+        int value = buf.getData()[buf.getOffset()] & 0xFF;
+        queue.release(buf);
+        return value;
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ReliableUdpConnectionTest
+{
+    @Test
+    public void deliversInOrderDespiteLoss() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        // every 5th DATA is lost the first time
+        link.getA().setLossFilter((index, datagram) -> index % 5 == 2);
+        ReliableUdpConnection server = open(link.getA());
+        ReliableUdpConnection client = open(link.getB());
+
+        byte[] expected = writeMessages(server, 0, 50);
+        assertArrayEquals(expected, readAll(client, server));
+        assertEquals(0, server.getUnackedBytes());
+    }
+
+    @Test
+    public void restartedPeerGetsTheStream() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        ReliableUdpConnection server = open(link.getA());
+        ReliableUdpConnection client = open(link.getB());
+        byte[] first = writeMessages(server, 0, 20);
+        assertArrayEquals(first, readAll(client, server));
+
+        // the client restarts: new session, its receiver starts over, and what was in flight is gone
+        byte[] unacked = writeMessages(server, 20, 5);
+        link.getB().clear();
+        client.close();
+        ReliableUdpConnection restarted = open(link.getB());
+        // the old session's ACKs are gone too, the server sends the unacknowledged ones again on its timer
+        byte[] later = writeMessages(server, 25, 10);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(unacked);
+        expected.write(later);
+        assertArrayEquals(expected.toByteArray(), readAll(restarted, server));
+        assertEquals(0, server.getUnackedBytes());
+    }
+
+    private static ReliableUdpConnection open(MemoryDatagramLink.Side side)
+    {
+        ReliableUdpConnection connection = new ReliableUdpConnection(side);
+        connection.open();
+        return connection;
+    }
+
+    private static byte[] writeMessages(ReliableUdpConnection connection, int first, int count) throws IOException
+    {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        for (int i = first; i < first + count; i++)
+        {
+            byte[] message = ("message " + i + "\n").getBytes();
+            assertEquals(message.length, connection.write(message));
+            written.write(message);
+        }
+        return written.toByteArray();
+    }
+
+    // Alternates between the two sides until the sender has nothing unacknowledged, retransmitting on its timer
+    private static byte[] readAll(ReliableUdpConnection receiver, ReliableUdpConnection sender) throws IOException
+    {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline)
+        {
+            int length;
+            while ((length = receiver.read(buf)) > 0) received.write(buf, 0, length);
+            // ACKs
+            while (sender.read(buf) > 0) ;
+            if (sender.flush() == 0) break;
+            try
+            {
+                Thread.sleep(5);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return received.toByteArray();
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class StoreAndForwardConnectionTest
+{
+    // the memory ring is raised to hold 2 of the largest records, about 128 KB, so 4 of these fit
+    private static final int RECORD_SIZE = 30000;
+
+    @Test
+    public void passesThroughWithPeer() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        StoreAndForwardConnection connection = open(link.getA(), null);
+        assertEquals(3, connection.write(record(0, 3), 0, 3));
+        assertEquals(0, connection.getHeldBytes());
+        assertArrayEquals(record(0, 3), read(link.getB()));
+    }
+
+    // Every round holds 3 records, so the ring wraps around in the second round
+    @Test
+    public void replaysInOrderAcrossRingWrap() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        StoreAndForwardConnection connection = open(link.getA(), null);
+        int index = 0;
+        for (int round = 0; round < 6; round++)
+        {
+            link.getA().setPeerConnected(false);
+            for (int i = 0; i < 3; i++)
+                assertEquals(RECORD_SIZE, connection.write(record(index + i, RECORD_SIZE), 0, RECORD_SIZE));
+            assertEquals(3 * RECORD_SIZE, connection.getHeldBytes());
+            assertEquals(0, link.getB().getQueued());
+
+            link.getA().setPeerConnected(true);
+            assertEquals(0, connection.flush());
+            for (int i = 0; i < 3; i++)
+                assertArrayEquals(record(index++, RECORD_SIZE), read(link.getB()));
+        }
+        assertEquals(0, link.getB().getQueued());
+        assertEquals(0, connection.getDroppedBytes());
+    }
+
+    // 4 records in memory, 3 in the file, then it's full
+    @Test
+    public void spillsToFileInOrder() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        File file = File.createTempFile("store-forward", ".bin");
+        StoreAndForwardConnection connection = open(link.getA(), file);
+        link.getA().setPeerConnected(false);
+        for (int i = 0; i < 7; i++)
+            assertEquals(RECORD_SIZE, connection.write(record(i, RECORD_SIZE), 0, RECORD_SIZE));
+        assertEquals(0, connection.write(record(7, RECORD_SIZE), 0, RECORD_SIZE));
+        assertEquals(7 * RECORD_SIZE, connection.getHeldBytes());
+        assertEquals(RECORD_SIZE, connection.getDroppedBytes());
+
+        link.getA().setPeerConnected(true);
+        // the next write goes after the held ones
+        assertEquals(3, connection.write(record(8, 3), 0, 3));
+        for (int i = 0; i < 7; i++) assertArrayEquals(record(i, RECORD_SIZE), read(link.getB()));
+        assertArrayEquals(record(8, 3), read(link.getB()));
+        assertEquals(0, connection.getHeldBytes());
+
+        connection.close();
+        assertFalse(file.exists());
+    }
+
+    private static StoreAndForwardConnection open(Connection connection, File spillFile)
+    {
+        StoreAndForwardConnection storeAndForward = new StoreAndForwardConnection(connection, 0, spillFile, 3 * (RECORD_SIZE + 4));
+        storeAndForward.open();
+        return storeAndForward;
+    }
+
+    private static byte[] record(int index, int size)
+    {
+        byte[] record = new byte[size];
+        for (int i = 0; i < size; i++) record[i] = (byte) (index * 31 + i);
+        return record;
+    }
+
+    private static byte[] read(Connection connection) throws IOException
+    {
+        byte[] buf = new byte[65536];
+        int length = connection.read(buf);
+        byte[] datagram = new byte[length];
+        System.arraycopy(buf, 0, datagram, 0, length);
+        return datagram;
+    }
+}
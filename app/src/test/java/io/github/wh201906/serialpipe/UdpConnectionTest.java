@@ -0,0 +1,98 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UdpConnectionTest
+{
+    // A server has nowhere to send until a client speaks, those writes are dropped and counted
+    @Test
+    public void writesWithoutPeerAreCounted() throws IOException
+    {
+        writesWithoutPeerAreCounted(new UdpConnection(), false);
+        writesWithoutPeerAreCounted(new UdpConnection(), true);
+        writesWithoutPeerAreCounted(new NioUdpConnection(), false);
+        writesWithoutPeerAreCounted(new NioUdpConnection(), true);
+    }
+
+    private static void writesWithoutPeerAreCounted(UdpConnection server, boolean multiPeer) throws IOException
+    {
+        try (DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress()))
+        {
+            client.setSoTimeout(5000);
+            server.setInboundAddress(InetAddress.getLoopbackAddress());
+            server.setInboundPort(findFreePort());
+            server.setIsServerMode(true);
+            server.setAlwaysUpdateOutboundSocketAddress(true);
+            server.setMultiPeerEnabled(multiPeer);
+            server.setReadTimeoutMillis(5000);
+            assertTrue(server.open());
+            try
+            {
+                byte[] data = {1, 2, 3};
+                assertEquals(0, server.write(data));
+                assertEquals(0, server.write(data));
+                assertEquals(2, server.getNoPeerDrops());
+
+                client.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), server.getInboundPort()));
+                assertEquals(data.length, server.read(new byte[16]));
+                assertEquals(data.length, server.write(data));
+                client.receive(new DatagramPacket(new byte[16], 16));
+                assertEquals(2, server.getNoPeerDrops());
+            } finally
+            {
+                server.close();
+            }
+        }
+    }
+
+    // The datagram goes straight into the caller's array, at the offset and cut at maxLength
+    @Test
+    public void nioReadsIntoCallerArray() throws IOException
+    {
+        NioUdpConnection server = new NioUdpConnection();
+        try (DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress()))
+        {
+            server.setInboundAddress(InetAddress.getLoopbackAddress());
+            server.setInboundPort(findFreePort());
+            server.setIsServerMode(true);
+            server.setReadTimeoutMillis(5000);
+            assertTrue(server.open());
+            try
+            {
+                byte[] buf = new byte[8];
+                send(client, server, new byte[]{1, 2, 3});
+                assertEquals(3, server.read(buf, 2, 6));
+                assertArrayEquals(new byte[]{0, 0, 1, 2, 3, 0, 0, 0}, buf);
+
+                send(client, server, new byte[]{4, 5, 6, 7});
+                assertEquals(2, server.read(buf, 5, 2));
+                assertArrayEquals(new byte[]{0, 0, 1, 2, 3, 4, 5, 0}, buf);
+            } finally
+            {
+                server.close();
+            }
+        }
+    }
+
+    private static void send(DatagramSocket client, UdpConnection server, byte[] data) throws IOException
+    {
+        client.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), server.getInboundPort()));
+    }
+
+    private static int findFreePort() throws IOException
+    {
+        try (DatagramSocket socket = new DatagramSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UdpPeerTableTest
+{
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final long IDLE_TIMEOUT_NANOS = 50_000_000L;
+
+    @Test
+    public void knownPeerIsNotAddedAgain()
+    {
+        UdpPeerTable table = new UdpPeerTable(4, IDLE_TIMEOUT_NANOS);
+        table.update(LOOPBACK, 1000);
+        UdpPeerTable.Peer[] peers = table.getPeers();
+        table.update(LOOPBACK, 1000);
+        // nothing changed, so the snapshot isn't rebuilt
+        assertSame(peers, table.getPeers());
+        table.update(LOOPBACK, 1001);
+        assertEquals(2, table.getActiveCount());
+    }
+
+    @Test
+    public void idlePeerExpires() throws InterruptedException
+    {
+        UdpPeerTable table = new UdpPeerTable(4, IDLE_TIMEOUT_NANOS);
+        table.update(LOOPBACK, 1000);
+        table.update(LOOPBACK, 1001);
+        Thread.sleep(IDLE_TIMEOUT_NANOS / 1_000_000 * 2);
+        // expired, but only dropped on the next update
+        assertEquals(0, table.getActiveCount());
+        assertEquals(2, table.getPeers().length);
+        assertFalse(table.isActive(table.getPeers()[0], System.nanoTime()));
+
+        table.update(LOOPBACK, 1001);
+        UdpPeerTable.Peer[] peers = table.getPeers();
+        assertEquals(1, peers.length);
+        assertEquals(1001, peers[0].getPort());
+        assertTrue(table.isActive(peers[0], System.nanoTime()));
+    }
+
+    @Test
+    public void fullTableReplacesLeastRecentlySeen() throws InterruptedException
+    {
+        UdpPeerTable table = new UdpPeerTable(2, 10_000_000_000L);
+        table.update(LOOPBACK, 1000);
+        Thread.sleep(2);
+        table.update(LOOPBACK, 1001);
+        Thread.sleep(2);
+        // 1000 is seen again, so 1001 is the oldest now
+        table.update(LOOPBACK, 1000);
+        table.update(LOOPBACK, 1002);
+        UdpPeerTable.Peer[] peers = table.getPeers();
+        assertEquals(2, peers.length);
+        assertEquals(1000, peers[0].getPort());
+        assertEquals(1002, peers[1].getPort());
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.wh201906.serialpipe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class WriteCoalescerTest
+{
+    @Test
+    public void queuedPacketsAreMerged() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        WriteCoalescer coalescer = new WriteCoalescer(8, 0);
+        publish(queue, new byte[]{1, 2, 3});
+        publish(queue, new byte[]{4, 5, 6});
+        publish(queue, new byte[]{7, 8, 9});
+        // the third one doesn't fit, and starts the next write
+        assertEquals(6, coalescer.forward(queue, link.getA(), 0));
+        assertEquals(3, coalescer.forward(queue, link.getA(), 0));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, read(link.getB()));
+        assertArrayEquals(new byte[]{7, 8, 9}, read(link.getB()));
+        assertEquals(0, coalescer.forward(queue, link.getA(), 0));
+    }
+
+    @Test
+    public void largePacketIsWrittenAlone() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = newQueue();
+        WriteCoalescer coalescer = new WriteCoalescer(4, 0);
+        publish(queue, new byte[]{1, 2, 3, 4, 5, 6});
+        publish(queue, new byte[]{7});
+        assertEquals(6, coalescer.forward(queue, link.getA(), 0));
+        assertEquals(1, coalescer.forward(queue, link.getA(), 0));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, read(link.getB()));
+        assertArrayEquals(new byte[]{7}, read(link.getB()));
+    }
+
+    // Packets which arrive within the delay join the batch
+    @Test
+    public void waitsForMoreWithinDelay() throws Exception
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        PacketQueue queue = new ByteRingPacketQueue(1024, 64, false, WaitStrategy.Type.BLOCKING);
+        WriteCoalescer coalescer = new WriteCoalescer(8, 1_000_000_000L);
+        publish(queue, new byte[]{1, 2});
+        Thread producer = new Thread(() ->
+        {
+            try
+            {
+                Thread.sleep(20);
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+            publish(queue, new byte[]{3, 4, 5, 6, 7, 8});
+        });
+        producer.start();
+        // full after the second packet, so it doesn't wait for the whole delay
+        assertEquals(8, coalescer.forward(queue, link.getA(), 0));
+        producer.join();
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, read(link.getB()));
+    }
+
+    @Test
+    public void clearReleasesPendingPacket() throws IOException
+    {
+        MemoryDatagramLink link = new MemoryDatagramLink();
+        ByteRingPacketQueue queue = newQueue();
+        WriteCoalescer coalescer = new WriteCoalescer(4, 0);
+        publish(queue, new byte[]{1, 2, 3});
+        publish(queue, new byte[]{4, 5});
+        assertEquals(3, coalescer.forward(queue, link.getA(), 0));
+        coalescer.clear(queue);
+        assertEquals(0, queue.getUsedBytes());
+        assertEquals(0, coalescer.forward(queue, link.getA(), 0));
+    }
+
+    private static ByteRingPacketQueue newQueue() {return new ByteRingPacketQueue(1024, 64, false, WaitStrategy.Type.BUSY_SPIN);}
+
+    private static void publish(PacketQueue queue, byte[] data)
+    {
+        PacketBuffer buf = queue.acquire(0);
+        assertNotNull(buf);
+        System.arraycopy(data, 0, buf.getData(), buf.getOffset(), data.length);
+        buf.setLength(data.length);
+        queue.publish(buf, 0);
+    }
+
+    private static byte[] read(Connection connection) throws IOException
+    {
+        byte[] buf = new byte[256];
+        int length = connection.read(buf);
+        byte[] datagram = new byte[length];
+        System.arraycopy(buf, 0, datagram, 0, length);
+        return datagram;
+    }
+}